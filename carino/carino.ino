@@ -6,6 +6,29 @@
 #define CO_COMM          ('C')
 #define NO_COMM          ('N')
 
+// Text line that switches the serial link to binary framing
+#define BINARY_REQUEST   ('B')
+
+// Binary framing, SerialCodec.java is the Android side. Every message is
+// SYNC | length | type | payload | CRC-8 over length, type and payload, with
+// little endian numbers in the payload.
+#define SYNC_BYTE        (0xA5)
+#define MSG_TELEMETRY    (1) // speed i16, steering i16, distance u16 (0.1 cm)
+#define MSG_CONTROL      (2) // speed i16, steering i16
+#define MSG_MODE         (3) // mode char
+#define MSG_BAUD         (4) // baud rate u32, echoed before switching
+#define MSG_PING         (5) // anything, echoed
+#define MSG_BAUD_CONFIRM (6) // baud rate u32, echoed when keeping the rate
+#define FRAME_HEADER     (3)
+#define MAX_PAYLOAD      (16)
+#define TELEMETRY_SIZE   (6)
+
+// The rate after reset, and how long any other rate is kept without a valid
+// message from the phone, which pings four times a second to keep it.
+// BaudNegotiator.java has the Android side.
+#define DEFAULT_BAUD     (115200UL)
+#define BAUD_REVERT_MS   (1000UL)
+
 // Commands to control the rc car
 #define SPEED_COMMAND    (0)
 #define STEERING_COMMAND (1)
@@ -70,9 +93,18 @@ int frameCounter;
 
 // Variables for handling serial communication
 char mode;
-char buffer[1024];
+char buffer[64];
 int index;
 
+// Answer in binary, set by the last message that was understood
+boolean binaryProtocol;
+byte frame[FRAME_HEADER + MAX_PAYLOAD + 1];
+byte frameIndex;
+
+// The current baud rate, and when the last valid message came in at it
+unsigned long baudRate;
+unsigned long lastFrameTime;
+
 // Servo instances
 Servo speedServo;
 Servo steeringServo;
@@ -84,6 +116,10 @@ void setup()
 
   mode = MO_COMM;
   index = 0;
+  binaryProtocol = false;
+  frameIndex = 0;
+  baudRate = DEFAULT_BAUD;
+  lastFrameTime = 0;
 
   deltaTime = 0UL;
   frameCounter = 0;
@@ -102,7 +138,7 @@ void setup()
 
   pinMode(13, OUTPUT); // Shows current mode (true means control)
 
-  Serial.begin(115200);
+  Serial.begin(DEFAULT_BAUD);
 
   steeringServo.writeMicroseconds(STEERING_COMMAND_NEUTRAL);
   speedServo.writeMicroseconds(SPEED_COMMAND_NEUTRAL);
@@ -117,6 +153,16 @@ void setup()
   pingTimer = millis();
 }
 
+/* Switches the communication mode */
+void setMode(char newMode)
+{
+  mode = newMode;
+  if (mode == CO_COMM)
+    digitalWrite(13, HIGH);
+  else
+    digitalWrite(13, LOW);
+}
+
 /* Parses communication mode and serial commands. */
 void parse()
 {
@@ -125,22 +171,25 @@ void parse()
   int i = 0;
   int j = 0;
 
+  if (*p == BINARY_REQUEST) {
+    binaryProtocol = true;
+    return;
+  }
+  binaryProtocol = false;
   if (*p == MO_COMM || *p == CO_COMM || *p == NO_COMM) {
-    mode = *p;
-    if (mode == CO_COMM)
-      digitalWrite(13, HIGH);
-    else
-      digitalWrite(13, LOW);
+    setMode(*p);
     return;
   }
-  while (true) {
+  cmd[0] = '\0';
+  while (j < NUM_COMMANDS) {
     if (*p == ' ') {
       serial[j++] = atof(cmd);
       i = 0;
+      cmd[0] = '\0';
     } else if (*p == '\0') {
       serial[j] = atof(cmd);
       break;
-    } else {
+    } else if (i < (int)sizeof(cmd) - 1) {
       cmd[i++] = *p;
       cmd[i] = '\0';
     }
@@ -148,18 +197,100 @@ void parse()
   }
 }
 
-/* Reads valid commands or communication mode request. */
+/* CRC-8 with polynomial 0x07, continued from crc */
+byte crc8(const byte *data, byte length, byte crc)
+{
+  while (length--) {
+    crc ^= *data++;
+    for (byte bit = 0; bit < 8; bit++) {
+      crc = (crc & 0x80) ? (crc << 1) ^ 0x07 : crc << 1;
+    }
+  }
+  return crc;
+}
+
+/* Sends a binary message */
+void writeFrame(byte type, const byte *payload, byte length)
+{
+  byte header[FRAME_HEADER] = {SYNC_BYTE, length, type};
+  byte crc = crc8(payload, length, crc8(header + 1, 2, 0));
+  Serial.write(header, FRAME_HEADER);
+  Serial.write(payload, length);
+  Serial.write(crc);
+}
+
+/* Switches the UART, after whatever is queued for the old rate went out */
+void setBaud(unsigned long baud)
+{
+  Serial.flush();
+  Serial.end();
+  Serial.begin(baud);
+  baudRate = baud;
+  lastFrameTime = millis();
+  frameIndex = 0;
+  index = 0;
+}
+
+/* Runs a binary message that passed the CRC check */
+void handleFrame(byte type, const byte *payload, byte length)
+{
+  binaryProtocol = true;
+  lastFrameTime = millis();
+  unsigned long baud = 0;
+  if (length >= 4) {
+    baud = payload[0] | ((unsigned long)payload[1] << 8)
+        | ((unsigned long)payload[2] << 16) | ((unsigned long)payload[3] << 24);
+  }
+  if (type == MSG_BAUD && length == 4) {
+    if (baud == 250000UL || baud == 500000UL || baud == 1000000UL) {
+      writeFrame(type, payload, length);
+      setBaud(baud);
+    }
+  } else if (type == MSG_BAUD_CONFIRM && length == 4) {
+    // Nothing to commit, the rate stays as long as messages keep coming.
+    // Were the echo lost, the phone goes back and so do we.
+    if (baud == baudRate)
+      writeFrame(type, payload, length);
+  } else if (type == MSG_PING) {
+    writeFrame(type, payload, length);
+  } else if (type == MSG_CONTROL && length >= 4) {
+    serial[SPEED_COMMAND] = (int16_t)(payload[0] | (payload[1] << 8));
+    serial[STEERING_COMMAND] = (int16_t)(payload[2] | (payload[3] << 8));
+  } else if (type == MSG_MODE && length >= 1) {
+    if (payload[0] == MO_COMM || payload[0] == CO_COMM || payload[0] == NO_COMM)
+      setMode(payload[0]);
+  }
+}
+
+/* Collects one byte of a binary message */
+void readFrameByte(byte c)
+{
+  frame[frameIndex++] = c;
+  if (frameIndex == 2 && c > MAX_PAYLOAD) {
+    // Corrupted length, wait for the next sync byte
+    frameIndex = 0;
+  } else if (frameIndex > 2 && frameIndex == FRAME_HEADER + frame[1] + 1) {
+    frameIndex = 0;
+    if (crc8(frame + 1, frame[1] + 2, 0) == frame[FRAME_HEADER + frame[1]]) {
+      handleFrame(frame[2], frame + FRAME_HEADER, frame[1]);
+    }
+  }
+}
+
+/* Reads whatever arrived, binary messages and text lines alike. */
 void serialRead()
 {
   int c = 0;
   while (Serial.available() > 0) {
     c = Serial.read();
-    if (c == '\n') {
+    if (frameIndex > 0 || c == SYNC_BYTE) {
+      // The sync byte never appears in text
+      readFrameByte(c);
+    } else if (c == '\n') {
       buffer[index] = '\0';
       parse();
       index = 0;
-      break;
-    } else {
+    } else if (index < (int)sizeof(buffer) - 1) {
       buffer[index++] = (char)c;
     }
   }
@@ -168,6 +299,22 @@ void serialRead()
 /* Sends speed, steering angle and their corresponding recent commands */
 void serialWrite()
 {
+  if (binaryProtocol) {
+    byte out[FRAME_HEADER + TELEMETRY_SIZE + 1];
+    unsigned int tenths = distance * 10.0f;
+    out[0] = SYNC_BYTE;
+    out[1] = TELEMETRY_SIZE;
+    out[2] = MSG_TELEMETRY;
+    out[3] = speedCommand & 0xff;
+    out[4] = speedCommand >> 8;
+    out[5] = steeringCommand & 0xff;
+    out[6] = steeringCommand >> 8;
+    out[7] = tenths & 0xff;
+    out[8] = tenths >> 8;
+    out[9] = crc8(out + 1, TELEMETRY_SIZE + 2, 0);
+    Serial.write(out, sizeof(out));
+    return;
+  }
   Serial.println(String(speedCommand)
                  + " " + String(steeringCommand)
                  + " " + String(distance));
@@ -189,6 +336,11 @@ void loop()
   currentTime = micros();
   deltaTime = currentTime - previousTime;
 
+  if (baudRate != DEFAULT_BAUD && millis() - lastFrameTime >= BAUD_REVERT_MS) {
+    // The phone went back to the default, or is gone
+    setBaud(DEFAULT_BAUD);
+  }
+
 #ifdef ENABLE_DISTANCE
   // Notice how there's no delays in this sketch to allow you to do other processing in-line while doing distance pings.
   if (millis() >= pingTimer) {   // pingSpeed milliseconds since last ping, do another ping.
@@ -200,10 +352,10 @@ void loop()
   if (deltaTime >= 1000) {
     ++frameCounter;
     // 1000 Hz Task
+    serialRead();
 
-    if (frameCounter % 40 == 0) {
-      // 25 Hz Task
-      serialRead();
+    if (frameCounter % 10 == 0) {
+      // 100 Hz Task
       if (mode == CO_COMM) {
         speedCommand = serial[SPEED_COMMAND];
         steeringCommand = serial[STEERING_COMMAND];
@@ -217,8 +369,8 @@ void loop()
       speedServo.writeMicroseconds(speedCommand);
       steeringServo.writeMicroseconds(steeringCommand);
     }
-    if (frameCounter % 20 == 0 && mode != NO_COMM) {
-      // 50 Hz Task
+    // Telemetry at 100 Hz in binary, text takes too long to format
+    if (frameCounter % (binaryProtocol ? 10 : 20) == 0 && mode != NO_COMM) {
       serialWrite();
     }
     previousTime = currentTime;
@@ -3,7 +3,6 @@ package com.gokhanettin.driverlessrccar.caroid;
 import android.content.Context;
 import android.content.Intent;
 import android.hardware.usb.UsbManager;
-import android.os.CountDownTimer;
 import android.os.Handler;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
@@ -22,21 +21,35 @@ public class AcquisitionActivity extends AppCompatActivity {
     private static final String TAG = "AcquisitionActivity";
     private static final int REQUEST_CONNECTION = 0;
 
+    // SendScheduler outputs, in order of preference
+    public static final int OUTPUT_NETWORK = 0;
+    public static final int OUTPUT_DISK = 1;
+    // Each saved frame is a file write plus a CSV flush
+    private static final int DISK_MAX_FPS = 10;
+
     // Will be initialized after ConnectionActivity
     public CameraPreview mCameraPreview;
     private CameraManager mCameraManager;
 
-    private AndroidInput androidInput = new AndroidInput();
+    final AndroidInput androidInput = new AndroidInput();
     private ArduinoInput arduinoInputStub = new ArduinoInput();
+    // Latest reading from the Arduino, copied in on the serial thread and out
+    // on the scheduler thread. Synchronized by 'mArduinoInput'.
+    private final ArduinoInput mArduinoInput = new ArduinoInput();
+    private final ArduinoInput mSentArduinoInput = new ArduinoInput();
+    private volatile boolean mHasArduinoInput;
+    // CameraPreview.getReadyFrameCount() at the last post to the station,
+    // scheduler thread only
+    private long mPostedFrames = -1;
 
     private UsbManager mUsbManager;
     public UsbClient mUsbClient;
     public UdpClient mTcpClient;
 
     // Can be used to reconnect
-    private UsbSerialPort mUsbSerialPort = null;
-    private String mIP = null;
-    private int mPort;
+    private volatile UsbSerialPort mUsbSerialPort = null;
+    private volatile String mIP = null;
+    private volatile int mPort;
 
     private FileSaver mFileSaver = new FileSaver();
 
@@ -47,6 +60,9 @@ public class AcquisitionActivity extends AppCompatActivity {
 
         mUsbClient = new UsbClient(mUsbHandler);
         mTcpClient = new UdpClient(mTcpHandler);
+        mTcpClient.setControlListener(mControlListener);
+        mUsbClient.setReadingListener(mReadingListener);
+        mSendScheduler.setMaxRate(OUTPUT_DISK, DISK_MAX_FPS);
         mUsbManager = (UsbManager) getSystemService(Context.USB_SERVICE);
 
         androidInput.setSensors(this);
@@ -64,6 +80,7 @@ public class AcquisitionActivity extends AppCompatActivity {
         mCameraManager = new CameraManager();
         mCameraPreview = new CameraPreview(this, mCameraManager.getCamera());
         mCameraPreview.tcpClient = mTcpClient;
+        mCameraPreview.setFrameListener(mFrameListener);
         androidInput.Camera = mCameraPreview;
 
         final FrameLayout previewLayout = (FrameLayout) findViewById(R.id.acquisition_preview);
@@ -77,14 +94,14 @@ public class AcquisitionActivity extends AppCompatActivity {
         if (mCameraPreview != null)
             mCameraPreview.setCamera(mCameraManager.getCamera());
 
-        mTimer.start();
+        mSendScheduler.start();
     }
 
     @Override
     public void onPause() {
         Log.d(TAG, "onPause");
         super.onPause();
-        mTimer.cancel();
+        mSendScheduler.stop();
 
         if (mCameraPreview != null) {
             mCameraPreview.setCamera(null);
@@ -172,20 +189,16 @@ public class AcquisitionActivity extends AppCompatActivity {
 
         @Override
         protected void onReceived(ArduinoInput arduinoInput) {
-            arduinoInput.isOnline = true;
+            // Already sent or saved by the SendScheduler, see mReadingListener
             Log.d(TAG, "(Serial) onReceived: " + arduinoInput.toString());
-            if (mCameraPreview.getPreviewCount() > 0) {
-                if (mTcpClient.getState() == TcpClient.STATE_CONNECTED) {
-                    mTcpClient.send(arduinoInput, androidInput);
-                } else {
-                    mFileSaver.save(arduinoInput, androidInput);
-                }
-            }
         }
 
         @Override
         protected void onSent(ArduinoOutput output) {
-
+            if (output.receivedNanos != 0) {
+                Log.d(TAG, "(Serial) control latency " + (output.queuedNanos - output.receivedNanos) / 1000
+                        + " us, max " + mUsbClient.getMaxControlLatencyNanos() / 1000 + " us");
+            }
         }
 
         @Override
@@ -226,10 +239,10 @@ public class AcquisitionActivity extends AppCompatActivity {
 
         @Override
         protected void onReceived(TcpInput input) {
-            if (input.command != null) {
-                Log.d(TAG, "Running command " + input.command);
-                input.command.run(AcquisitionActivity.this);
+            if (input.command != TcpInput.COMMAND_ARDUINO) {
+                Log.d(TAG, "Running command " + input);
             }
+            input.run(AcquisitionActivity.this);
         }
 
         @Override
@@ -248,37 +261,111 @@ public class AcquisitionActivity extends AppCompatActivity {
         }
     };
 
+    // Runs on the network reader thread, steering never waits for the main looper
+    private final UdpClient.ControlListener mControlListener = new UdpClient.ControlListener() {
+        @Override
+        public void onControl(TcpInput input) {
+            input.forward(mTcpClient, mUsbClient);
+        }
+    };
+
     private final Handler mUsbHandler = new Handler(mUsbHandlerCallback);
     private final Handler mTcpHandler = new Handler(mTcpHandlerCallback);
 
-    // 200 Hz, used when USB is disconnected
-    private CountDownTimer mTimer = new CountDownTimer(10000001, 5) {
+    // Runs on the serial thread
+    private final UsbClient.ReadingListener mReadingListener = new UsbClient.ReadingListener() {
         @Override
-        public void onTick(long millisUntilFinished) {
-            if (mTcpClient.getState() == TcpClient.STATE_CONNECTED
-                && mUsbClient.getState() != UsbClient.STATE_CONNECTED
-                && androidInput.Camera.getPreviewCount() > 0)
-            {
-                mTcpClient.send(arduinoInputStub, androidInput);
+        public void onReading(ArduinoInput input) {
+            synchronized (mArduinoInput) {
+                mArduinoInput.set(input);
             }
+            mHasArduinoInput = true;
+            mSendScheduler.onEvent();
+        }
+    };
 
-            // try to reconnect each 2 seconds
-            if (millisUntilFinished % 2000 == 0) {
-                if (mIP != null && mTcpClient.getState() == TcpClient.STATE_NONE) {
-                    mTcpClient.connect(mPort);
-                }
+    // Runs on the encoder threads
+    private final CameraPreview.FrameListener mFrameListener = new CameraPreview.FrameListener() {
+        @Override
+        public void onFrameReady() {
+            mSendScheduler.onEvent();
+        }
+    };
 
-                if (mUsbSerialPort != null && mUsbClient.getState() == UsbClient.STATE_NONE) {
-                    if (!mUsbClient.connect(mUsbManager, mUsbSerialPort, AcquisitionActivity.this)) {
-                        Log.d(TAG, "Cannot reconnect to serial");
-                    }
-                }
+    // The reading that goes with the next frame, a stub while USB is
+    // disconnected. Scheduler thread only, the result is reused.
+    private ArduinoInput currentReading() {
+        if (!mHasArduinoInput || mUsbClient.getState() != UsbClient.STATE_CONNECTED) {
+            return arduinoInputStub;
+        }
+        synchronized (mArduinoInput) {
+            mSentArduinoInput.set(mArduinoInput);
+        }
+        return mSentArduinoInput;
+    }
+
+    private boolean hasFrame() {
+        CameraPreview camera = androidInput.Camera;
+        return camera != null && camera.getPreviewCount() > 0;
+    }
+
+    private final SendScheduler.Output mNetworkOutput = new SendScheduler.Output() {
+        @Override
+        public boolean isActive() {
+            return mTcpClient.getState() == UdpClient.STATE_CONNECTED;
+        }
+
+        @Override
+        public boolean send() {
+            if (!hasFrame()) {
+                return false;
             }
+            // The writer takes the frame later on, until then a reading only
+            // waits for the next frame instead of posting this one again
+            long readyFrames = androidInput.Camera.getReadyFrameCount();
+            if (readyFrames == mPostedFrames) {
+                return false;
+            }
+            mPostedFrames = readyFrames;
+            mTcpClient.send(currentReading(), androidInput);
+            return true;
         }
+    };
 
+    // Builds a dataset while there is no station, only with real readings
+    private final SendScheduler.Output mDiskOutput = new SendScheduler.Output() {
         @Override
-        public void onFinish() {
-            start();
+        public boolean isActive() {
+            return mHasArduinoInput && mUsbClient.getState() == UsbClient.STATE_CONNECTED;
+        }
+
+        @Override
+        public boolean send() {
+            if (!hasFrame()) {
+                return false;
+            }
+            mFileSaver.save(currentReading(), androidInput);
+            return true;
+        }
+    };
+
+    // Tries to reconnect every SendScheduler.CONNECTION_CHECK_INTERVAL
+    private final Runnable mConnectionCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (mIP != null && mTcpClient.getState() == UdpClient.STATE_NONE) {
+                mTcpClient.connect(mPort);
+            }
+
+            if (mUsbSerialPort != null && mUsbClient.getState() == UsbClient.STATE_NONE) {
+                if (!mUsbClient.connect(mUsbManager, mUsbSerialPort, AcquisitionActivity.this)) {
+                    Log.d(TAG, "Cannot reconnect to serial");
+                }
+            }
         }
     };
+
+    // Sends frames as they are ready, off the main looper
+    public final SendScheduler mSendScheduler =
+            new SendScheduler(mConnectionCheck, mNetworkOutput, mDiskOutput);
 }
@@ -11,20 +11,39 @@ import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.support.v4.app.ActivityCompat;
 import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.List;
 
+// Camera and phone sensors. Every sensor keeps a SensorHistory, so that the
+// values sent with a frame are interpolated to its capture time, and are
+// never half updated. Sensor events are delivered on a thread of their own.
 public class AndroidInput {
     private static final String TAG = "AndroidInput";
+    public static final int SENSOR_COUNT = 11;
+    // At SENSOR_DELAY_FASTEST a gyroscope delivers up to ~500 samples/s,
+    // enough for frames that are sent half a second after capture
+    private static final int HISTORY_SIZE = 256;
+    // Event timestamps further off the elapsedRealtimeNanos() clock than this
+    // are from another clock, as on some older devices
+    private static final long CLOCK_TOLERANCE_NANOS = 1000000000L;
+    // Latitude and longitude follow the three 3-axis sensors
+    private static final int LOCATION_INDEX = 9;
 
     public CameraPreview Camera;
-    public float[] SensorValues;
 
     private SensorManager mSensorManager;
     private List<SensorListener> sensors = new ArrayList<>();
+    private HandlerThread mSensorThread;
+    private Handler mSensorHandler;
+    private int mSensorDelay = SensorManager.SENSOR_DELAY_NORMAL;
+    // Latitude and longitude, replaced as a whole
+    private volatile float[] mLocation = new float[2];
     LocationManager locationManager;
 
     public void setSensors(Context context) {
@@ -33,14 +52,16 @@ public class AndroidInput {
             return;
         }
         mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
-        SensorValues = new float[11];
+        mSensorThread = new HandlerThread("Sensors");
+        mSensorThread.start();
+        mSensorHandler = new Handler(mSensorThread.getLooper());
         sensors.add(new SensorListener(mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER), 0));
         sensors.add(new SensorListener(mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE), 3));
         sensors.add(new SensorListener(mSensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD), 6));
 
         Log.d(TAG, "ini LocationManager");
         locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
-        LocationListener locationListener = new MyLocationListener(9);
+        LocationListener locationListener = new MyLocationListener();
         if (ActivityCompat.checkSelfPermission(context, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED && ActivityCompat.checkSelfPermission(context, Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
             Log.d(TAG, "You have no persmissions to access GPS location");
             return;
@@ -48,19 +69,64 @@ public class AndroidInput {
         locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 5000, 10, locationListener);
     }
 
+    // SensorManager.SENSOR_DELAY_* or a period in microseconds. Registers the
+    // sensors again at the new rate.
+    public synchronized void setSensorDelay(int delay) {
+        mSensorDelay = delay;
+        for (SensorListener listener : sensors) {
+            listener.register();
+        }
+    }
+
+    // Writes the SENSOR_COUNT values at the given SystemClock
+    // elapsedRealtimeNanos() time to dst. Safe from any thread.
+    public void getSensorValues(long timestampNanos, float[] dst) {
+        for (int i = 0; i < sensors.size(); i++) {
+            SensorListener listener = sensors.get(i);
+            if (!listener.mHistory.sample(timestampNanos, dst, listener.mIndex)) {
+                for (int j = 0; j < listener.mHistory.getDimension(); j++) {
+                    dst[listener.mIndex + j] = 0f;
+                }
+            }
+        }
+        float[] location = mLocation;
+        dst[LOCATION_INDEX] = location[0];
+        dst[LOCATION_INDEX + 1] = location[1];
+    }
+
     class SensorListener implements SensorEventListener {
         Sensor mSensor;
         int mIndex;
+        final SensorHistory mHistory = new SensorHistory(3, HISTORY_SIZE);
+        // Added to event timestamps to get elapsedRealtimeNanos()
+        private long mClockOffset;
 
         public SensorListener(Sensor sensor, int index) {
             mSensor = sensor;
             mIndex = index;
-            mSensorManager.registerListener(this, sensor , SensorManager.SENSOR_DELAY_NORMAL);
+            register();
+        }
+
+        void register() {
+            if (mSensor == null) {
+                return;
+            }
+            mSensorManager.unregisterListener(this);
+            mSensorManager.registerListener(this, mSensor, mSensorDelay, mSensorHandler);
         }
 
         @Override
         public void onSensorChanged(SensorEvent sensorEvent) {
-            System.arraycopy(sensorEvent.values, 0, SensorValues, mIndex, sensorEvent.values.length);
+            long offset = SystemClock.elapsedRealtimeNanos() - sensorEvent.timestamp;
+            if (Math.abs(offset) < CLOCK_TOLERANCE_NANOS) {
+                // Same clock, the difference is the delivery delay
+                offset = 0;
+            } else if (mClockOffset != 0 && offset > mClockOffset) {
+                // The smallest difference is the one with the least delay
+                offset = mClockOffset;
+            }
+            mClockOffset = offset;
+            mHistory.add(sensorEvent.timestamp + offset, sensorEvent.values);
         }
 
         @Override
@@ -69,22 +135,14 @@ public class AndroidInput {
 
     /*---------- Listener class to get coordinates ------------- */
     private class MyLocationListener implements LocationListener {
-        int mIndex;
-
-        public MyLocationListener(int index) {
-            mIndex = index;
-        }
-
         @Override
         public void onLocationChanged(Location loc) {
-            SensorValues[mIndex + 0] = (float) loc.getLatitude();
-            SensorValues[mIndex + 1] = (float) loc.getLongitude();
+            mLocation = new float[] {(float) loc.getLatitude(), (float) loc.getLongitude()};
         }
 
         @Override
         public void onProviderDisabled(String provider) {
-            SensorValues[mIndex + 0] = -1.0f;
-            SensorValues[mIndex + 1] = -1.0f;
+            mLocation = new float[] {-1.0f, -1.0f};
         }
 
         @Override
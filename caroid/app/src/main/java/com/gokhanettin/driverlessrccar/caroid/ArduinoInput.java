@@ -2,12 +2,127 @@ package com.gokhanettin.driverlessrccar.caroid;
 
 import java.util.Locale;
 
+// A reading from the Arduino, "<speed_cmd> <steering_cmd> <distance>".
+//
+// Readings are parsed straight from the serial bytes into recycled instances,
+// like TcpInput: get one with obtain() and hand it back with recycle().
 public class ArduinoInput {
+    private static final int MAX_POOL_SIZE = 8;
+    private static final Object sPoolSync = new Object();
+    private static ArduinoInput sPool;
+    private static int sPoolSize = 0;
+
     public boolean isOnline = false;
-    public int speedCommand = 1400;
-    public int steeringCommand = 1568;
+    public int speedCommand = ArduinoOutput.SPEED_COMMAND_NEUTRAL;
+    public int steeringCommand = ArduinoOutput.STEERING_COMMAND_NEUTRAL;
     public float distance = 0f;
 
+    private ArduinoInput next;
+    // Result of the last parseInt()
+    private int mValue;
+
+    public static ArduinoInput obtain() {
+        synchronized (sPoolSync) {
+            if (sPool != null) {
+                ArduinoInput input = sPool;
+                sPool = input.next;
+                input.next = null;
+                sPoolSize--;
+                return input;
+            }
+        }
+        return new ArduinoInput();
+    }
+
+    public void recycle() {
+        isOnline = false;
+        speedCommand = ArduinoOutput.SPEED_COMMAND_NEUTRAL;
+        steeringCommand = ArduinoOutput.STEERING_COMMAND_NEUTRAL;
+        distance = 0f;
+        synchronized (sPoolSync) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                next = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
+    public void set(ArduinoInput other) {
+        isOnline = other.isOnline;
+        speedCommand = other.speedCommand;
+        steeringCommand = other.steeringCommand;
+        distance = other.distance;
+    }
+
+    // Decodes one line without its '\n', a trailing '\r' is allowed. Returns
+    // false and leaves the fields alone if the line is not a reading.
+    public boolean parse(byte[] line, int length) {
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        int i = parseInt(line, 0, length);
+        if (i < 0 || i >= length || line[i] != ' ') {
+            return false;
+        }
+        int speed = mValue;
+        i = parseInt(line, i + 1, length);
+        if (i < 0 || i >= length || line[i] != ' ') {
+            return false;
+        }
+        int steering = mValue;
+
+        // "<int>.<fraction>" as Arduino's String(float) prints it
+        int start = i + 1;
+        i = parseInt(line, start, length);
+        if (i < 0) {
+            return false;
+        }
+        boolean negative = line[start] == '-';
+        float value = Math.abs(mValue);
+        if (i < length && line[i] == '.') {
+            float scale = 0.1f;
+            start = ++i;
+            for (; i < length && line[i] >= '0' && line[i] <= '9'; i++) {
+                value += (line[i] - '0') * scale;
+                scale *= 0.1f;
+            }
+            if (i == start) {
+                return false;
+            }
+        }
+        if (i != length) {
+            return false;
+        }
+
+        speedCommand = speed;
+        steeringCommand = steering;
+        distance = negative ? -value : value;
+        isOnline = true;
+        return true;
+    }
+
+    // Returns the index after the number, or -1 if there is none at i
+    private int parseInt(byte[] line, int i, int length) {
+        boolean negative = i < length && line[i] == '-';
+        if (negative) {
+            i++;
+        }
+        int start = i;
+        int value = 0;
+        for (; i < length && line[i] >= '0' && line[i] <= '9'; i++) {
+            if (value > (Integer.MAX_VALUE - 9) / 10) {
+                return -1;
+            }
+            value = value * 10 + (line[i] - '0');
+        }
+        if (i == start) {
+            return -1;
+        }
+        mValue = negative ? -value : value;
+        return i;
+    }
+
     public String toString() {
         Locale locale = Locale.US;
         return String.format(locale,
@@ -3,9 +3,21 @@ package com.gokhanettin.driverlessrccar.caroid;
 import java.util.Locale;
 
 public class ArduinoOutput {
+    // Pulse widths in microseconds that stop the car and center the
+    // steering, as SPEED_COMMAND_NEUTRAL and STEERING_COMMAND_NEUTRAL in
+    // carino.ino
+    public static final int SPEED_COMMAND_NEUTRAL = 1400;
+    public static final int STEERING_COMMAND_NEUTRAL = 1568;
+
     public int speedCommand;
     public int steeringCommand;
 
+    // SystemClock.elapsedRealtimeNanos() when the command was read from the
+    // network (0 if it did not come from there) and when it was queued for
+    // the serial port
+    public long receivedNanos;
+    public long queuedNanos;
+
     public String toString() {
         return String.format(Locale.US,
                 "[%d;%d]", speedCommand, steeringCommand);
@@ -1,209 +1,485 @@
 package com.gokhanettin.driverlessrccar.caroid;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.nio.ByteBuffer;
-
+import android.graphics.ImageFormat;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
 import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// H.264 encoder stage for camera previews, running on its own thread so that
+// capture, encode and send overlap:
+//   camera thread   offer() parks the latest preview, a newer one replaces it
+//   encoder thread  MediaCodec callbacks: converts the parked preview into a
+//                   free input buffer, copies finished access units into a
+//                   bounded queue
+//   writer thread   take() hands out queued access units one at a time, in
+//                   pooled FrameBuffers that go back with release()
+// The codec is created on the encoder thread, so its callbacks run there
+// without setCallback(Callback, Handler), which needs API 23. The thread
+// outlives the codec: init() and close() only post to it, so the camera
+// callback never waits for a codec to start or stop. If the writer
+// falls behind the oldest queued access unit is dropped; the frames after it
+// can't be decoded without it, so a key frame is requested right away.
+//
+// The codec delivers SPS/PPS once, out of band. They are cached and written in
+// front of every key frame so the station can join the stream at any IDR.
+// Output is Annex B: NAL units prefixed with 00 00 00 01 start codes.
+public class AvcEncoder {
+    private static final String TAG = "AvcEncoder";
+    private static final String MIME_TYPE = "video/avc";
+    private static final int I_FRAME_INTERVAL = 1;
+    private static final int MIN_BIT_RATE = 100000;
+    static final int QUEUE_SIZE = 4;
+    // Frames in flight inside the codec whose queue time is remembered
+    private static final int TIMING_SLOTS = 16;
+    // How long an access unit waits for the writer to release a buffer
+    private static final long RELEASE_TIMEOUT_MILLIS = 20;
+
+    interface Listener {
+        // The preview was copied into the codec or dropped and can be reused.
+        // Called from the encoder and camera threads.
+        void onPreviewReleased(byte[] preview);
+
+        // An access unit is ready to be taken, called from the encoder thread
+        void onFrameReady();
+    }
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private Listener mListener;
+    private volatile boolean mStarted = false;
+    private volatile boolean mFailed = false;
+
+    // Encoder thread only
+    private MediaCodec mCodec;
+    private YuvConverter mConverter;
+    private byte[] mInput;
+    // Region cut out of each preview before conversion, null for all of it
+    private Roi mRoi;
+    private byte[] mCropped;
+    private int mPreviewWidth;
+    private int mPreviewHeight;
+    private byte[] mConfig = null; // SPS + PPS
+    private final ArrayDeque<Integer> mFreeInputs = new ArrayDeque<>();
+    private final long[] mTimingPts = new long[TIMING_SLOTS];
+    private final long[] mTimingQueued = new long[TIMING_SLOTS];
+    private int mTimingIndex = 0;
+    private final Bundle mSyncFrame = new Bundle();
+
+    // Latest preview waiting for an input buffer, guarded by this
+    private byte[] mPending;
+    private long mPendingNanos;
+
+    // Access units ready for the writer, and empty ones for the codec
+    private final ArrayBlockingQueue<FrameBuffer> mReady = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final ArrayBlockingQueue<FrameBuffer> mFree = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+    private volatile long mDroppedPreviews = 0;
+    private volatile long mDroppedFrames = 0;
 
-public class AvcEncoder
-{
-	private final static String TAG = AvcEncoder.class.getSimpleName();
-	private final static String MIME_TYPE = "video/avc";
-	private final static int I_FRAME_INTERVAL = 1;
-	
-    MediaCodec mediaCodec;  
-    int width;  
-    int height; 
-    int timeoutUSec = 10000;
-    long frameIndex = 0;
-    byte[] spsPpsInfo = null;  
-    byte[] yuv420 = null;       
-    int frameRate;
-    int yStride;
-    int cStride;
-    int ySize;
-    int cSize;
-    int halfWidth;
-    int halfHeight;
-    
-    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-      
-    public AvcEncoder() 
-    {         
-    }  
-    
-    public boolean init(int width, int height, int framerate, int bitrate)
-    {
-        try 
-        {
-			mediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
-		}
-        catch (IOException e) 
-        {
-			return false;
-		}
-        
-        boolean isSupport = false;
-        int colorFormat = 0;
-        MediaCodecInfo codecInfo = selectCodec(MIME_TYPE);
-        MediaCodecInfo.CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(MIME_TYPE);
-        for (int i = 0; i < capabilities.colorFormats.length && colorFormat == 0; i++) 
-        {
-            int format = capabilities.colorFormats[i];
-            if (format == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar)   
-            {
-            	isSupport = true;
-            	break;
-            }
-        } 
-        if (!isSupport)
-        	return false;
-        
-        this.width  = width;  
-        this.height = height; 
-        this.halfWidth = width / 2;
-        this.halfHeight = height / 2;
-        this.frameRate = framerate;
-        
-        this.yStride = (int) Math.ceil(width/16.0f) * 16;
-        this.cStride = (int) Math.ceil(width/32.0f)  * 16;
-        this.ySize = yStride * height;
-        this.cSize = cStride * height / 2;
-        
-        this.yuv420 = new byte[width*height*3/2];
-        
-        MediaFormat mediaFormat = MediaFormat.createVideoFormat(MIME_TYPE, width, height);  
-        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);  
-        mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, framerate);  
-        mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar);
-        mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
-          
-        mediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);  
-        mediaCodec.start();  
+    public AvcEncoder() {
+        for (int i = 0; i < QUEUE_SIZE; i++) {
+            mFree.add(new FrameBuffer(32 * 1024, mPool));
+        }
+        mSyncFrame.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+    }
+
+    // previewFormat is the ImageFormat the camera delivers, NV21 or YV12. Only
+    // the roi part of each preview is encoded. Returns false if there is no
+    // suitable codec. It is created and started on the encoder thread without
+    // waiting for it, the camera callback calls this; hasFailed() tells if that
+    // went wrong. Previews offered in the meantime wait like any other.
+    boolean init(final int width, final int height, final int previewFormat, final Roi roi,
+                 final int frameRate, final int bitRate, Listener listener) {
+        final MediaCodecInfo codecInfo = selectCodec(MIME_TYPE);
+        if (codecInfo == null || !supportsSemiPlanar(codecInfo)) {
+            Log.e(TAG, "No semi-planar " + MIME_TYPE + " encoder");
+            return false;
+        }
+        mListener = listener;
+        mFailed = false;
+        if (mThread == null) {
+            mThread = new HandlerThread(TAG);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!start(codecInfo.getName(), width, height, previewFormat, roi,
+                        frameRate, bitRate)) {
+                    mFailed = true;
+                }
+            }
+        });
+        mStarted = true;
         return true;
     }
 
-    public void close() 
-    {  
-        try
-        {  
-            mediaCodec.stop();  
-            mediaCodec.release();  
-        }
-        catch (Exception e)
-        {   
-            e.printStackTrace();  
-        }  
-    }  
-   
-    public byte[] offerEncoder(byte[] input)   
-    {     
-        YV12toYUV420PackedSemiPlanar(input, yuv420, width, height);
-        try {  
-            ByteBuffer[] inputBuffers = mediaCodec.getInputBuffers();  
-            ByteBuffer[] outputBuffers = mediaCodec.getOutputBuffers();  
-            int inputBufferIndex = mediaCodec.dequeueInputBuffer(-1);  
-            if (inputBufferIndex >= 0)   
-            {  
-            	long pts = computePresentationTime(frameIndex, frameRate);
-                ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];  
-                inputBuffer.clear();  
-                inputBuffer.put(yuv420, 0, yuv420.length);  
-                mediaCodec.queueInputBuffer(inputBufferIndex, 0, yuv420.length, pts, 0);  
-                frameIndex++;
-            }  
-  
-            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();  
-            int outputBufferIndex = mediaCodec.dequeueOutputBuffer(bufferInfo, timeoutUSec);
-
-            while (outputBufferIndex >= 0)   
-            {  
-                ByteBuffer outputBuffer = outputBuffers[outputBufferIndex];  
-                byte[] outData = new byte[bufferInfo.size];  
-                outputBuffer.get(outData);  
-                  
-                if (spsPpsInfo == null)  
-                {
-                    ByteBuffer spsPpsBuffer = ByteBuffer.wrap(outData);    
-                    if (spsPpsBuffer.getInt() == 0x00000001)   
-                    {
-                        spsPpsInfo = new byte[outData.length];  
-                        System.arraycopy(outData, 0, spsPpsInfo, 0, outData.length); 
-                    }   
-                    else   
-                    {    
-                    	return null;  
-                    }  
+    private boolean start(String name, int width, int height, int previewFormat, Roi roi,
+                          int frameRate, int bitRate) {
+        try {
+            mCodec = MediaCodec.createByCodecName(name);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot create " + name, e);
+            return false;
+        }
+
+        mPreviewWidth = width;
+        mPreviewHeight = height;
+        mRoi = null;
+        mCropped = null;
+        if (!roi.isFull(width, height)) {
+            if (previewFormat == ImageFormat.NV21) {
+                // Encoders want the size in whole macroblocks
+                mRoi = roi.alignOutput(16);
+                width = mRoi.outputWidth();
+                height = mRoi.outputHeight();
+                mCropped = new byte[Nv21.size(width, height)];
+                // Fewer pixels need proportionally fewer bits for the same quality
+                bitRate = Math.max(MIN_BIT_RATE,
+                        (int) ((long) bitRate * width * height / (mPreviewWidth * mPreviewHeight)));
+            } else {
+                Log.e(TAG, "Cannot crop format " + previewFormat + ", encoding the whole preview");
+            }
+        }
+        mConverter = new YuvConverter(previewFormat, width, height);
+        mInput = new byte[YuvConverter.outputSize(width, height)];
+
+        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
+
+        try {
+            mCodec.setCallback(mCallback);
+            mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mCodec.start();
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            // E.g. a region size the encoder does not take, CodecException
+            // is an IllegalStateException
+            Log.e(TAG, "Cannot start " + name + " at " + width + "x" + height, e);
+            mCodec.release();
+            mCodec = null;
+            return false;
+        }
+        Log.d(TAG, "Encoding " + width + "x" + height + " at " + bitRate / 1000 + " kbit/s");
+        return true;
+    }
+
+    // Stops the codec on the encoder thread without waiting for it, ahead of
+    // whatever a later init() posts. Access units that were not taken yet
+    // are discarded.
+    public void close() {
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        mFailed = false;
+        mHandler.post(mStop);
+    }
+
+    // Stops the codec and then the encoder thread, and waits for both, e.g.
+    // before the camera goes away. Not for the camera callback.
+    public void release() {
+        close();
+        if (mThread == null) {
+            return;
+        }
+        mThread.quitSafely();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+        mHandler = null;
+    }
+
+    // Encoder thread: after this the codec delivers no more access units
+    private final Runnable mStop = new Runnable() {
+        @Override
+        public void run() {
+            if (mCodec != null) {
+                try {
+                    mCodec.stop();
+                } catch (IllegalStateException e) {
+                    Log.e(TAG, "Failed to stop codec", e);
+                }
+                mCodec.release();
+                mCodec = null;
+            }
+            mConfig = null;
+            mFreeInputs.clear();
+
+            byte[] pending;
+            synchronized (AvcEncoder.this) {
+                pending = mPending;
+                mPending = null;
+            }
+            if (pending != null) {
+                mListener.onPreviewReleased(pending);
+            }
+            FrameBuffer frame;
+            while ((frame = mReady.poll()) != null) {
+                mFree.offer(frame);
+            }
+        }
+    };
+
+    // Hands a preview captured at captureNanos to the encoder thread. Returns
+    // immediately; the preview comes back through the listener.
+    public void offer(byte[] preview, long captureNanos) {
+        byte[] stale;
+        synchronized (this) {
+            stale = mPending;
+            mPending = preview;
+            mPendingNanos = captureNanos;
+        }
+        if (stale != null) {
+            // The codec had no free input since the last preview
+            mDroppedPreviews++;
+            mListener.onPreviewReleased(stale);
+        }
+        mHandler.post(mFeed);
+    }
+
+    // Returns the oldest queued access unit, or null if there is none. The
+    // caller owns it until it calls release() on it.
+    FrameBuffer take() {
+        return mReady.poll();
+    }
+
+    // Asks the codec for an IDR as soon as possible, e.g. after the station
+    // lost a datagram
+    public void requestKeyFrame() {
+        Handler handler = mHandler;
+        if (mStarted && handler != null) {
+            handler.post(mRequestKeyFrame);
+        }
+    }
+
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    // The codec could not be started after init() returned, or failed later
+    // on. close() and stay with JPEG.
+    public boolean hasFailed() {
+        return mFailed;
+    }
+
+    public int getReadyCount() {
+        return mReady.size();
+    }
+
+    public long getDroppedPreviews() {
+        return mDroppedPreviews;
+    }
+
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    private final FrameBuffer.Pool mPool = new FrameBuffer.Pool() {
+        @Override
+        public void recycle(FrameBuffer frame) {
+            mFree.offer(frame);
+        }
+    };
+
+    private final Runnable mFeed = new Runnable() {
+        @Override
+        public void run() {
+            feed();
+        }
+    };
+
+    private final Runnable mRequestKeyFrame = new Runnable() {
+        @Override
+        public void run() {
+            if (mCodec != null) {
+                mCodec.setParameters(mSyncFrame);
+            }
+        }
+    };
+
+    // Encoder thread: converts the parked preview if the codec has room
+    private void feed() {
+        if (mCodec == null || mFreeInputs.isEmpty()) {
+            return;
+        }
+        byte[] preview;
+        long captureNanos;
+        synchronized (this) {
+            preview = mPending;
+            captureNanos = mPendingNanos;
+            mPending = null;
+        }
+        if (preview == null) {
+            return;
+        }
+        int index = mFreeInputs.poll();
+        if (mRoi != null) {
+            Nv21.crop(preview, mPreviewWidth, mPreviewHeight, mRoi.left, mRoi.top,
+                    mRoi.width, mRoi.height, mRoi.scale, mCropped);
+            mConverter.toNv12(mCropped, mInput);
+        } else {
+            mConverter.toNv12(preview, mInput);
+        }
+        mListener.onPreviewReleased(preview);
+
+        ByteBuffer input = mCodec.getInputBuffer(index);
+        input.clear();
+        input.put(mInput);
+        long queuedNanos = SystemClock.elapsedRealtimeNanos();
+        PipelineStats.record(PipelineStats.STAGE_QUEUE, captureNanos, queuedNanos);
+        // The capture time travels with the frame through the codec
+        long pts = captureNanos / 1000;
+        mTimingPts[mTimingIndex] = pts;
+        mTimingQueued[mTimingIndex] = queuedNanos;
+        mTimingIndex = (mTimingIndex + 1) % TIMING_SLOTS;
+        mCodec.queueInputBuffer(index, 0, mInput.length, pts, 0);
+    }
+
+    // Encoder thread: when the frame with this pts was queued to the codec
+    private long queuedNanos(long pts) {
+        for (int i = 0; i < TIMING_SLOTS; i++) {
+            if (mTimingPts[i] == pts) {
+                return mTimingQueued[i];
+            }
+        }
+        return 0;
+    }
+
+    private void collect(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+        ByteBuffer output = codec.getOutputBuffer(index);
+        output.position(info.offset);
+        output.limit(info.offset + info.size);
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // Some codecs send the config in band instead of in the format
+            mConfig = new byte[info.size];
+            output.get(mConfig);
+        } else if (info.size > 0) {
+            FrameBuffer frame = mFree.poll();
+            boolean lost = false;
+            if (frame == null) {
+                // The writer fell behind, overwrite the oldest access unit
+                frame = mReady.poll();
+                lost = frame != null;
+            }
+            if (frame == null) {
+                // The writer took that one in the meantime and releases it
+                // once sent
+                try {
+                    frame = mFree.poll(RELEASE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (frame == null) {
+                    Log.w(TAG, "No buffer for an access unit, dropped it");
+                    lost = true;
                 }
-                else
-                { 
-                	outputStream.write(outData);
-                }  
-                  
-                mediaCodec.releaseOutputBuffer(outputBufferIndex, false);  
-                outputBufferIndex = mediaCodec.dequeueOutputBuffer(bufferInfo, timeoutUSec);  
-            }  
-            byte[] ret = outputStream.toByteArray();
-            if (ret.length > 5 && ret[4] == 0x65) //key frame need to add sps pps
-            {            	
-                outputStream.reset();
-                outputStream.write(spsPpsInfo);
-                outputStream.write(ret);
-            }  
-              
-        }
-        catch (Throwable t) 
-        {  
-            t.printStackTrace();  
-        }  
-        byte[] ret = outputStream.toByteArray();
-        outputStream.reset();
-        return ret;  
-    }  
-    
-    public byte[] YV12toYUV420PackedSemiPlanar(final byte[] input, final byte[] output, final int width, final int height) 
-    {
-        for (int i=0; i<height; i++)
-        	System.arraycopy(input, yStride*i, output, yStride*i, yStride); // Y
-
-        for (int i=0; i<halfHeight; i++) 
-        {
-        	for (int j=0; j<halfWidth; j++)
-        	{
-	            output[ySize + (i*halfWidth + j)*2] = input[ySize + cSize + i*cStride + j]; // Cb (U)
-	            output[ySize + (i*halfWidth + j)*2 + 1] = input[ySize + i*cStride + j]; // Cr (V)
-        	}
-        }
-        return output;
-    }
-    
-    
-    private static MediaCodecInfo selectCodec(String mimeType) 
-    {
+            }
+            if (lost) {
+                // The frames after it can't be decoded
+                mDroppedFrames++;
+                codec.setParameters(mSyncFrame);
+            }
+            if (frame != null) {
+                frame.reset();
+                if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0 && mConfig != null) {
+                    frame.write(mConfig, 0, mConfig.length);
+                }
+                frame.write(output);
+                frame.format = CameraPreview.VIDEO_FORMAT_H264;
+                frame.captureNanos = info.presentationTimeUs * 1000;
+                frame.encodeStartNanos = queuedNanos(info.presentationTimeUs);
+                frame.encodedNanos = SystemClock.elapsedRealtimeNanos();
+                PipelineStats.record(PipelineStats.STAGE_ENCODE, frame.encodeStartNanos, frame.encodedNanos);
+                mReady.offer(frame);
+                mListener.onFrameReady();
+            }
+        }
+        codec.releaseOutputBuffer(index, false);
+    }
+
+    private final MediaCodec.Callback mCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            mFreeInputs.add(index);
+            feed();
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            collect(codec, index, info);
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "Codec error", e);
+            if (codec == mCodec) {
+                // No more output, CameraPreview goes back to JPEG
+                mFailed = true;
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            cacheConfig(format);
+        }
+    };
+
+    private void cacheConfig(MediaFormat format) {
+        ByteBuffer sps = format.getByteBuffer("csd-0");
+        ByteBuffer pps = format.getByteBuffer("csd-1");
+        if (sps == null || pps == null) {
+            return;
+        }
+        // Both already carry Annex B start codes
+        mConfig = new byte[sps.remaining() + pps.remaining()];
+        sps.get(mConfig, 0, sps.remaining());
+        pps.get(mConfig, mConfig.length - pps.remaining(), pps.remaining());
+        Log.d(TAG, "Cached " + mConfig.length + " bytes of SPS/PPS");
+    }
+
+    private static boolean supportsSemiPlanar(MediaCodecInfo codecInfo) {
+        int[] colorFormats = codecInfo.getCapabilitiesForType(MIME_TYPE).colorFormats;
+        for (int colorFormat : colorFormats) {
+            if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static MediaCodecInfo selectCodec(String mimeType) {
         int numCodecs = MediaCodecList.getCodecCount();
-        for (int i = 0; i < numCodecs; i++) 
-        {
+        for (int i = 0; i < numCodecs; i++) {
             MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-
-            if (!codecInfo.isEncoder())
+            if (!codecInfo.isEncoder()) {
                 continue;
-
-            String[] types = codecInfo.getSupportedTypes();
-            for (int j = 0; j < types.length; j++)
-            {
-                if (types[j].equalsIgnoreCase(mimeType))
+            }
+            for (String type : codecInfo.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mimeType)) {
                     return codecInfo;
+                }
             }
         }
         return null;
     }
-    
-    private long computePresentationTime(long frameIndex, int framerate) 
-    {
-        return 132 + frameIndex * 1000000 / framerate;
-    }
 }
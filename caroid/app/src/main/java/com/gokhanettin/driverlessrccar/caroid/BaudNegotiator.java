@@ -0,0 +1,170 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// Moves the serial link off DEFAULT_BAUD_RATE once the Arduino talks binary,
+// see SerialCodec. For each rate, fastest first:
+//   1. TYPE_BAUD with the rate. The firmware echoes it and switches; if it
+//      does not echo, it can't switch and negotiation ends.
+//   2. The phone switches too and sends PINGS full size pings, which must all
+//      come back intact within ECHO_TIMEOUT_MILLIS each.
+//   3. TYPE_BAUD_CONFIRM with the rate, echoed if the firmware is at it.
+// The firmware goes back to DEFAULT_BAUD_RATE whenever REVERT_MILLIS pass
+// without a valid frame from the phone, so a rate that fails in either
+// direction, or a confirmation echo that got lost, costs about a second
+// before both ends meet at the default again. At the new rate the phone
+// sends a ping every KEEPALIVE_MILLIS to keep it.
+class BaudNegotiator {
+    static final int DEFAULT_BAUD_RATE = 115200;
+    // Exact on the 16 MHz AVR, unlike 115200, and within what CP21xx, FTDI
+    // and the UNO's 16U2 can do. Our CH34x driver stops at 115200, rates the
+    // phone side can't set are skipped before asking the firmware.
+    static final int[] LADDER = {1000000, 500000, 250000};
+    static final int PINGS = 8;
+    static final long ECHO_TIMEOUT_MILLIS = 100;
+    // BAUD_REVERT_MS in carino.ino
+    static final long REVERT_MILLIS = 1000;
+    static final long KEEPALIVE_MILLIS = 250;
+    // After a failed negotiation the next one waits RETRY_MILLIS, doubled
+    // with every further failure up to MAX_RETRY_MILLIS
+    static final long RETRY_MILLIS = 60 * 1000L;
+    static final long MAX_RETRY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    interface Link {
+        // Whether setBaudRate() is expected to take the rate
+        boolean supportsBaudRate(int baudRate);
+
+        void setBaudRate(int baudRate) throws IOException;
+
+        // Queues a frame for the Arduino, the array is not reused
+        void write(byte[] frame);
+    }
+
+    private final Link mLink;
+
+    // Synchronized by 'mLock', the echo that exchange() waits for
+    private final Object mLock = new Object();
+    private final byte[] mExpected = new byte[SerialCodec.MAX_PAYLOAD];
+    private int mExpectedType = -1;
+    private int mExpectedLength;
+    private boolean mEchoed;
+
+    private boolean mAnswered;
+
+    BaudNegotiator(Link link) {
+        mLink = link;
+    }
+
+    // Called with every frame from the Arduino, on the reader thread
+    void onFrame(int type, byte[] payload, int length) {
+        synchronized (mLock) {
+            if (type == mExpectedType && length == mExpectedLength
+                    && equals(payload, mExpected, length)) {
+                mEchoed = true;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    // Whether the firmware took part, false if it never echoed TYPE_BAUD
+    boolean isAnswered() {
+        return mAnswered;
+    }
+
+    // Returns the rate the link ended up at. preferred, e.g. what worked
+    // last time, is tried before the ladder.
+    int negotiate(int preferred) throws IOException, InterruptedException {
+        for (int i = -1; i < LADDER.length; i++) {
+            int rate = i < 0 ? preferred : LADDER[i];
+            if (rate <= DEFAULT_BAUD_RATE || i >= 0 && rate == preferred
+                    || !mLink.supportsBaudRate(rate)) {
+                continue;
+            }
+            if (!exchangeBaudRate(SerialCodec.TYPE_BAUD, rate)) {
+                // Firmware without the handshake, or a link that broke down
+                break;
+            }
+            mAnswered = true;
+            if (tryRate(rate)) {
+                return rate;
+            }
+        }
+        return DEFAULT_BAUD_RATE;
+    }
+
+    // How long to wait before negotiating again after failures in a row
+    static long retryDelayMillis(int failures) {
+        if (failures <= 0) {
+            return 0;
+        }
+        long delay = RETRY_MILLIS;
+        for (int i = 1; i < failures && delay < MAX_RETRY_MILLIS; i++) {
+            delay *= 2;
+        }
+        return Math.min(delay, MAX_RETRY_MILLIS);
+    }
+
+    // The firmware has switched, returns false once both are back at the
+    // default
+    private boolean tryRate(int rate) throws IOException, InterruptedException {
+        try {
+            mLink.setBaudRate(rate);
+            boolean stable = true;
+            byte[] frame = new byte[SerialCodec.MAX_FRAME_SIZE];
+            for (int i = 0; i < PINGS && stable; i++) {
+                stable = exchange(frame, SerialCodec.encodePing(i, frame));
+            }
+            if (stable && exchangeBaudRate(SerialCodec.TYPE_BAUD_CONFIRM, rate)) {
+                return true;
+            }
+        } catch (IOException e) {
+            // The driver does not do this rate, the firmware reverts anyway
+        }
+        // The last frame at the new rate went out before this, the firmware
+        // reverts at most REVERT_MILLIS after it got that
+        mLink.setBaudRate(DEFAULT_BAUD_RATE);
+        Thread.sleep(REVERT_MILLIS + ECHO_TIMEOUT_MILLIS);
+        return false;
+    }
+
+    private boolean exchangeBaudRate(int type, int rate) throws InterruptedException {
+        byte[] frame = new byte[SerialCodec.MAX_FRAME_SIZE];
+        return exchange(frame, SerialCodec.encodeBaudRate(type, rate, frame));
+    }
+
+    // Writes a frame and waits for the same frame to come back
+    private boolean exchange(byte[] frame, int length) throws InterruptedException {
+        synchronized (mLock) {
+            mExpectedType = frame[2] & 0xff;
+            mExpectedLength = frame[1] & 0xff;
+            System.arraycopy(frame, SerialCodec.HEADER_SIZE, mExpected, 0, mExpectedLength);
+            mEchoed = false;
+        }
+        mLink.write(Arrays.copyOf(frame, length));
+        long deadline = System.nanoTime() + ECHO_TIMEOUT_MILLIS * 1000000L;
+        synchronized (mLock) {
+            try {
+                while (!mEchoed) {
+                    long leftNanos = deadline - System.nanoTime();
+                    if (leftNanos <= 0) {
+                        break;
+                    }
+                    mLock.wait(leftNanos / 1000000, (int) (leftNanos % 1000000));
+                }
+                return mEchoed;
+            } finally {
+                mExpectedType = -1;
+            }
+        }
+    }
+
+    private static boolean equals(byte[] a, byte[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -4,36 +4,61 @@ package com.gokhanettin.driverlessrccar.caroid;
 import android.content.Context;
 import android.graphics.ImageFormat;
 import android.graphics.PixelFormat;
-import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.hardware.Camera;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback {
     private static final String TAG = "CameraPreview";
     private SurfaceHolder mHolder;
-    private Camera mCamera;
+    private volatile Camera mCamera;
     private Camera.Size mPreviewSize;
     private int mMaxFps;
-    private final LinkedList<byte[]> mQueue = new LinkedList<>();
+    private int mPreviewFormat;
     private static final int MAX_QUEUE_SIZE = 2;
     private static final int BUFFER_COUNT = MAX_QUEUE_SIZE * 2 + 1;
-
-    public int jpegQuality = 70;
+    private final FrameRing mRing;
+    private final JpegEncoder mJpegEncoder;
+
+    public static final int VIDEO_FORMAT_JPEG = 0;
+    public static final int VIDEO_FORMAT_H264 = 1;
+    // Y plane only, see LumaEncoder
+    public static final int VIDEO_FORMAT_LUMA = 2;
+    private static final int AVC_BIT_RATE = 1000000;
+
+    // Selected by the station with the "V" command
+    public volatile int videoFormat = VIDEO_FORMAT_JPEG;
+    public volatile int jpegQuality = 70;
+    // LumaEncoder.CODEC_* for VIDEO_FORMAT_LUMA, also set by "V"
+    public volatile int lumaCodec = LumaEncoder.CODEC_DELTA_LZ4;
+    // Integer downscale factor applied before encoding, see Nv21.downscale()
+    public volatile int previewScale = 1;
+    // Part of the preview that is encoded, set with the "R" command
+    private volatile Roi mRoi;
+    // What the running H.264 encoder was set up with
+    private Roi mEncoderRoi;
     public String flashMode;
     public UdpClient tcpClient;
 
-    private AvcEncoder encoder;
+    // Told whenever takePreviewFrame() may return something new, from the
+    // encoder threads
+    public interface FrameListener {
+        void onFrameReady();
+    }
+
+    private volatile FrameListener mFrameListener;
+    private final AtomicLong mReadyFrames = new AtomicLong();
+
+    private final AvcEncoder mEncoder = new AvcEncoder();
 
     public CameraPreview(Context context, Camera camera) {
         super(context);
@@ -74,15 +99,19 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         mCamera.setParameters(params);
 
         mPreviewSize = mCamera.getParameters().getPreviewSize();
+        mPreviewFormat = mCamera.getParameters().getPreviewFormat();
+        mRoi = Roi.full(mPreviewSize.width, mPreviewSize.height);
         Log.d(TAG, "Preview size is set to " + mPreviewSize.width + ", " + mPreviewSize.height);
+        mRing = new FrameRing(BUFFER_COUNT,
+                YuvConverter.sourceSize(mPreviewFormat, mPreviewSize.width, mPreviewSize.height),
+                MAX_QUEUE_SIZE);
+        mJpegEncoder = new JpegEncoder(this, mRing, MAX_QUEUE_SIZE);
+        mJpegEncoder.start();
 
         int[] fpsRange = new int[2];
         mCamera.getParameters().getPreviewFpsRange(fpsRange);
         Log.d(TAG, "Fps Range is set to " + fpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] +
                 ", " + fpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX]);
-
-        this.encoder = new AvcEncoder();
-        this.encoder.init(size.width, size.height, 15, 500000);
     }
 
     @Override
@@ -108,7 +137,8 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         // stop preview before making changes
         try {
             mCamera.stopPreview();
-            clearQueue();
+            // Also empties the camera's buffer queue
+            mCamera.setPreviewCallbackWithBuffer(null);
         } catch (Exception e){
             // ignore: tried to stop a non-existent preview
         }
@@ -118,13 +148,13 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
 
         // start preview with new settings
         try {
-            if (BUFFER_COUNT <= 0) {
-                mCamera.setPreviewCallback(mPreviewCallback);
-            } else {
-                for (int i = 0; i < BUFFER_COUNT; i++)
-                    mCamera.addCallbackBuffer(new byte[getPreviewWidth() * getPreviewHeight() * 3]);
-                mCamera.setPreviewCallbackWithBuffer(mPreviewCallback);
+            // Slots still being encoded come back through release()
+            mRing.reclaim();
+            for (int i = 0; i < mRing.capacity(); i++) {
+                if (mRing.state(i) == FrameRing.STATE_CAMERA)
+                    mCamera.addCallbackBuffer(mRing.buffer(i));
             }
+            mCamera.setPreviewCallbackWithBuffer(mPreviewCallback);
             mCamera.setPreviewDisplay(mHolder);
             mCamera.startPreview();
 
@@ -142,8 +172,11 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         if (camera == null) {
             mCamera.setPreviewCallback(null);
             mHolder.removeCallback(this);
+            mEncoder.release();
+            mJpegEncoder.stop();
         } else {
             mHolder.addCallback(this);
+            mJpegEncoder.start();
             Camera.Parameters params = camera.getParameters();
             params.setPreviewSize(mPreviewSize.width, mPreviewSize.height);
             params.setPreviewFpsRange(mMaxFps, mMaxFps);
@@ -152,20 +185,95 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         mCamera = camera;
     }
 
-    public byte[] getPreviewJpeg() {
-        byte[] jpeg = null;
-        synchronized (mQueue) {
-            if (mQueue.size() > 0) {
-                byte[] preview = mQueue.poll();
-                jpeg = previewToJpeg(preview, mPreviewSize.width, mPreviewSize.height);
-                if (BUFFER_COUNT > 0 && mCamera != null)
-                    mCamera.addCallbackBuffer(preview);
-            }
+    // Takes the next encoded frame in the current videoFormat, or returns null
+    // if none is finished yet. JPEG and luma frames both come from the
+    // JpegEncoder workers. The caller reads it in place and must call
+    // release() on it once it is sent.
+    public FrameBuffer takePreviewFrame() {
+        if (videoFormat == VIDEO_FORMAT_H264) {
+            // Previews go straight from the camera to the encoder thread, see
+            // mPreviewCallback
+            return mEncoder.take();
+        }
+        return mJpegEncoder.take();
+    }
+
+    public void setFrameListener(FrameListener listener) {
+        mFrameListener = listener;
+    }
+
+    // Frames finished so far, tells a new frame from one that is still waiting
+    public long getReadyFrameCount() {
+        return mReadyFrames.get();
+    }
+
+    void onFrameReady() {
+        mReadyFrames.incrementAndGet();
+        FrameListener listener = mFrameListener;
+        if (listener != null) {
+            listener.onFrameReady();
         }
-        return jpeg;
     }
 
-    public int getPreviewCount() { return mQueue.size(); }
+    // Encodes only the given rectangle of the preview, shrunk by scale. Returns
+    // false and keeps the current region if it does not fit the preview.
+    public boolean setRoi(int left, int top, int width, int height, int scale) {
+        Roi roi = Roi.clip(left, top, width, height, scale, getPreviewWidth(), getPreviewHeight());
+        if (roi == null) {
+            return false;
+        }
+        mRoi = roi;
+        Log.d(TAG, "Encoding region " + roi);
+        return true;
+    }
+
+    public void resetRoi() {
+        mRoi = Roi.full(getPreviewWidth(), getPreviewHeight());
+    }
+
+    Roi getRoi() {
+        return mRoi;
+    }
+
+    // Skips previews that did not change, see ChangeDetector. Set by the
+    // station with the "D" command, a threshold of 0 turns it off.
+    public void setChangeDetection(int threshold, int refreshInterval) {
+        mJpegEncoder.setChangeDetection(threshold, refreshInterval);
+    }
+
+    // JpegEncoder.MODE_*, selected by the station with the "J" command
+    public void setJpegMode(int mode) {
+        mJpegEncoder.setMode(mode);
+    }
+
+    // Asks the H.264 encoder for a key frame, e.g. after the station lost a
+    // datagram. Ignored for JPEG.
+    public void requestKeyFrame() {
+        mEncoder.requestKeyFrame();
+    }
+
+    // Encoded frames waiting to be sent
+    public int getPreviewCount() { return mJpegEncoder.getReadyCount() + mEncoder.getReadyCount(); }
+
+    // Previews or frames dropped because an encoder or the sender fell behind,
+    // and previews encoded and handed back to the camera
+    public long getDroppedPreviews() {
+        return mRing.getDroppedCount() + mJpegEncoder.getDroppedCount() + mEncoder.getDroppedPreviews();
+    }
+
+    // Encoded frames dropped because the sender fell behind
+    public long getDroppedFrames() {
+        return mJpegEncoder.getDroppedCount();
+    }
+
+    public long getRecycledPreviews() {
+        return mRing.getRecycledCount();
+    }
+
+    // Previews sent as empty frames because they did not change
+    public long getUnchangedPreviews() {
+        return mJpegEncoder.getUnchangedCount();
+    }
 
     public int getPreviewWidth() {
         return mPreviewSize.width;
@@ -190,51 +298,76 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         }
     }
 
-    private void clearQueue() {
-        synchronized (mQueue) {
-            mQueue.clear();
+    void recycle(byte[] buffer) {
+        Camera camera = mCamera;
+        if (buffer != null && camera != null)
+            camera.addCallbackBuffer(buffer);
+    }
+
+    // Starts or stops the H.264 encoder when the station switched videoFormat,
+    // restarts it when the region changed. Returns true if previews are queued
+    // for the JpegEncoder workers.
+    private boolean updateEncoder() {
+        Roi roi = mRoi;
+        boolean h264 = videoFormat == VIDEO_FORMAT_H264;
+        if (!h264 || !roi.equals(mEncoderRoi)) {
+            if (mEncoder.isStarted()) {
+                mEncoder.close();
+            }
+            if (!h264) {
+                return true;
+            }
+        }
+        if (mEncoder.hasFailed()) {
+            mEncoder.close();
+            Log.e(TAG, "H.264 encoder did not start, staying with JPEG");
+            videoFormat = VIDEO_FORMAT_JPEG;
+            return true;
         }
+        if (!mEncoder.isStarted()) {
+            mEncoderRoi = roi;
+            if (!mEncoder.init(getPreviewWidth(), getPreviewHeight(), mPreviewFormat, roi,
+                    mMaxFps, AVC_BIT_RATE, mEncoderListener)) {
+                Log.e(TAG, "H.264 is not available, staying with JPEG");
+                videoFormat = VIDEO_FORMAT_JPEG;
+                return true;
+            }
+            // Hand previews still waiting for JPEG back to the camera
+            int slot;
+            while ((slot = mRing.acquire()) >= 0) {
+                recycle(mRing.release(slot));
+            }
+        }
+        return false;
     }
 
+    private final AvcEncoder.Listener mEncoderListener = new AvcEncoder.Listener() {
+        @Override
+        public void onPreviewReleased(byte[] preview) {
+            int slot = mRing.indexOf(preview);
+            if (slot >= 0) {
+                recycle(mRing.release(slot));
+            }
+        }
+
+        @Override
+        public void onFrameReady() {
+            CameraPreview.this.onFrameReady();
+        }
+    };
+
     private Camera.PreviewCallback mPreviewCallback = new Camera.PreviewCallback() {
         @Override
         public void onPreviewFrame(byte[] data, Camera camera) {
-            if (data.length >= getPreviewWidth() * getPreviewHeight()) {
-                synchronized (mQueue) {
-                    if (mQueue.size() == MAX_QUEUE_SIZE) {
-                        byte[] buff = mQueue.poll();
-                        if (BUFFER_COUNT > 0)
-                            mCamera.addCallbackBuffer(buff);
-                    }
-                    mQueue.add(data);
+            long nanos = SystemClock.elapsedRealtimeNanos();
+            if (!updateEncoder()) {
+                if (mRing.take(data, nanos) >= 0) {
+                    mEncoder.offer(data, nanos);
                 }
+                return;
             }
+            recycle(mRing.publish(data, nanos));
+            mJpegEncoder.onPreviewReady();
         }
     };
-
-    private byte[] previewToJpeg(byte[] preview, int width, int height) {
-//        if (tcpClient != null) {
-//            jpegQuality = (int) Math.round(2 + Math.pow(tcpClient.sendProbability, 2) * 98);
-//            Log.d(TAG, "changing JPEG quality to " + jpegQuality);
-//        }
-
-        /* Uncomment to enable video stream */
-//        byte[] encData = null;
-//        do {
-//            encData = this.encoder.offerEncoder(preview);
-//        } while (encData == null || encData.length == 0);
-//
-//        Log.d(TAG, "Frame captured, size: " + encData.length);
-//        return encData;
-
-        byte[] jpeg = null;
-        YuvImage image = new YuvImage(preview, ImageFormat.NV21, width, height, null);
-        Rect r = new Rect(0, 0, width, height);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        boolean ok = image.compressToJpeg(r, jpegQuality, baos);
-        if (ok) {
-            jpeg = baos.toByteArray();
-        }
-        return jpeg;
-    }
 }
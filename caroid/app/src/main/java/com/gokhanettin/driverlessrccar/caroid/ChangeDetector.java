@@ -0,0 +1,100 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+// Decides whether a preview is worth encoding, by comparing it block by block
+// with the last one that was. Set up by the station with the "D" command.
+//
+// The region of the Roi is split into BLOCK_SIZE squares, and the mean luma
+// of every block is estimated from a sparse grid of samples, a few tens of
+// microseconds per frame. A frame has changed when the mean of any block moved
+// by more than the threshold, so a small moving object counts as much as a
+// change of the whole scene. Every refreshInterval frames one is encoded
+// anyway, so that a lost frame or a slow drift in the scene do not stick.
+//
+// Not thread safe: JpegEncoder calls update() in capture order under the lock
+// that orders its workers.
+class ChangeDetector {
+    static final int BLOCK_SIZE = 16;
+    // Every 4th pixel of every 4th row, 16 samples per block
+    private static final int SAMPLE_STEP = 4;
+    static final int MAX_THRESHOLD = 255;
+    static final int MAX_REFRESH_INTERVAL = 1000;
+
+    private volatile int mThreshold;
+    private volatile int mRefreshInterval;
+    private volatile long mUnchangedCount;
+
+    // Block means of the last frame that changed, and of the current one
+    private int[] mReference = new int[0];
+    private int[] mCurrent = new int[0];
+    private Roi mReferenceRoi;
+    private int mSinceRefresh;
+    // Set when the settings change, the reference may be from long ago
+    private volatile boolean mStale = true;
+
+    // threshold is in luma levels, 0 turns the detector off and every frame
+    // is encoded
+    void setThreshold(int threshold, int refreshInterval) {
+        mRefreshInterval = refreshInterval;
+        mThreshold = threshold;
+        mStale = true;
+    }
+
+    boolean isEnabled() {
+        return mThreshold > 0;
+    }
+
+    // Frames that were found unchanged since the start
+    long getUnchangedCount() {
+        return mUnchangedCount;
+    }
+
+    // Returns true if the region of the preview differs from the last frame
+    // that this returned true for, or if a refresh is due. Only the Y plane
+    // at the front of preview is read.
+    boolean update(byte[] preview, int width, Roi roi) {
+        int threshold = mThreshold;
+        int columns = roi.width / BLOCK_SIZE;
+        int rows = roi.height / BLOCK_SIZE;
+        int blocks = columns * rows;
+        if (mCurrent.length != blocks) {
+            mCurrent = new int[blocks];
+        }
+
+        int samples = (BLOCK_SIZE / SAMPLE_STEP) * (BLOCK_SIZE / SAMPLE_STEP);
+        for (int by = 0; by < rows; by++) {
+            for (int bx = 0; bx < columns; bx++) {
+                int start = (roi.top + by * BLOCK_SIZE) * width + roi.left + bx * BLOCK_SIZE;
+                int sum = 0;
+                for (int y = 0; y < BLOCK_SIZE; y += SAMPLE_STEP) {
+                    int row = start + y * width;
+                    for (int x = 0; x < BLOCK_SIZE; x += SAMPLE_STEP) {
+                        sum += preview[row + x] & 0xff;
+                    }
+                }
+                mCurrent[by * columns + bx] = sum / samples;
+            }
+        }
+
+        boolean changed = mStale || !roi.equals(mReferenceRoi)
+                || ++mSinceRefresh >= mRefreshInterval;
+        for (int i = 0; i < blocks && !changed; i++) {
+            changed = Math.abs(mCurrent[i] - mReference[i]) > threshold;
+        }
+        if (!changed) {
+            mUnchangedCount++;
+            return false;
+        }
+        int[] reference = mReference;
+        mReference = mCurrent;
+        mCurrent = reference;
+        mReferenceRoi = roi;
+        mSinceRefresh = 0;
+        mStale = false;
+        return true;
+    }
+
+    // Forgets the reference, the next frame counts as changed
+    void reset() {
+        mStale = true;
+    }
+}
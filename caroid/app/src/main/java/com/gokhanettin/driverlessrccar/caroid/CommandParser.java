@@ -0,0 +1,73 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import java.nio.ByteBuffer;
+
+// Incremental parser for the "[<cmd>;<arg>...]" framing the station uses for
+// commands. Bytes may arrive in arbitrary pieces; a frame split across reads is
+// completed by a later feed(). Bytes outside brackets are ignored.
+class CommandParser {
+    static final int MAX_FRAME_LENGTH = 256;
+
+    interface Listener {
+        // Called with the bytes between the brackets. The array is reused for
+        // the next frame.
+        void onFrame(byte[] frame, int length);
+    }
+
+    private final Listener mListener;
+    private final byte[] mFrame = new byte[MAX_FRAME_LENGTH];
+    private int mLength = 0;
+    private boolean mInFrame = false;
+
+    private long mFrameCount = 0;
+    private long mOverflowCount = 0;
+
+    CommandParser(Listener listener) {
+        mListener = listener;
+    }
+
+    void feed(ByteBuffer data) {
+        if (data.hasArray()) {
+            feed(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            data.position(data.limit());
+        } else {
+            while (data.hasRemaining()) {
+                feed(data.get());
+            }
+        }
+    }
+
+    void feed(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            feed(data[i]);
+        }
+    }
+
+    private void feed(byte c) {
+        if (c == '[') {
+            // Also resyncs on a frame whose closing bracket was lost
+            mInFrame = true;
+            mLength = 0;
+        } else if (!mInFrame) {
+            return;
+        } else if (c == ']') {
+            mInFrame = false;
+            mFrameCount++;
+            mListener.onFrame(mFrame, mLength);
+        } else if (mLength < MAX_FRAME_LENGTH) {
+            mFrame[mLength++] = c;
+        } else {
+            // Runaway frame, drop it and wait for the next '['
+            mInFrame = false;
+            mOverflowCount++;
+        }
+    }
+
+    long getFrameCount() {
+        return mFrameCount;
+    }
+
+    long getOverflowCount() {
+        return mOverflowCount;
+    }
+}
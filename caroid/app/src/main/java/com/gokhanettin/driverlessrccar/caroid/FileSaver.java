@@ -16,6 +16,7 @@ class FileSaver {
     String mDirectory;
     FileWriter mFileWriter;
     int mImageID = 0;
+    private final float[] mSensorValues = new float[AndroidInput.SENSOR_COUNT];
 
     FileSaver() {
         String baseDir = android.os.Environment.getExternalStorageDirectory().getAbsolutePath();
@@ -38,17 +39,27 @@ class FileSaver {
     }
 
     void save(ArduinoInput arduinoInput, AndroidInput androidInput) {
-        mImageID++;
-
-        byte[] jpeg = androidInput.Camera.getPreviewJpeg();
+        if (androidInput.Camera.videoFormat != CameraPreview.VIDEO_FORMAT_JPEG) {
+            return;
+        }
+        FrameBuffer jpeg = androidInput.Camera.takePreviewFrame();
+        if (jpeg == null) {
+            return;
+        }
+        // An empty frame means the previous image is still current
+        boolean unchanged = jpeg.length() == 0;
+        if (!unchanged) {
+            mImageID++;
+        }
 
         String data = String.format(Locale.US, "%d,%d,%d,%d,%d,%.1f,%d",
                 System.currentTimeMillis(), mImageID,
                 arduinoInput.isOnline ? 1 : 0,
                 arduinoInput.speedCommand, arduinoInput.steeringCommand, arduinoInput.distance,
-                jpeg.length
+                jpeg.length()
         );
-        for (float sensorValue: androidInput.SensorValues) {
+        androidInput.getSensorValues(jpeg.captureNanos, mSensorValues);
+        for (float sensorValue: mSensorValues) {
             data += String.format(Locale.US, ",%.5f", sensorValue);
         }
         data += "\n";
@@ -61,14 +72,22 @@ class FileSaver {
             Log.e(TAG, "Unable to write into CSV file", exc);
         }
 
+        if (unchanged) {
+            jpeg.release();
+            return;
+        }
+
         try {
             FileOutputStream jpegStream = new FileOutputStream(mDirectory + File.separator + mImageID + ".jpg");
-            jpegStream.write(jpeg);
+            jpegStream.write(jpeg.array(), 0, jpeg.length());
             jpegStream.flush();
             jpegStream.close();
         }
         catch (IOException exc) {
             Log.e(TAG, "Unable to create JPEG file " + mImageID + ".jpg" , exc);
         }
+        finally {
+            jpeg.release();
+        }
     }
 }
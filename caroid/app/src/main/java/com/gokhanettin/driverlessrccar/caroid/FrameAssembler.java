@@ -0,0 +1,169 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import java.nio.ByteBuffer;
+
+// Reassembles frames split by FrameChunker. Java counterpart of the station's
+// FrameAssembler in stream_udp.py.
+//
+// A few frames may be in flight at once. As soon as a frame completes, every
+// older incomplete frame is abandoned, so a lost chunk costs exactly one frame.
+class FrameAssembler {
+    static final int DEFAULT_MAX_PENDING = 4;
+    // Far above any encoded preview, a larger length is a bad datagram and
+    // must not make us allocate it
+    static final int MAX_FRAME_LENGTH = 8 * 1024 * 1024;
+
+    static class Frame {
+        int id;
+        byte[] data = new byte[0];
+        int length;
+
+        private boolean[] mmReceived = new boolean[0];
+        private int mmCount;
+        private int mmReceivedCount;
+        private boolean mmPending;
+
+        private void reset(int id, int length, int count) {
+            this.id = id;
+            this.length = length;
+            if (data.length < length) {
+                data = new byte[length];
+            }
+            if (mmReceived.length < count) {
+                mmReceived = new boolean[count];
+            } else {
+                for (int i = 0; i < count; i++) {
+                    mmReceived[i] = false;
+                }
+            }
+            mmCount = count;
+            mmReceivedCount = 0;
+            mmPending = true;
+        }
+    }
+
+    private final Frame[] mFrames;
+    private boolean mHasCompleted = false;
+    private int mLastCompletedId;
+
+    private long mCompletedCount = 0;
+    private long mDroppedCount = 0;
+    private long mMalformedCount = 0;
+
+    FrameAssembler() {
+        this(DEFAULT_MAX_PENDING);
+    }
+
+    FrameAssembler(int maxPending) {
+        mFrames = new Frame[maxPending];
+        for (int i = 0; i < maxPending; i++) {
+            mFrames[i] = new Frame();
+        }
+    }
+
+    // Returns the completed frame, or null if more chunks are needed. The
+    // returned frame is owned by the assembler and is only valid until the next
+    // call.
+    Frame offer(byte[] datagram, int offset, int length) {
+        if (length < FrameChunker.HEADER_SIZE) {
+            mMalformedCount++;
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.wrap(datagram, offset, FrameChunker.HEADER_SIZE);
+        if (header.get() != FrameChunker.MAGIC || header.get() != FrameChunker.VERSION) {
+            mMalformedCount++;
+            return null;
+        }
+        int id = header.getInt();
+        int frameLength = header.getInt();
+        int chunkOffset = header.getInt();
+        int index = header.getShort() & 0xFFFF;
+        int count = header.getShort() & 0xFFFF;
+        int payloadLength = length - FrameChunker.HEADER_SIZE;
+        if (frameLength < 0 || frameLength > MAX_FRAME_LENGTH || count == 0 || index >= count
+                || chunkOffset < 0 || payloadLength > frameLength - chunkOffset) {
+            mMalformedCount++;
+            return null;
+        }
+
+        // Late chunk of a frame that is already completed or abandoned
+        if (mHasCompleted && id - mLastCompletedId <= 0) {
+            return null;
+        }
+
+        Frame frame = find(id);
+        if (frame == null) {
+            frame = allocate(id);
+            if (frame == null) {
+                return null;
+            }
+            frame.reset(id, frameLength, count);
+        } else if (frame.length != frameLength || frame.mmCount != count) {
+            mMalformedCount++;
+            return null;
+        }
+
+        if (!frame.mmReceived[index]) {
+            frame.mmReceived[index] = true;
+            frame.mmReceivedCount++;
+            System.arraycopy(datagram, offset + FrameChunker.HEADER_SIZE,
+                    frame.data, chunkOffset, payloadLength);
+        }
+
+        if (frame.mmReceivedCount < frame.mmCount) {
+            return null;
+        }
+
+        frame.mmPending = false;
+        mHasCompleted = true;
+        mLastCompletedId = id;
+        mCompletedCount++;
+        for (Frame f : mFrames) {
+            if (f.mmPending && f.id - id < 0) {
+                f.mmPending = false;
+                mDroppedCount++;
+            }
+        }
+        return frame;
+    }
+
+    long getCompletedCount() {
+        return mCompletedCount;
+    }
+
+    long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    long getMalformedCount() {
+        return mMalformedCount;
+    }
+
+    private Frame find(int id) {
+        for (Frame f : mFrames) {
+            if (f.mmPending && f.id == id) {
+                return f;
+            }
+        }
+        return null;
+    }
+
+    private Frame allocate(int id) {
+        Frame oldest = null;
+        for (Frame f : mFrames) {
+            if (!f.mmPending) {
+                return f;
+            }
+            if (oldest == null || f.id - oldest.id < 0) {
+                oldest = f;
+            }
+        }
+        // Every slot is in flight, give up on the oldest frame unless the new
+        // one is even older
+        if (id - oldest.id < 0) {
+            return null;
+        }
+        mDroppedCount++;
+        return oldest;
+    }
+}
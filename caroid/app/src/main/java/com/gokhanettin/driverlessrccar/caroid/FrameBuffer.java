@@ -0,0 +1,89 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Growable output buffer that is reused from frame to frame. Encoders write
+// into it like any OutputStream and the sender reads it back through view()
+// without copying.
+//
+// Encoders hand out pooled buffers: whoever takes one reads array() and
+// length() in place and calls release() once done, which gives it back to the
+// encoder's Pool. The array keeps the size of the largest frame so far, so it
+// stops growing after the first few frames.
+class FrameBuffer extends ByteArrayOutputStream {
+    interface Pool {
+        void recycle(FrameBuffer frame);
+    }
+
+    private final Pool mPool;
+    private ByteBuffer mView;
+
+    // SystemClock.elapsedRealtimeNanos() when the preview was captured and
+    // when encoding started and ended, see PipelineStats
+    long captureNanos;
+    long encodeStartNanos;
+    long encodedNanos;
+    // CameraPreview.VIDEO_FORMAT_* of the contents, the JPEG quality and the
+    // downscale factor the frame was encoded with
+    int format;
+    int quality;
+    int scale = 1;
+
+    FrameBuffer(int size) {
+        this(size, null);
+    }
+
+    FrameBuffer(int size, Pool pool) {
+        super(size);
+        mPool = pool;
+    }
+
+    // Gives a pooled buffer back, the contents must not be used afterwards
+    void release() {
+        if (mPool != null) {
+            mPool.recycle(this);
+        }
+    }
+
+    byte[] array() {
+        return buf;
+    }
+
+    int length() {
+        return count;
+    }
+
+    // Appends the remaining bytes of src without an intermediate array
+    void write(ByteBuffer src) {
+        int length = src.remaining();
+        reserve(length);
+        src.get(buf, count, length);
+        count += length;
+    }
+
+    // For encoders that write the array directly: returns it with at least
+    // length bytes free after length(). commit() adds what was written.
+    byte[] reserve(int length) {
+        if (count + length > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + length));
+        }
+        return buf;
+    }
+
+    void commit(int length) {
+        count += length;
+    }
+
+    // Returns the current contents as a ByteBuffer positioned at 0. The wrapper
+    // is only recreated when the underlying array had to grow.
+    ByteBuffer view() {
+        if (mView == null || mView.array() != buf) {
+            mView = ByteBuffer.wrap(buf);
+        }
+        mView.clear();
+        mView.limit(count);
+        return mView;
+    }
+}
@@ -0,0 +1,77 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import java.nio.ByteBuffer;
+
+// Splits a frame into datagrams that fit the path MTU.
+//
+// Every datagram starts with a fixed header (network byte order):
+//   magic (1) | version (1) | frame id (4) | frame length (4) |
+//   chunk offset (4) | chunk index (2) | chunk count (2)
+// followed by at most getPayloadSize() bytes of the frame.
+class FrameChunker {
+    static final byte MAGIC = (byte) 0xFC;
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 18;
+
+    // 1500 byte ethernet MTU minus IP/UDP headers, with some room for tunnels
+    static final int DEFAULT_DATAGRAM_SIZE = 1400;
+    static final int MAX_CHUNK_COUNT = 0xFFFF;
+
+    private final int mDatagramSize;
+    private final int mPayloadSize;
+    private int mFrameId = 0;
+
+    FrameChunker() {
+        this(DEFAULT_DATAGRAM_SIZE);
+    }
+
+    FrameChunker(int datagramSize) {
+        if (datagramSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("Datagram size is too small: " + datagramSize);
+        }
+        mDatagramSize = datagramSize;
+        mPayloadSize = datagramSize - HEADER_SIZE;
+    }
+
+    int getDatagramSize() {
+        return mDatagramSize;
+    }
+
+    int getPayloadSize() {
+        return mPayloadSize;
+    }
+
+    int nextFrameId() {
+        return ++mFrameId;
+    }
+
+    int chunkCount(int frameLength) {
+        if (frameLength <= 0) {
+            return 1;
+        }
+        int count = (frameLength + mPayloadSize - 1) / mPayloadSize;
+        if (count > MAX_CHUNK_COUNT) {
+            throw new IllegalArgumentException("Frame is too large: " + frameLength);
+        }
+        return count;
+    }
+
+    int chunkOffset(int index) {
+        return index * mPayloadSize;
+    }
+
+    int chunkLength(int frameLength, int index) {
+        return Math.max(0, Math.min(mPayloadSize, frameLength - chunkOffset(index)));
+    }
+
+    static void writeHeader(ByteBuffer dst, int frameId, int frameLength,
+                            int offset, int index, int count) {
+        dst.put(MAGIC);
+        dst.put(VERSION);
+        dst.putInt(frameId);
+        dst.putInt(frameLength);
+        dst.putInt(offset);
+        dst.putShort((short) index);
+        dst.putShort((short) count);
+    }
+}
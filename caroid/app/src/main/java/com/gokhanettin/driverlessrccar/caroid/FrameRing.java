@@ -0,0 +1,174 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Fixed set of preallocated preview buffers, each owned by one party at a time:
+//   STATE_CAMERA    queued with Camera.addCallbackBuffer() or about to be
+//   STATE_READY     filled by the camera, waiting for the encoder
+//   STATE_ENCODING  taken by the encoder
+// Ownership moves by compare-and-set on the slot state, so the camera callback
+// never waits for an encoder and vice versa. When more than maxReady previews
+// are waiting the oldest one is dropped and goes back to the camera.
+//
+// publish() and take() must be called from the camera thread, acquire() and
+// release() from any number of encoder threads.
+class FrameRing {
+    static final int STATE_CAMERA = 0;
+    static final int STATE_READY = 1;
+    static final int STATE_ENCODING = 2;
+
+    private final byte[][] mBuffers;
+    private final AtomicIntegerArray mStates;
+    // Written by the camera thread before a slot becomes ready
+    private final long[] mCaptureNanos;
+    private final long[] mSequence;
+    private long mNextSequence = 0;
+    private volatile int mMaxReady;
+
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mRecycled = new AtomicLong();
+
+    FrameRing(int capacity, int frameSize, int maxReady) {
+        mBuffers = new byte[capacity][];
+        for (int i = 0; i < capacity; i++) {
+            mBuffers[i] = new byte[frameSize];
+        }
+        mStates = new AtomicIntegerArray(capacity);
+        mCaptureNanos = new long[capacity];
+        mSequence = new long[capacity];
+        mMaxReady = maxReady;
+    }
+
+    int capacity() {
+        return mBuffers.length;
+    }
+
+    byte[] buffer(int slot) {
+        return mBuffers[slot];
+    }
+
+    int state(int slot) {
+        return mStates.get(slot);
+    }
+
+    long captureNanos(int slot) {
+        return mCaptureNanos[slot];
+    }
+
+    // Capture order of a ready or encoding slot
+    long sequence(int slot) {
+        return mSequence[slot];
+    }
+
+    // Takes effect with the next publish()
+    void setMaxReady(int maxReady) {
+        mMaxReady = maxReady;
+    }
+
+    // Slot of one of our buffers, or -1
+    int indexOf(byte[] buffer) {
+        for (int i = 0; i < mBuffers.length; i++) {
+            if (mBuffers[i] == buffer) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // The camera filled buffer at captureNanos. Returns a buffer to hand back
+    // to the camera because the oldest ready preview was dropped for it, or
+    // null.
+    byte[] publish(byte[] buffer, long captureNanos) {
+        int slot = indexOf(buffer);
+        if (slot < 0) {
+            return null;
+        }
+        mCaptureNanos[slot] = captureNanos;
+        mSequence[slot] = mNextSequence++;
+        mStates.set(slot, STATE_READY);
+
+        if (getReadyCount() <= mMaxReady) {
+            return null;
+        }
+        int oldest = oldestReady();
+        // Loses if an encoder took it in the meantime, then nothing is dropped
+        if (oldest >= 0 && mStates.compareAndSet(oldest, STATE_READY, STATE_CAMERA)) {
+            mDropped.incrementAndGet();
+            return mBuffers[oldest];
+        }
+        return null;
+    }
+
+    // Hands a buffer the camera just filled straight to an encoder. Returns
+    // its slot, or -1 if it is not one of ours.
+    int take(byte[] buffer, long captureNanos) {
+        int slot = indexOf(buffer);
+        if (slot >= 0) {
+            mCaptureNanos[slot] = captureNanos;
+            mStates.set(slot, STATE_ENCODING);
+        }
+        return slot;
+    }
+
+    // Takes the oldest ready preview for encoding. Returns its slot, or -1 if
+    // none is ready.
+    int acquire() {
+        while (true) {
+            int slot = oldestReady();
+            if (slot < 0) {
+                return -1;
+            }
+            if (mStates.compareAndSet(slot, STATE_READY, STATE_ENCODING)) {
+                return slot;
+            }
+            // Dropped by the camera or taken by another encoder, look again
+        }
+    }
+
+    // Returns the buffer of an encoded slot, to be handed back to the camera
+    byte[] release(int slot) {
+        mStates.set(slot, STATE_CAMERA);
+        mRecycled.incrementAndGet();
+        return mBuffers[slot];
+    }
+
+    // Gives all ready previews back to the camera, e.g. when the preview is
+    // restarted
+    void reclaim() {
+        for (int i = 0; i < mBuffers.length; i++) {
+            mStates.compareAndSet(i, STATE_READY, STATE_CAMERA);
+        }
+    }
+
+    int getReadyCount() {
+        int count = 0;
+        for (int i = 0; i < mBuffers.length; i++) {
+            if (mStates.get(i) == STATE_READY) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Previews that were dropped before an encoder got to them
+    long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    // Previews that went through an encoder and back to the camera
+    long getRecycledCount() {
+        return mRecycled.get();
+    }
+
+    private int oldestReady() {
+        int oldest = -1;
+        for (int i = 0; i < mBuffers.length; i++) {
+            if (mStates.get(i) == STATE_READY
+                    && (oldest < 0 || mSequence[i] < mSequence[oldest])) {
+                oldest = i;
+            }
+        }
+        return oldest;
+    }
+}
@@ -0,0 +1,102 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+// Puts frames that are encoded in parallel back into capture order. Workers
+// call begin() with the FrameRing sequence of the preview they took and
+// complete() when done. poll() only hands out a finished frame once every
+// older frame has been handed out or has failed, so a slow encode holds back
+// the frames after it instead of being overtaken by them.
+class FrameSequencer {
+    private final long[] mInFlight;
+    private int mInFlightCount = 0;
+    private final long[] mDoneSequence;
+    private final FrameBuffer[] mDone;
+    private int mDoneCount = 0;
+    private long mDropped = 0;
+
+    FrameSequencer(int capacity) {
+        mInFlight = new long[capacity];
+        mDoneSequence = new long[capacity];
+        mDone = new FrameBuffer[capacity];
+    }
+
+    synchronized void begin(long sequence) {
+        mInFlight[mInFlightCount++] = sequence;
+    }
+
+    // frame is null if encoding failed
+    synchronized void complete(long sequence, FrameBuffer frame) {
+        for (int i = 0; i < mInFlightCount; i++) {
+            if (mInFlight[i] == sequence) {
+                mInFlight[i] = mInFlight[--mInFlightCount];
+                break;
+            }
+        }
+        if (frame != null) {
+            mDoneSequence[mDoneCount] = sequence;
+            mDone[mDoneCount++] = frame;
+        }
+    }
+
+    // Removes and returns the oldest finished frame if no older one is still
+    // being encoded, otherwise null
+    synchronized FrameBuffer poll() {
+        int oldest = oldestDone();
+        if (oldest < 0) {
+            return null;
+        }
+        for (int i = 0; i < mInFlightCount; i++) {
+            if (mInFlight[i] < mDoneSequence[oldest]) {
+                return null;
+            }
+        }
+        return remove(oldest);
+    }
+
+    // Removes and returns the oldest finished frame for reuse when the sender
+    // fell behind, or null if there is none
+    synchronized FrameBuffer dropOldest() {
+        int oldest = oldestDone();
+        if (oldest < 0) {
+            return null;
+        }
+        mDropped++;
+        return remove(oldest);
+    }
+
+    // Removes and returns any finished frame, or null
+    synchronized FrameBuffer clear() {
+        return mDoneCount > 0 ? remove(mDoneCount - 1) : null;
+    }
+
+    // Frames being encoded or waiting to be polled
+    synchronized int size() {
+        return mInFlightCount + mDoneCount;
+    }
+
+    synchronized int getReadyCount() {
+        return mDoneCount;
+    }
+
+    synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    private int oldestDone() {
+        int oldest = -1;
+        for (int i = 0; i < mDoneCount; i++) {
+            if (oldest < 0 || mDoneSequence[i] < mDoneSequence[oldest]) {
+                oldest = i;
+            }
+        }
+        return oldest;
+    }
+
+    private FrameBuffer remove(int index) {
+        FrameBuffer frame = mDone[index];
+        mDoneCount--;
+        mDoneSequence[index] = mDoneSequence[mDoneCount];
+        mDone[index] = mDone[mDoneCount];
+        mDone[mDoneCount] = null;
+        return frame;
+    }
+}
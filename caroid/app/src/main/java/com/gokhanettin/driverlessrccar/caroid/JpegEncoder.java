@@ -0,0 +1,286 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+// JPEG encode stage between the FrameRing and the network writer. A small pool
+// of workers, one per spare core, compresses ready previews in parallel and a
+// FrameSequencer hands the results to the writer in capture order, so encoding
+// no longer adds to the send time of a frame.
+//
+// Nothing is allocated per frame on our side: JPEGs go into pooled
+// FrameBuffers that the writer reads in place and releases, and every worker
+// keeps a YuvImage per preview buffer. compressToJpeg() itself still allocates
+// a 4 KiB scratch array per call.
+//
+// In CameraPreview.VIDEO_FORMAT_LUMA the workers run a LumaEncoder instead of
+// compressToJpeg(), the rest of the stage is the same.
+//
+// With a ChangeDetector enabled, previews that hardly differ from the last
+// encoded one are not encoded at all. They come out as empty frames, so the
+// writer still sends the telemetry header and the station keeps showing the
+// previous image.
+//
+// Two modes, set by the station with the "J" command:
+//   MODE_PARALLEL       every ready preview is encoded as soon as a worker is
+//                       free, throughput scales with the number of workers
+//   MODE_KEEP_ONE_READY one frame is encoded ahead. A worker starts on the
+//                       latest preview whenever the writer takes the waiting
+//                       frame, so the writer never waits for an encode and no
+//                       CPU goes into frames that are never sent.
+// The camera only touches the FrameRing and the semaphore, never a lock the
+// workers hold.
+class JpegEncoder {
+    private static final String TAG = "JpegEncoder";
+    static final int MODE_PARALLEL = 0;
+    static final int MODE_KEEP_ONE_READY = 1;
+    private static final int MAX_WORKERS = 4;
+
+    private final CameraPreview mPreview;
+    private final FrameRing mRing;
+    private final int mMaxReady;
+    private final int mWorkerCount;
+    private final FrameSequencer mSequencer;
+    private final ArrayBlockingQueue<FrameBuffer> mFree;
+    // One permit per published preview and per released frame
+    private final Semaphore mWork = new Semaphore(0);
+    private final ChangeDetector mDetector = new ChangeDetector();
+    private Worker[] mWorkers;
+    private volatile int mMode = MODE_PARALLEL;
+
+    JpegEncoder(CameraPreview preview, FrameRing ring, int maxReady) {
+        mPreview = preview;
+        mRing = ring;
+        mMaxReady = maxReady;
+        // Leave a core for the camera and the network
+        mWorkerCount = Math.max(1, Math.min(MAX_WORKERS,
+                Runtime.getRuntime().availableProcessors() - 1));
+        // Each worker holds one, the writer one while sending, one is waiting
+        int buffers = mWorkerCount + 2;
+        mSequencer = new FrameSequencer(buffers);
+        mFree = new ArrayBlockingQueue<>(buffers);
+        // Two bits per pixel fit all but the largest quality settings
+        int size = preview.getPreviewWidth() * preview.getPreviewHeight() / 4;
+        for (int i = 0; i < buffers; i++) {
+            mFree.add(new FrameBuffer(size, mPool));
+        }
+    }
+
+    synchronized void start() {
+        if (mWorkers != null) {
+            return;
+        }
+        Log.d(TAG, "Starting " + mWorkerCount + " workers");
+        mWorkers = new Worker[mWorkerCount];
+        for (int i = 0; i < mWorkerCount; i++) {
+            mWorkers[i] = new Worker(i);
+            mWorkers[i].start();
+        }
+    }
+
+    // Stops the workers and discards frames that were not taken yet
+    synchronized void stop() {
+        if (mWorkers == null) {
+            return;
+        }
+        for (Worker worker : mWorkers) {
+            worker.interrupt();
+        }
+        for (Worker worker : mWorkers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mWorkers = null;
+        FrameBuffer frame;
+        while ((frame = mSequencer.clear()) != null) {
+            mFree.offer(frame);
+        }
+        mWork.drainPermits();
+        mDetector.reset();
+    }
+
+    void setMode(int mode) {
+        mMode = mode;
+        // The only ready preview is always the latest one
+        mRing.setMaxReady(mode == MODE_KEEP_ONE_READY ? 1 : mMaxReady);
+        mWork.release();
+    }
+
+    // Camera thread, after FrameRing.publish()
+    void onPreviewReady() {
+        mWork.release();
+    }
+
+    // Returns the next frame in capture order, or null if it is not finished
+    // yet. The caller owns the frame until it calls release() on it.
+    FrameBuffer take() {
+        return mSequencer.poll();
+    }
+
+    // See ChangeDetector.setThreshold()
+    void setChangeDetection(int threshold, int refreshInterval) {
+        mDetector.setThreshold(threshold, refreshInterval);
+    }
+
+    long getUnchangedCount() {
+        return mDetector.getUnchangedCount();
+    }
+
+    int getReadyCount() {
+        return mSequencer.getReadyCount();
+    }
+
+    // Frames encoded but overwritten before the writer took them
+    long getDroppedCount() {
+        return mSequencer.getDroppedCount();
+    }
+
+    private final FrameBuffer.Pool mPool = new FrameBuffer.Pool() {
+        @Override
+        public void recycle(FrameBuffer frame) {
+            mFree.offer(frame);
+            // Lets a worker encode the next frame ahead in MODE_KEEP_ONE_READY
+            mWork.release();
+        }
+    };
+
+    private class Worker extends Thread {
+        // One image per FrameRing slot, they only wrap the preview buffers
+        private final YuvImage[] mmImages = new YuvImage[mRing.capacity()];
+        private byte[] mmScaled;
+        private YuvImage mmScaledImage;
+        private final Rect mmRect = new Rect();
+        private final LumaEncoder mmLuma = new LumaEncoder();
+
+        Worker(int index) {
+            super(TAG + "-" + index);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                try {
+                    mWork.acquire();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                encodeNext();
+            }
+        }
+
+        private void encodeNext() {
+            int slot;
+            long sequence;
+            Roi roi = mPreview.getRoi().scaledBy(mPreview.previewScale);
+            boolean changed = true;
+            // Taking a preview and registering it must not be split up, or a
+            // later preview could be registered and polled first. The same
+            // goes for comparing it with the last changed one.
+            synchronized (mSequencer) {
+                if (mMode == MODE_KEEP_ONE_READY && mSequencer.size() > 0) {
+                    return;
+                }
+                slot = mRing.acquire();
+                if (slot < 0) {
+                    return;
+                }
+                sequence = mRing.sequence(slot);
+                mSequencer.begin(sequence);
+                if (mDetector.isEnabled()) {
+                    changed = mDetector.update(mRing.buffer(slot), mPreview.getPreviewWidth(), roi);
+                }
+            }
+
+            FrameBuffer frame = mFree.poll();
+            if (frame == null) {
+                // The writer fell behind, overwrite the oldest waiting frame
+                frame = mSequencer.dropOldest();
+                if (frame != null && frame.length() > 0) {
+                    // It may be what the detector compares with, frames
+                    // after it would come out empty
+                    mDetector.reset();
+                }
+            }
+            boolean ok = false;
+            if (frame != null) {
+                frame.captureNanos = mRing.captureNanos(slot);
+                frame.encodeStartNanos = SystemClock.elapsedRealtimeNanos();
+                ok = compress(slot, roi, changed, frame);
+                frame.encodedNanos = SystemClock.elapsedRealtimeNanos();
+                PipelineStats.record(PipelineStats.STAGE_QUEUE, frame.captureNanos, frame.encodeStartNanos);
+                PipelineStats.record(PipelineStats.STAGE_ENCODE, frame.encodeStartNanos, frame.encodedNanos);
+            }
+            mPreview.recycle(mRing.release(slot));
+            if (frame != null && !ok) {
+                mFree.offer(frame);
+                frame = null;
+            }
+            if (frame == null && changed) {
+                // The station never gets this one, compare with it no longer
+                mDetector.reset();
+            }
+            mSequencer.complete(sequence, frame);
+            if (frame != null) {
+                mPreview.onFrameReady();
+            }
+        }
+
+        // Quality and scale are set by the "Q" command or by the
+        // QualityController of the UdpClient. An unchanged preview leaves the
+        // frame empty.
+        private boolean compress(int slot, Roi roi, boolean changed, FrameBuffer jpeg) {
+            byte[] preview = mRing.buffer(slot);
+            int width = mPreview.getPreviewWidth();
+            int height = mPreview.getPreviewHeight();
+            jpeg.reset();
+            jpeg.scale = roi.scale;
+            if (mPreview.videoFormat == CameraPreview.VIDEO_FORMAT_LUMA) {
+                jpeg.format = CameraPreview.VIDEO_FORMAT_LUMA;
+                jpeg.quality = 0;
+                if (changed) {
+                    mmLuma.encode(preview, width, height, roi, mPreview.lumaCodec, jpeg);
+                }
+                return true;
+            }
+            jpeg.format = CameraPreview.VIDEO_FORMAT_JPEG;
+            jpeg.quality = mPreview.jpegQuality;
+            if (!changed) {
+                return true;
+            }
+            YuvImage image;
+            if (!roi.isFull(width, height)) {
+                // Cropping and shrinking first cuts the encode time in proportion
+                int scaledWidth = roi.outputWidth();
+                int scaledHeight = roi.outputHeight();
+                int size = Nv21.size(scaledWidth, scaledHeight);
+                if (mmScaled == null || mmScaled.length < size) {
+                    mmScaled = new byte[size];
+                }
+                Nv21.crop(preview, width, height, roi.left, roi.top, roi.width, roi.height,
+                        roi.scale, mmScaled);
+                if (mmScaledImage == null || mmScaledImage.getYuvData() != mmScaled
+                        || mmScaledImage.getWidth() != scaledWidth
+                        || mmScaledImage.getHeight() != scaledHeight) {
+                    mmScaledImage = new YuvImage(mmScaled, ImageFormat.NV21, scaledWidth, scaledHeight, null);
+                }
+                image = mmScaledImage;
+            } else {
+                if (mmImages[slot] == null) {
+                    mmImages[slot] = new YuvImage(preview, ImageFormat.NV21, width, height, null);
+                }
+                image = mmImages[slot];
+            }
+            mmRect.set(0, 0, image.getWidth(), image.getHeight());
+            return image.compressToJpeg(mmRect, jpeg.quality, jpeg);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock-free histogram of latencies in the spirit of HdrHistogram. Values are
+// counted in log-linear buckets: exact below 64, then 32 buckets per power of
+// two, so any value is reported within about 3%. Recording is a couple of
+// atomic operations and never allocates, so it can be called from the camera,
+// network and serial threads at once.
+class LatencyHistogram {
+    private static final int LINEAR_BITS = 5;
+    private static final int LINEAR_COUNT = 1 << LINEAR_BITS;
+    // Larger values are clamped, 2^40 ns is more than 18 minutes
+    static final long MAX_VALUE = (1L << 40) - 1;
+    private static final int BUCKET_COUNT = index(MAX_VALUE) + 1;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mTotalCount = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        } else if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        mCounts.incrementAndGet(index(value));
+        mTotalCount.incrementAndGet();
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    long getTotalCount() {
+        return mTotalCount.get();
+    }
+
+    long getMax() {
+        return mMax.get();
+    }
+
+    // Returns the value below which the given percentage (0-100) of the
+    // recorded values fall, or 0 if nothing was recorded. Concurrent records
+    // may or may not be taken into account.
+    long getValueAtPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += mCounts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mCounts.get(i);
+            if (count >= target) {
+                return Math.min(highestEquivalentValue(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    // Not atomic with respect to concurrent records, a few of them may survive
+    void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mTotalCount.set(0);
+        mMax.set(0);
+    }
+
+    // Values below 2 * LINEAR_COUNT map to themselves, above that every power
+    // of two is split into LINEAR_COUNT buckets
+    static int index(long value) {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - LINEAR_BITS);
+        return (shift << LINEAR_BITS) + (int) (value >>> shift);
+    }
+
+    static long highestEquivalentValue(int index) {
+        int shift = Math.max(0, (index >> LINEAR_BITS) - 1);
+        long lowest = (long) (index - (shift << LINEAR_BITS)) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,83 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+// Encodes only the Y plane of an NV21 preview, for CameraPreview's
+// VIDEO_FORMAT_LUMA. The payload starts with a small header of its own,
+// network byte order:
+//   magic 'Y' (1) | codec (1) | width (2) | height (2)
+// followed by the width x height plane in the given codec:
+//   CODEC_RAW        the bytes as they are
+//   CODEC_DELTA_LZ4  each pixel minus its left neighbour, the first pixel of
+//                    a row minus the one above, compressed as an LZ4 block.
+//                    Lossless, and the differences of a smooth image repeat
+//                    far more often than the pixels do.
+// The region and downscale factor of the Roi are applied before encoding.
+//
+// Instances keep their scratch buffers between frames and are not thread
+// safe, JpegEncoder gives every worker its own.
+class LumaEncoder {
+    static final int CODEC_RAW = 0;
+    static final int CODEC_DELTA_LZ4 = 1;
+    static final byte MAGIC = 'Y';
+    static final int HEADER_SIZE = 6;
+
+    private byte[] mPlane;
+    private byte[] mDelta;
+    private final int[] mTable = new int[Lz4.TABLE_SIZE];
+
+    static boolean isCodec(int codec) {
+        return codec == CODEC_RAW || codec == CODEC_DELTA_LZ4;
+    }
+
+    // Appends the header and the encoded plane to dst
+    void encode(byte[] preview, int width, int height, Roi roi, int codec, FrameBuffer dst) {
+        int outWidth = roi.outputWidth();
+        int outHeight = roi.outputHeight();
+        int size = outWidth * outHeight;
+
+        byte[] out = dst.reserve(HEADER_SIZE);
+        int offset = dst.length();
+        out[offset] = MAGIC;
+        out[offset + 1] = (byte) codec;
+        out[offset + 2] = (byte) (outWidth >>> 8);
+        out[offset + 3] = (byte) outWidth;
+        out[offset + 4] = (byte) (outHeight >>> 8);
+        out[offset + 5] = (byte) outHeight;
+        dst.commit(HEADER_SIZE);
+
+        if (codec == CODEC_RAW) {
+            out = dst.reserve(size);
+            Nv21.cropLuma(preview, width, roi.left, roi.top, roi.width, roi.height, roi.scale,
+                    out, dst.length());
+            dst.commit(size);
+            return;
+        }
+
+        byte[] plane = preview;
+        if (!roi.isFull(width, height)) {
+            if (mPlane == null || mPlane.length < size) {
+                mPlane = new byte[size];
+            }
+            Nv21.cropLuma(preview, width, roi.left, roi.top, roi.width, roi.height, roi.scale,
+                    mPlane, 0);
+            plane = mPlane;
+        }
+        if (mDelta == null || mDelta.length < size) {
+            mDelta = new byte[size];
+        }
+        delta(plane, outWidth, outHeight, mDelta);
+        out = dst.reserve(Lz4.maxCompressedLength(size));
+        dst.commit(Lz4.compress(mDelta, 0, size, out, dst.length(), mTable));
+    }
+
+    static void delta(byte[] plane, int width, int height, byte[] dst) {
+        byte above = 0;
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            dst[row] = (byte) (plane[row] - above);
+            above = plane[row];
+            for (int x = 1; x < width; x++) {
+                dst[row + x] = (byte) (plane[row + x] - plane[row + x - 1]);
+            }
+        }
+    }
+}
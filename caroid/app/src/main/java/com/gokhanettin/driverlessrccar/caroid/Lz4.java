@@ -0,0 +1,107 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import java.util.Arrays;
+
+// Compressor for the LZ4 block format, so that any LZ4 library can
+// decompress the output: a sequence of
+//   token (1) | literal length extension | literals |
+//   match offset (2, little endian) | match length extension
+// with the literal length in the high and the match length minus 4 in the low
+// nibble of the token. Extensions are 255 bytes followed by the remainder.
+// The last sequence has literals only.
+//
+// Greedy single probe matching like LZ4's fast mode, no allocation: the
+// caller keeps the hash table and passes it in.
+class Lz4 {
+    private static final int MIN_MATCH = 4;
+    // The block format requires these at the end of the input
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 14;
+    // Steps up the search step after 64 bytes without a match, fast on
+    // noise
+    private static final int SKIP_STRENGTH = 6;
+    static final int TABLE_SIZE = 1 << HASH_LOG;
+
+    private Lz4() {}
+
+    // Worst case output size for length bytes of incompressible input
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    // Compresses length bytes of src starting at srcOffset into dst at
+    // dstOffset, which needs maxCompressedLength() bytes. table must have
+    // TABLE_SIZE entries. Returns the compressed size.
+    static int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset,
+                        int[] table) {
+        int end = srcOffset + length;
+        int anchor = srcOffset;
+        int d = dstOffset;
+
+        if (length > MATCH_FIND_LIMIT) {
+            Arrays.fill(table, -1);
+            int matchLimit = end - LAST_LITERALS;
+            int findLimit = end - MATCH_FIND_LIMIT;
+            int pos = srcOffset;
+            while (pos < findLimit) {
+                int sequence = readInt(src, pos);
+                int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+                int ref = table[hash];
+                table[hash] = pos;
+                if (ref < 0 || pos - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                    pos += 1 + ((pos - anchor) >>> SKIP_STRENGTH);
+                    continue;
+                }
+                while (pos > anchor && ref > srcOffset && src[pos - 1] == src[ref - 1]) {
+                    pos--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (pos + matchLength < matchLimit && src[pos + matchLength] == src[ref + matchLength]) {
+                    matchLength++;
+                }
+
+                int literals = pos - anchor;
+                int token = d++;
+                d = writeLength(literals, dst, d);
+                System.arraycopy(src, anchor, dst, d, literals);
+                d += literals;
+                dst[d++] = (byte) (pos - ref);
+                dst[d++] = (byte) ((pos - ref) >>> 8);
+                d = writeLength(matchLength - MIN_MATCH, dst, d);
+                dst[token] = (byte) (Math.min(literals, 15) << 4 | Math.min(matchLength - MIN_MATCH, 15));
+
+                pos += matchLength;
+                anchor = pos;
+            }
+        }
+
+        int literals = end - anchor;
+        dst[d++] = (byte) (Math.min(literals, 15) << 4);
+        d = writeLength(literals, dst, d);
+        System.arraycopy(src, anchor, dst, d, literals);
+        d += literals;
+        return d - dstOffset;
+    }
+
+    // The extension bytes of a length whose first 15 went into the token
+    private static int writeLength(int length, byte[] dst, int d) {
+        if (length < 15) {
+            return d;
+        }
+        length -= 15;
+        while (length >= 255) {
+            dst[d++] = (byte) 255;
+            length -= 255;
+        }
+        dst[d++] = (byte) length;
+        return d;
+    }
+
+    private static int readInt(byte[] src, int i) {
+        return (src[i] & 0xff) | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff) << 16
+                | (src[i + 3] & 0xff) << 24;
+    }
+}
@@ -0,0 +1,80 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+// Single-slot, latest-value-wins handoff from any number of producers to one
+// consumer thread. Posting never blocks; an item that was not taken in time is
+// replaced and counted as dropped.
+class Mailbox<T> {
+    private final AtomicReference<T> mSlot = new AtomicReference<>();
+    private volatile Thread mConsumer;
+
+    private final AtomicLong mPostedCount = new AtomicLong();
+    private final AtomicLong mReplacedCount = new AtomicLong();
+    private final AtomicLong mTakenCount = new AtomicLong();
+
+    // Returns true if a stale item was replaced
+    boolean post(T item) {
+        T stale = mSlot.getAndSet(item);
+        mPostedCount.incrementAndGet();
+        if (stale != null) {
+            mReplacedCount.incrementAndGet();
+        }
+        Thread consumer = mConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return stale != null;
+    }
+
+    // Takes the latest item, waiting up to the given timeout for one to be
+    // posted. Returns null on timeout, or earlier if woken by wakeUp().
+    T poll(long timeout, TimeUnit unit) {
+        T item = mSlot.getAndSet(null);
+        if (item == null) {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            // Publish ourselves before the second check so a concurrent post()
+            // either sees us or we see its item
+            mConsumer = Thread.currentThread();
+            try {
+                item = mSlot.getAndSet(null);
+                if (item == null) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining > 0) {
+                        LockSupport.parkNanos(this, remaining);
+                    }
+                    item = mSlot.getAndSet(null);
+                }
+            } finally {
+                mConsumer = null;
+            }
+        }
+        if (item != null) {
+            mTakenCount.incrementAndGet();
+        }
+        return item;
+    }
+
+    // Makes a waiting poll() return early, e.g. on shutdown
+    void wakeUp() {
+        Thread consumer = mConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    long getPostedCount() {
+        return mPostedCount.get();
+    }
+
+    long getReplacedCount() {
+        return mReplacedCount.get();
+    }
+
+    long getTakenCount() {
+        return mTakenCount.get();
+    }
+}
@@ -0,0 +1,127 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Splits an H.264 frame into datagrams along NAL unit boundaries, so that a
+// lost datagram costs one NAL unit instead of the whole frame as it would with
+// FrameChunker. Every datagram starts with, in network byte order:
+//   magic 0xFD (1) | version (1) | type (1) | frame id (4) | index (2)
+// The first datagram of a frame (TYPE_HEADER) carries the telemetry header.
+// The others (TYPE_NAL) carry an RFC 6184 payload without start code: a
+// single NAL unit if it fits, otherwise FU-A fragments. The last datagram of
+// a frame has FLAG_LAST set in its type.
+class NalPacketizer {
+    static final byte MAGIC = (byte) 0xFD;
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 9;
+
+    static final int TYPE_HEADER = 0;
+    static final int TYPE_NAL = 1;
+    static final int FLAG_LAST = 0x80;
+
+    static final int NAL_TYPE_FU_A = 28;
+    private static final int FU_HEADER_SIZE = 2;
+
+    interface Sink {
+        // Sends header followed by payload as one datagram. Both buffers are
+        // reused for the next packet.
+        void onPacket(ByteBuffer header, ByteBuffer payload) throws IOException;
+    }
+
+    private final int mPayloadSize;
+    private final ByteBuffer mHeader = ByteBuffer.allocate(HEADER_SIZE + FU_HEADER_SIZE);
+    private int mFrameId = 0;
+    private int mIndex;
+
+    NalPacketizer() {
+        this(FrameChunker.DEFAULT_DATAGRAM_SIZE);
+    }
+
+    NalPacketizer(int datagramSize) {
+        mPayloadSize = datagramSize - HEADER_SIZE;
+    }
+
+    // Both buffers are read from their position to their limit, which are
+    // changed in the process. frame holds Annex B NAL units.
+    void packetize(ByteBuffer telemetry, ByteBuffer frame, Sink sink) throws IOException {
+        int frameId = mFrameId++;
+        mIndex = 0;
+        byte[] data = frame.array();
+        int end = frame.arrayOffset() + frame.limit();
+        int nal = nextNal(data, frame.arrayOffset() + frame.position(), end);
+
+        send(sink, frameId, nal < 0 ? TYPE_HEADER | FLAG_LAST : TYPE_HEADER, -1, telemetry);
+        while (nal >= 0) {
+            int next = nextNal(data, nal, end);
+            int nalEnd = next < 0 ? end : startCodeStart(data, next);
+            boolean last = next < 0;
+            sendNal(sink, frameId, frame, nal - frame.arrayOffset(), nalEnd - frame.arrayOffset(), last);
+            nal = next;
+        }
+    }
+
+    private void sendNal(Sink sink, int frameId, ByteBuffer frame, int start, int end,
+                         boolean last) throws IOException {
+        if (end - start <= mPayloadSize) {
+            frame.limit(end).position(start);
+            send(sink, frameId, last ? TYPE_NAL | FLAG_LAST : TYPE_NAL, -1, frame);
+            return;
+        }
+
+        // FU-A: the NAL header is spread over the FU indicator and FU header
+        int nalHeader = frame.array()[frame.arrayOffset() + start];
+        int indicator = (nalHeader & 0xE0) | NAL_TYPE_FU_A;
+        int fragmentSize = mPayloadSize - FU_HEADER_SIZE;
+        for (int offset = start + 1; offset < end; offset += fragmentSize) {
+            int fragmentEnd = Math.min(end, offset + fragmentSize);
+            int fuHeader = nalHeader & 0x1F;
+            if (offset == start + 1) {
+                fuHeader |= 0x80;
+            }
+            boolean lastFragment = fragmentEnd == end;
+            if (lastFragment) {
+                fuHeader |= 0x40;
+            }
+            frame.limit(fragmentEnd).position(offset);
+            int type = last && lastFragment ? TYPE_NAL | FLAG_LAST : TYPE_NAL;
+            send(sink, frameId, type, indicator << 8 | fuHeader, frame);
+        }
+    }
+
+    // fuHeader is the FU indicator and header as a short, or -1 for none
+    private void send(Sink sink, int frameId, int type, int fuHeader, ByteBuffer payload)
+            throws IOException {
+        mHeader.clear();
+        mHeader.put(MAGIC);
+        mHeader.put(VERSION);
+        mHeader.put((byte) type);
+        mHeader.putInt(frameId);
+        mHeader.putShort((short) mIndex++);
+        if (fuHeader >= 0) {
+            mHeader.putShort((short) fuHeader);
+        }
+        mHeader.flip();
+        sink.onPacket(mHeader, payload);
+    }
+
+    // Returns the index of the first byte after the next start code at or
+    // after from, or -1 if there is none
+    static int nextNal(byte[] data, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if ((data[i + 2] & 0xff) > 1) {
+                // Cannot be part of a start code, skip ahead
+                i += 2;
+            } else if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    // Start of the 3 or 4 byte start code in front of the NAL unit at nal
+    private static int startCodeStart(byte[] data, int nal) {
+        int start = nal - 3;
+        return start > 0 && data[start - 1] == 0 ? start - 1 : start;
+    }
+}
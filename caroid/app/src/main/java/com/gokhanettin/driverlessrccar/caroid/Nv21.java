@@ -0,0 +1,99 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+// Operations on NV21 preview frames: a full resolution Y plane followed by an
+// interleaved V/U plane at half the resolution in both directions.
+class Nv21 {
+    private Nv21() {}
+
+    static int size(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    // Output size of downscale(), kept even as NV21 requires
+    static int scaledWidth(int width, int scale) {
+        return (width / scale) & ~1;
+    }
+
+    static int scaledHeight(int height, int scale) {
+        return (height / scale) & ~1;
+    }
+
+    // Shrinks the frame by an integer factor, averaging scale x scale boxes.
+    // dst must hold at least size(scaledWidth(), scaledHeight()) bytes.
+    static void downscale(byte[] src, int width, int height, int scale, byte[] dst) {
+        crop(src, width, height, 0, 0, width, height, scale, dst);
+    }
+
+    // Copies the cropWidth x cropHeight rectangle at left, top out of the
+    // frame, shrunk by an integer factor like downscale(). left and top must
+    // be even so the rectangle starts on a chroma sample. dst must hold at
+    // least size(scaledWidth(cropWidth), scaledHeight(cropHeight)) bytes.
+    static void crop(byte[] src, int width, int height, int left, int top,
+                     int cropWidth, int cropHeight, int scale, byte[] dst) {
+        int dstWidth = scaledWidth(cropWidth, scale);
+        int dstHeight = scaledHeight(cropHeight, scale);
+        cropLuma(src, width, left, top, cropWidth, cropHeight, scale, dst, 0);
+
+        // V/U pairs, one per 2x2 block of the luma plane
+        int srcChroma = width * height + top / 2 * width + left;
+        int dstChroma = dstWidth * dstHeight;
+        if (scale == 1) {
+            for (int y = 0; y < dstHeight / 2; y++) {
+                System.arraycopy(src, srcChroma + y * width, dst, dstChroma + y * dstWidth, dstWidth);
+            }
+            return;
+        }
+
+        int area = scale * scale;
+        for (int y = 0; y < dstHeight / 2; y++) {
+            int dstRow = dstChroma + y * dstWidth;
+            int srcRow = srcChroma + y * scale * width;
+            for (int x = 0; x < dstWidth / 2; x++) {
+                int v = 0;
+                int u = 0;
+                int srcIndex = srcRow + x * scale * 2;
+                for (int j = 0; j < scale; j++) {
+                    for (int i = 0; i < scale * 2; i += 2) {
+                        v += src[srcIndex + i] & 0xff;
+                        u += src[srcIndex + i + 1] & 0xff;
+                    }
+                    srcIndex += width;
+                }
+                dst[dstRow + x * 2] = (byte) (v / area);
+                dst[dstRow + x * 2 + 1] = (byte) (u / area);
+            }
+        }
+    }
+
+    // The Y plane part of crop(), written to dst from dstOffset on. Needs
+    // scaledWidth(cropWidth) * scaledHeight(cropHeight) bytes there.
+    static void cropLuma(byte[] src, int width, int left, int top, int cropWidth,
+                         int cropHeight, int scale, byte[] dst, int dstOffset) {
+        int dstWidth = scaledWidth(cropWidth, scale);
+        int dstHeight = scaledHeight(cropHeight, scale);
+
+        if (scale == 1) {
+            for (int y = 0; y < dstHeight; y++) {
+                System.arraycopy(src, (top + y) * width + left, dst, dstOffset + y * dstWidth, dstWidth);
+            }
+            return;
+        }
+
+        int area = scale * scale;
+        for (int y = 0; y < dstHeight; y++) {
+            int dstRow = dstOffset + y * dstWidth;
+            int srcRow = (top + y * scale) * width + left;
+            for (int x = 0; x < dstWidth; x++) {
+                int sum = 0;
+                int srcIndex = srcRow + x * scale;
+                for (int j = 0; j < scale; j++) {
+                    for (int i = 0; i < scale; i++) {
+                        sum += src[srcIndex + i] & 0xff;
+                    }
+                    srcIndex += width;
+                }
+                dst[dstRow + x] = (byte) (sum / area);
+            }
+        }
+    }
+}
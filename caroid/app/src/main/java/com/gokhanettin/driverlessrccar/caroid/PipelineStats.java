@@ -0,0 +1,69 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import java.util.Locale;
+
+// Latency of each stage between the camera and the station, and between the
+// station and the Arduino. Timestamps are SystemClock.elapsedRealtimeNanos()
+// taken by the thread that runs the stage; a zero start means the stage was
+// not timed and is not recorded.
+//
+// The station asks for a report with the "S" command, see
+// UdpClient.requestStats(). The report is one datagram:
+//   "[S;<stage> <count> <p50> <p99> <p999> <max>;...]"
+// with all values in microseconds.
+class PipelineStats {
+    static final int STAGE_QUEUE = 0;   // preview captured -> encoder picked it up
+    static final int STAGE_ENCODE = 1;  // JPEG encoding
+    static final int STAGE_SEND = 2;    // encoded -> last datagram sent
+    static final int STAGE_FRAME = 3;   // preview captured -> last datagram sent
+    static final int STAGE_COMMAND = 4; // command received -> serial write
+    static final int STAGE_COUNT = 5;
+
+    static final String[] STAGE_NAMES = {"queue", "encode", "send", "frame", "command"};
+
+    private static final LatencyHistogram[] sHistograms = new LatencyHistogram[STAGE_COUNT];
+
+    static {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            sHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    private PipelineStats() {}
+
+    static void record(int stage, long startNanos, long endNanos) {
+        if (startNanos != 0) {
+            sHistograms[stage].record(endNanos - startNanos);
+        }
+    }
+
+    // Called once the last byte of a frame was handed to the socket
+    static void recordSent(FrameBuffer frame, long sentNanos) {
+        record(STAGE_SEND, frame.encodedNanos, sentNanos);
+        record(STAGE_FRAME, frame.captureNanos, sentNanos);
+    }
+
+    static LatencyHistogram get(int stage) {
+        return sHistograms[stage];
+    }
+
+    static String report() {
+        StringBuilder builder = new StringBuilder("[S");
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            LatencyHistogram h = sHistograms[i];
+            builder.append(';').append(String.format(Locale.US, "%s %d %d %d %d %d",
+                    STAGE_NAMES[i], h.getTotalCount(),
+                    h.getValueAtPercentile(50) / 1000,
+                    h.getValueAtPercentile(99) / 1000,
+                    h.getValueAtPercentile(99.9) / 1000,
+                    h.getMax() / 1000));
+        }
+        return builder.append(']').toString();
+    }
+
+    static void reset() {
+        for (LatencyHistogram h : sHistograms) {
+            h.reset();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import java.util.Locale;
+
+// Closed-loop JPEG quality and resolution control. The sender reports every
+// frame it sends and every encoded frame that was dropped because it fell
+// behind, and update() compares the measured frame rate,
+// bitrate, drop ratio and encode time of the last window against the target:
+//  - the encoder can't keep up with the target frame rate: halve the resolution
+//  - over the bitrate budget or dropping frames: lower the quality,
+//    proportionally to the overshoot, then the resolution once it bottoms out
+//  - well under budget: raise the quality step by step, then the resolution
+//    once a full size frame is expected to fit
+// Disabled until setTarget() is called, the manual "Q" command disables it
+// again. Thread-safe, frames are reported from the writer and main threads.
+class QualityController {
+    static final int MIN_QUALITY = 10;
+    static final int MAX_QUALITY = 90;
+    static final int MAX_SCALE = 4;
+
+    static final long WINDOW_NANOS = 500000000L;
+    private static final int QUALITY_STEP = 5;
+    private static final float DROP_RATIO_LIMIT = 0.1f;
+    private static final float BITRATE_HIGH = 1.1f;
+    private static final float BITRATE_LOW = 0.8f;
+    // Share of the frame interval the encoder may take
+    private static final float ENCODE_BUDGET = 0.8f;
+
+    private boolean mEnabled = false;
+    private int mTargetBitrate; // bits per second
+    private int mTargetFps;
+    private int mQuality;
+    private int mScale = 1;
+
+    private long mWindowStartNanos = 0;
+    private int mSentFrames = 0;
+    private int mDroppedFrames = 0;
+    private long mSentBytes = 0;
+    private long mEncodeNanos = 0;
+    // Last total seen by onDroppedCount(), -1 before the first
+    private long mDroppedTotal = -1;
+
+    // Measurements of the last complete window
+    private float mFps;
+    private float mBitrate;
+    private float mDropRatio;
+    private float mEncodeMillis;
+
+    QualityController(int quality) {
+        mQuality = quality;
+    }
+
+    synchronized void setTarget(int bitrate, int fps) {
+        mTargetBitrate = bitrate;
+        mTargetFps = fps;
+        mEnabled = true;
+        mWindowStartNanos = 0;
+    }
+
+    // Starts over with the given fixed quality at full resolution
+    synchronized void disable(int quality) {
+        mEnabled = false;
+        mQuality = quality;
+        mScale = 1;
+    }
+
+    synchronized boolean isEnabled() {
+        return mEnabled;
+    }
+
+    synchronized void onFrameSent(int bytes, long encodeNanos) {
+        mSentFrames++;
+        mSentBytes += bytes;
+        mEncodeNanos += encodeNanos;
+    }
+
+    // Takes a running total of dropped frames, e.g. the encoder's, and counts
+    // what was added since the last call
+    synchronized void onDroppedCount(long total) {
+        if (mDroppedTotal >= 0 && total > mDroppedTotal) {
+            mDroppedFrames += (int) (total - mDroppedTotal);
+        }
+        mDroppedTotal = total;
+    }
+
+    // Closes the current window if it is long enough and adjusts quality and
+    // scale. Returns true if either of them changed.
+    synchronized boolean update(long nowNanos) {
+        if (!mEnabled) {
+            return false;
+        }
+        if (mWindowStartNanos == 0) {
+            startWindow(nowNanos);
+            return false;
+        }
+        long elapsed = nowNanos - mWindowStartNanos;
+        if (elapsed < WINDOW_NANOS || mSentFrames + mDroppedFrames == 0) {
+            return false;
+        }
+
+        float seconds = elapsed / 1e9f;
+        mFps = mSentFrames / seconds;
+        mBitrate = mSentBytes * 8 / seconds;
+        mDropRatio = (float) mDroppedFrames / (mSentFrames + mDroppedFrames);
+        mEncodeMillis = mSentFrames > 0 ? mEncodeNanos / 1e6f / mSentFrames : 0;
+        startWindow(nowNanos);
+
+        int quality = mQuality;
+        int scale = mScale;
+        float frameMillis = 1000f / mTargetFps;
+        if (mEncodeMillis > frameMillis * ENCODE_BUDGET && scale < MAX_SCALE) {
+            scale *= 2;
+        } else if (mBitrate > mTargetBitrate * BITRATE_HIGH || mDropRatio > DROP_RATIO_LIMIT) {
+            if (quality > MIN_QUALITY) {
+                float factor = Math.min(0.9f, mTargetBitrate / mBitrate);
+                quality = Math.max(MIN_QUALITY, (int) (quality * factor));
+            } else if (scale < MAX_SCALE) {
+                scale *= 2;
+            }
+        } else if (mBitrate < mTargetBitrate * BITRATE_LOW && mDropRatio == 0) {
+            // A frame at twice the resolution is about four times larger
+            if (scale > 1 && mBitrate * 4 < mTargetBitrate * BITRATE_LOW
+                    && mEncodeMillis * 4 < frameMillis * ENCODE_BUDGET) {
+                scale /= 2;
+            } else if (quality < MAX_QUALITY) {
+                quality = Math.min(MAX_QUALITY, quality + QUALITY_STEP);
+            }
+        }
+
+        boolean changed = quality != mQuality || scale != mScale;
+        mQuality = quality;
+        mScale = scale;
+        return changed;
+    }
+
+    private void startWindow(long nowNanos) {
+        mWindowStartNanos = nowNanos;
+        mSentFrames = 0;
+        mDroppedFrames = 0;
+        mSentBytes = 0;
+        mEncodeNanos = 0;
+    }
+
+    synchronized int getQuality() {
+        return mQuality;
+    }
+
+    synchronized int getScale() {
+        return mScale;
+    }
+
+    synchronized float getFps() {
+        return mFps;
+    }
+
+    synchronized float getBitrate() {
+        return mBitrate;
+    }
+
+    synchronized float getDropRatio() {
+        return mDropRatio;
+    }
+
+    synchronized float getEncodeMillis() {
+        return mEncodeMillis;
+    }
+
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "quality %d scale 1/%d, %.1f fps %.0f kbit/s %.0f%% dropped %.1f ms encode",
+                mQuality, mScale, mFps, mBitrate / 1000, mDropRatio * 100, mEncodeMillis);
+    }
+}
@@ -0,0 +1,37 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+// Caps how often something happens, e.g. frames going to one output of the
+// SendScheduler. Sends are allowed on a grid of 1 / rate seconds, so a camera
+// that runs at the capped rate with some jitter is not cut down to every
+// other frame. After a pause at most one send comes early.
+class RateGate {
+    private volatile long mIntervalNanos;
+    private long mNextNanos = Long.MIN_VALUE;
+
+    // 0 for no cap
+    void setRate(int perSecond) {
+        mIntervalNanos = perSecond > 0 ? 1000000000L / perSecond : 0;
+    }
+
+    int getRate() {
+        long interval = mIntervalNanos;
+        return interval > 0 ? (int) (1000000000L / interval) : 0;
+    }
+
+    // Nanoseconds until the next send is allowed, 0 if it is allowed now
+    long delayNanos(long nowNanos) {
+        if (mIntervalNanos == 0 || mNextNanos == Long.MIN_VALUE) {
+            return 0;
+        }
+        return Math.max(0, mNextNanos - nowNanos);
+    }
+
+    void onSent(long nowNanos) {
+        long interval = mIntervalNanos;
+        if (mNextNanos == Long.MIN_VALUE) {
+            mNextNanos = nowNanos + interval;
+        } else {
+            mNextNanos = Math.max(mNextNanos, nowNanos - interval / 2) + interval;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+// Region of the preview that is encoded: a crop rectangle in preview pixels
+// and an integer downscale factor, set by the station with the "R" command.
+// Immutable, so the encoder threads can read it through a volatile reference.
+class Roi {
+    // Smallest output the encoders are given, in either direction
+    static final int MIN_OUTPUT_SIZE = 16;
+    static final int MAX_SCALE = 8;
+
+    final int left;
+    final int top;
+    final int width;
+    final int height;
+    final int scale;
+
+    private Roi(int left, int top, int width, int height, int scale) {
+        this.left = left;
+        this.top = top;
+        this.width = width;
+        this.height = height;
+        this.scale = scale;
+    }
+
+    static Roi full(int previewWidth, int previewHeight) {
+        return new Roi(0, 0, previewWidth, previewHeight, 1);
+    }
+
+    // The requested region with its corners moved to even pixels, as NV21
+    // chroma requires, or null if it does not lie within the preview or
+    // would shrink below MIN_OUTPUT_SIZE
+    static Roi clip(int left, int top, int width, int height, int scale,
+                    int previewWidth, int previewHeight) {
+        if (left < 0 || top < 0 || scale < 1 || scale > MAX_SCALE
+                || left + width > previewWidth || top + height > previewHeight) {
+            return null;
+        }
+        int right = (left + width) & ~1;
+        int bottom = (top + height) & ~1;
+        left &= ~1;
+        top &= ~1;
+        Roi roi = new Roi(left, top, right - left, bottom - top, scale);
+        if (roi.outputWidth() < MIN_OUTPUT_SIZE || roi.outputHeight() < MIN_OUTPUT_SIZE) {
+            return null;
+        }
+        return roi;
+    }
+
+    boolean isFull(int previewWidth, int previewHeight) {
+        return left == 0 && top == 0 && width == previewWidth && height == previewHeight
+                && scale == 1;
+    }
+
+    int outputWidth() {
+        return Nv21.scaledWidth(width, scale);
+    }
+
+    int outputHeight() {
+        return Nv21.scaledHeight(height, scale);
+    }
+
+    // The same region shrunk by another factor, e.g. the previewScale of the
+    // QualityController
+    Roi scaledBy(int factor) {
+        return factor == 1 ? this : new Roi(left, top, width, height, scale * factor);
+    }
+
+    // Trims the right and bottom edges so that the output size is a multiple
+    // of alignment, which many H.264 encoders need
+    Roi alignOutput(int alignment) {
+        int alignedWidth = outputWidth() / alignment * alignment * scale;
+        int alignedHeight = outputHeight() / alignment * alignment * scale;
+        return new Roi(left, top, alignedWidth, alignedHeight, scale);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Roi)) {
+            return false;
+        }
+        Roi other = (Roi) o;
+        return left == other.left && top == other.top && width == other.width
+                && height == other.height && scale == other.scale;
+    }
+
+    @Override
+    public int hashCode() {
+        return (((left * 31 + top) * 31 + width) * 31 + height) * 31 + scale;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + "+" + left + "+" + top + " / " + scale;
+    }
+}
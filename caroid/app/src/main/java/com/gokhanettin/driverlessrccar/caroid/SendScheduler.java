@@ -0,0 +1,129 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Hands frames to the outputs as they become ready, instead of polling for
+// them from the main looper. Events, a finished frame or a new Arduino
+// reading, wake up a thread of its own, which gives the next frame to the
+// first active output unless that output's RateGate holds it back. Then it
+// waits for the gate to open, or for the next event.
+//
+// The scheduler thread also runs the connection check every
+// CONNECTION_CHECK_INTERVAL.
+class SendScheduler {
+    private static final String TAG = "SendScheduler";
+    static final long CONNECTION_CHECK_INTERVAL = 2000; // ms
+
+    interface Output {
+        // Whether frames go here at all, e.g. while connected. Only the
+        // first active output gets them.
+        boolean isActive();
+
+        // Sends the next frame if there is one, returns false otherwise
+        boolean send();
+    }
+
+    private final Output[] mOutputs;
+    private final RateGate[] mGates;
+    private final Runnable mConnectionCheck;
+    private HandlerThread mThread;
+    private volatile Handler mHandler;
+    // Set while mDispatch is queued, so that events do not pile up
+    private final AtomicBoolean mQueued = new AtomicBoolean();
+
+    SendScheduler(Runnable connectionCheck, Output... outputs) {
+        mConnectionCheck = connectionCheck;
+        mOutputs = outputs;
+        mGates = new RateGate[outputs.length];
+        for (int i = 0; i < outputs.length; i++) {
+            mGates[i] = new RateGate();
+        }
+    }
+
+    synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_DISPLAY);
+        mThread.start();
+        mQueued.set(false);
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(mCheckConnections);
+    }
+
+    synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mHandler = null;
+        mThread.quit();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    // Frames per second for the output at index, 0 for no cap
+    void setMaxRate(int output, int perSecond) {
+        mGates[output].setRate(perSecond);
+    }
+
+    int getMaxRate(int output) {
+        return mGates[output].getRate();
+    }
+
+    // Called from any thread when a frame or a reading came in
+    void onEvent() {
+        Handler handler = mHandler;
+        if (handler != null && mQueued.compareAndSet(false, true)) {
+            handler.post(mDispatch);
+        }
+    }
+
+    private final Runnable mDispatch = new Runnable() {
+        @Override
+        public void run() {
+            mQueued.set(false);
+            long now = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < mOutputs.length; i++) {
+                if (!mOutputs[i].isActive()) {
+                    continue;
+                }
+                long delay = mGates[i].delayNanos(now);
+                if (delay > 0) {
+                    // Events until then would only find the gate closed
+                    Handler handler = mHandler;
+                    if (handler != null && mQueued.compareAndSet(false, true)) {
+                        handler.postDelayed(mDispatch, (delay + 999999) / 1000000);
+                    }
+                } else if (mOutputs[i].send()) {
+                    mGates[i].onSent(now);
+                }
+                return;
+            }
+        }
+    };
+
+    private final Runnable mCheckConnections = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                mConnectionCheck.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Connection check failed", e);
+            }
+            Handler handler = mHandler;
+            if (handler != null) {
+                handler.postDelayed(this, CONNECTION_CHECK_INTERVAL);
+            }
+        }
+    };
+}
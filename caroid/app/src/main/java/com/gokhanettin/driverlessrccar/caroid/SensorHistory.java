@@ -0,0 +1,112 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// The last few hundred samples of one sensor, so that readings can be
+// interpolated to the capture time of a frame instead of taking whatever came
+// in last.
+//
+// One thread adds samples, any number of threads read, and nobody blocks.
+// Sample i lives in slot i % capacity and the writer publishes it by bumping
+// the count. A reader copies what it needs and then checks the count again:
+// if the writer got around the ring to one of those slots in the meantime,
+// it reads again. Slots are atomics so that this check is sound.
+class SensorHistory {
+    // Readers that keep losing the race fall back to the latest sample
+    private static final int MAX_RETRIES = 4;
+
+    private final int mDimension;
+    private final int mCapacity;
+    private final AtomicLongArray mTimestamps;
+    private final AtomicIntegerArray mValues;
+    private final AtomicLong mCount = new AtomicLong();
+
+    // capacity must be a power of two
+    SensorHistory(int dimension, int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mDimension = dimension;
+        mCapacity = capacity;
+        mTimestamps = new AtomicLongArray(capacity);
+        mValues = new AtomicIntegerArray(capacity * dimension);
+    }
+
+    int getDimension() {
+        return mDimension;
+    }
+
+    long getCount() {
+        return mCount.get();
+    }
+
+    // Writer thread only. Timestamps must not go backwards.
+    void add(long timestampNanos, float[] values) {
+        long count = mCount.get();
+        int slot = (int) (count & (mCapacity - 1));
+        mTimestamps.set(slot, timestampNanos);
+        int base = slot * mDimension;
+        int length = Math.min(values.length, mDimension);
+        for (int i = 0; i < length; i++) {
+            mValues.set(base + i, Float.floatToRawIntBits(values[i]));
+        }
+        mCount.set(count + 1);
+    }
+
+    // Writes the values at timestampNanos to dst from offset on, linearly
+    // interpolated between the samples around it. Outside the history the
+    // nearest sample is used. Returns false and leaves dst alone if there is
+    // no sample yet.
+    boolean sample(long timestampNanos, float[] dst, int offset) {
+        for (int attempt = 0; attempt <= MAX_RETRIES; attempt++) {
+            long count = mCount.get();
+            if (count == 0) {
+                return false;
+            }
+            // The writer may already be filling the slot of sample count
+            long oldest = Math.max(0, count - mCapacity + 1);
+            long newest = count - 1;
+
+            long before = newest;
+            while (before >= oldest && mTimestamps.get(slot(before)) > timestampNanos) {
+                before--;
+            }
+            if (attempt == MAX_RETRIES) {
+                // Lost every race, a recent sample is better than none
+                before = newest;
+            }
+            if (before == newest || before < oldest) {
+                copy(before < oldest ? oldest : newest, dst, offset);
+            } else {
+                long t0 = mTimestamps.get(slot(before));
+                long t1 = mTimestamps.get(slot(before + 1));
+                float weight = t1 > t0 ? (float) (timestampNanos - t0) / (t1 - t0) : 0f;
+                int base0 = slot(before) * mDimension;
+                int base1 = slot(before + 1) * mDimension;
+                for (int i = 0; i < mDimension; i++) {
+                    float v0 = Float.intBitsToFloat(mValues.get(base0 + i));
+                    float v1 = Float.intBitsToFloat(mValues.get(base1 + i));
+                    dst[offset + i] = v0 + (v1 - v0) * weight;
+                }
+            }
+            long first = before < oldest ? oldest : before;
+            if (first > mCount.get() - mCapacity) {
+                return true;
+            }
+        }
+        return true;
+    }
+
+    private void copy(long index, float[] dst, int offset) {
+        int base = slot(index) * mDimension;
+        for (int i = 0; i < mDimension; i++) {
+            dst[offset + i] = Float.intBitsToFloat(mValues.get(base + i));
+        }
+    }
+
+    private int slot(long index) {
+        return (int) (index & (mCapacity - 1));
+    }
+}
@@ -0,0 +1,186 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+// Binary framing for the serial link to the Arduino, carino.ino has the other
+// side. Every message is
+//   SYNC | <length> | <type> | <payload, length bytes> | <crc>
+// where crc is CRC-8 (polynomial 0x07) over length, type and payload, and
+// numbers in the payload are little endian:
+//   TYPE_TELEMETRY  speed i16 | steering i16 | distance u16, in 0.1 cm
+//   TYPE_CONTROL    speed i16 | steering i16
+//   TYPE_MODE       mode, 'M', 'C' or 'N'
+//   TYPE_BAUD       baud rate u32, echoed by the firmware before it switches
+//   TYPE_PING       anything, echoed as is
+//   TYPE_BAUD_CONFIRM
+//                   baud rate u32, echoed once the firmware keeps the rate
+// BaudNegotiator has the baud rate handshake.
+// A reading is 10 bytes against ~17 as text, and neither side formats or
+// parses numbers.
+//
+// The text protocol, lines like "1400 1568 12.00", stays as a fallback. The
+// firmware answers in the protocol of the last message it understood, and a
+// PROTOCOL_REQUEST line switches it to binary; firmware that does not know
+// binary just keeps sending lines. SYNC never appears in text, so feed() takes
+// both and hands lines to a SerialLineParser.
+class SerialCodec {
+    static final int SYNC = 0xA5;
+    static final int TYPE_TELEMETRY = 1;
+    static final int TYPE_CONTROL = 2;
+    static final int TYPE_MODE = 3;
+    static final int TYPE_BAUD = 4;
+    static final int TYPE_PING = 5;
+    static final int TYPE_BAUD_CONFIRM = 6;
+
+    static final int HEADER_SIZE = 3;
+    static final int MAX_PAYLOAD = 16;
+    static final int MAX_FRAME_SIZE = HEADER_SIZE + MAX_PAYLOAD + 1;
+    static final int TELEMETRY_SIZE = 6;
+    static final int CONTROL_SIZE = 4;
+
+    // Text line that asks the firmware for binary
+    static final String PROTOCOL_REQUEST = "B\n";
+
+    interface Listener extends SerialLineParser.Listener {
+        // Called with a frame that passed the CRC check. The array is reused
+        // for the next frame.
+        void onFrame(int type, byte[] payload, int length);
+    }
+
+    private final Listener mListener;
+    private final SerialLineParser mLineParser;
+    private final byte[] mFrame = new byte[MAX_FRAME_SIZE];
+    // Bytes of the current frame so far, 0 outside a frame
+    private int mLength = 0;
+
+    private long mFrameCount = 0;
+    private long mErrorCount = 0;
+
+    SerialCodec(Listener listener) {
+        mListener = listener;
+        mLineParser = new SerialLineParser(listener);
+    }
+
+    void feed(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int text = offset;
+        for (int i = offset; i < end; i++) {
+            int c = data[i] & 0xff;
+            if (mLength == 0) {
+                if (c != SYNC) {
+                    continue;
+                }
+                mLineParser.feed(data, text, i - text);
+            }
+            mFrame[mLength++] = (byte) c;
+            if (mLength == 2 && c > MAX_PAYLOAD) {
+                // Not a frame header, e.g. a corrupted length
+                mErrorCount++;
+                mLength = 0;
+            } else if (mLength > 2 && mLength == HEADER_SIZE + (mFrame[1] & 0xff) + 1) {
+                onFrame();
+                mLength = 0;
+            }
+            text = i + 1;
+        }
+        if (mLength == 0) {
+            mLineParser.feed(data, text, end - text);
+        }
+    }
+
+    private void onFrame() {
+        int payload = mFrame[1] & 0xff;
+        if (crc8(mFrame, 1, payload + 2) != (mFrame[HEADER_SIZE + payload] & 0xff)) {
+            mErrorCount++;
+            return;
+        }
+        mFrameCount++;
+        int type = mFrame[2] & 0xff;
+        System.arraycopy(mFrame, HEADER_SIZE, mFrame, 0, payload);
+        mListener.onFrame(type, mFrame, payload);
+    }
+
+    long getFrameCount() {
+        return mFrameCount;
+    }
+
+    // Frames dropped for a bad length or CRC
+    long getErrorCount() {
+        return mErrorCount;
+    }
+
+    static int encodeControl(int speed, int steering, byte[] dst) {
+        putShort(dst, HEADER_SIZE, speed);
+        putShort(dst, HEADER_SIZE + 2, steering);
+        return frame(TYPE_CONTROL, CONTROL_SIZE, dst);
+    }
+
+    static int encodeMode(char mode, byte[] dst) {
+        dst[HEADER_SIZE] = (byte) mode;
+        return frame(TYPE_MODE, 1, dst);
+    }
+
+    // A TYPE_BAUD or TYPE_BAUD_CONFIRM frame
+    static int encodeBaudRate(int type, int baudRate, byte[] dst) {
+        putShort(dst, HEADER_SIZE, baudRate);
+        putShort(dst, HEADER_SIZE + 2, baudRate >>> 16);
+        return frame(type, 4, dst);
+    }
+
+    // A full size TYPE_PING frame. The pattern differs per sequence number and
+    // has the sync byte and '\n' in it, to catch a link that mangles bits.
+    static int encodePing(int sequence, byte[] dst) {
+        for (int i = 0; i < MAX_PAYLOAD; i++) {
+            dst[HEADER_SIZE + i] = (byte) (i == 0 ? sequence : SYNC ^ (sequence * 31 + i * 7));
+        }
+        dst[HEADER_SIZE + MAX_PAYLOAD - 1] = '\n';
+        return frame(TYPE_PING, MAX_PAYLOAD, dst);
+    }
+
+    static int encodeTelemetry(int speed, int steering, float distance, byte[] dst) {
+        putShort(dst, HEADER_SIZE, speed);
+        putShort(dst, HEADER_SIZE + 2, steering);
+        putShort(dst, HEADER_SIZE + 4, Math.round(Math.max(0f, Math.min(distance * 10f, 0xffff))));
+        return frame(TYPE_TELEMETRY, TELEMETRY_SIZE, dst);
+    }
+
+    // Reads what encodeTelemetry() wrote, returns false on a short payload
+    static boolean decodeTelemetry(byte[] payload, int length, ArduinoInput dst) {
+        if (length < TELEMETRY_SIZE) {
+            return false;
+        }
+        dst.speedCommand = getShort(payload, 0);
+        dst.steeringCommand = getShort(payload, 2);
+        dst.distance = (getShort(payload, 4) & 0xffff) / 10f;
+        dst.isOnline = true;
+        return true;
+    }
+
+    // Fills in the header and CRC around a payload already at HEADER_SIZE,
+    // returns the frame size
+    private static int frame(int type, int payload, byte[] dst) {
+        dst[0] = (byte) SYNC;
+        dst[1] = (byte) payload;
+        dst[2] = (byte) type;
+        dst[HEADER_SIZE + payload] = (byte) crc8(dst, 1, payload + 2);
+        return HEADER_SIZE + payload + 1;
+    }
+
+    static int crc8(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= data[i] & 0xff;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1;
+            }
+        }
+        return crc & 0xff;
+    }
+
+    private static void putShort(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) value;
+        dst[offset + 1] = (byte) (value >> 8);
+    }
+
+    private static short getShort(byte[] src, int offset) {
+        return (short) ((src[offset] & 0xff) | (src[offset + 1] << 8));
+    }
+}
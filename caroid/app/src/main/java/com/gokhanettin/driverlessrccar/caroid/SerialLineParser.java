@@ -0,0 +1,52 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+// Splits what comes in from the serial port into '\n' terminated lines,
+// without allocating. Bytes may arrive in arbitrary pieces; a line split
+// across reads is completed by a later feed(). Everything up to the first
+// '\n' is dropped, since the port may have been opened in the middle of a
+// line.
+class SerialLineParser {
+    static final int MAX_LINE_LENGTH = 128;
+
+    interface Listener {
+        // Called with the bytes before the '\n'. The array is reused for the
+        // next line.
+        void onLine(byte[] line, int length);
+    }
+
+    private final Listener mListener;
+    private final byte[] mLine = new byte[MAX_LINE_LENGTH];
+    private int mLength = 0;
+    private boolean mInLine = false;
+
+    private long mOverflowCount = 0;
+
+    SerialLineParser(Listener listener) {
+        mListener = listener;
+    }
+
+    void feed(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            byte c = data[i];
+            if (c == '\n') {
+                if (mInLine) {
+                    mListener.onLine(mLine, mLength);
+                }
+                mInLine = true;
+                mLength = 0;
+            } else if (!mInLine) {
+                continue;
+            } else if (mLength < MAX_LINE_LENGTH) {
+                mLine[mLength++] = c;
+            } else {
+                // Runaway line, drop it and wait for the next '\n'
+                mInLine = false;
+                mOverflowCount++;
+            }
+        }
+    }
+
+    long getOverflowCount() {
+        return mOverflowCount;
+    }
+}
@@ -3,16 +3,19 @@ package com.gokhanettin.driverlessrccar.caroid;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
 
 public class TcpClient {
     private static final String TAG = "TcpClient";
@@ -33,12 +36,20 @@ public class TcpClient {
     public static final int STATE_CONNECTING = 1; // now initiating an outgoing connection
     public static final int STATE_CONNECTED = 2;  // now connected to the server
 
+    private static final long WRITER_POLL_TIMEOUT = 100; // ms, how often the writer re-checks state
+    private static final int READ_BUFFER_SIZE = 1024;
+
     public float sendProbability = 0.1f;
+    public volatile int headerFormat = TelemetryHeader.FORMAT_TEXT;
 
     private ConnectThread mConnectThread = null;
     private ReaderThread mReaderThread = null;
     private WriterThread mWriterThread = null;
 
+    // Written by the reader thread only
+    private volatile long mReaderCpuTimeMillis = 0;
+    private volatile long mReceivedCommandCount = 0;
+
     private Handler mHandler;
     private int mState;
     private int mNewState;
@@ -115,18 +126,40 @@ public class TcpClient {
 
         TcpOutput out = new TcpOutput(arduinoInput, androidInput);
 
-        // Process the preview and send unsynchronized
+        // Process the preview and send unsynchronized, a frame still waiting
+        // for the writer is replaced by this one
         float currentProbability = 0f;
         if (mWriterThread.sendAsync(out)) {
             currentProbability = 1f;
-        } else {
-            Log.d(TAG, "TCP is busy, skip sending");
         }
         // sliding average
         sendProbability = sendProbability * 0.995f + 0.005f * currentProbability;
     }
 
-    private synchronized void connected(Socket socket) {
+    // Frames handed to the current writer and how many of them were replaced
+    // by a newer frame before the writer got to them
+    public long getPostedFrameCount() {
+        WriterThread t = mWriterThread;
+        return t != null ? t.mmOutbox.getPostedCount() : 0;
+    }
+
+    public long getReplacedFrameCount() {
+        WriterThread t = mWriterThread;
+        return t != null ? t.mmOutbox.getReplacedCount() : 0;
+    }
+
+    // CPU time the reader thread has used so far, it should stay flat while
+    // the server is idle
+    public long getReaderCpuTimeMillis() {
+        return mReaderCpuTimeMillis;
+    }
+
+    public long getReceivedCommandCount() {
+        return mReceivedCommandCount;
+    }
+
+    private synchronized void connected(SocketChannel channel) {
+        Socket socket = channel.socket();
         String serverAddress = socket.getInetAddress().toString();
         Log.d(TAG, "Connected to " + serverAddress);
 
@@ -145,11 +178,11 @@ public class TcpClient {
             mWriterThread = null;
         }
 
-        // Start the thread to manage the connection and perform transmissions
+        // Start the thread to manage the connection and perform transmissions.
+        // The reader marks us connected, so create it before the writer runs.
+        mReaderThread = new ReaderThread(channel);
         mWriterThread = new WriterThread(socket);
         mWriterThread.start();
-
-        mReaderThread = new ReaderThread(socket);
         mReaderThread.start();
 
         // Send the name of the connected device back
@@ -188,26 +221,35 @@ public class TcpClient {
     private class ConnectThread extends Thread {
         String mmIP;
         int mmPort;
-        Socket mmSocket;
+        SocketChannel mmChannel;
 
         public ConnectThread(String ip, int port) {
             mmIP = ip;
             mmPort = port;
-            mmSocket = new Socket();
+            try {
+                mmChannel = SocketChannel.open();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to open socket channel", e);
+            }
         }
 
         @Override
         public void run() {
             super.run();
 
+            if (mmChannel == null) {
+                connectionFailed();
+                return;
+            }
+
             try {
-                mmSocket.connect(new InetSocketAddress(mmIP, mmPort), 10000);
+                mmChannel.socket().connect(new InetSocketAddress(mmIP, mmPort), 10000);
             } catch (IOException e) {
                 Log.e(TAG, "Failed to connect to " + mmIP + ":" + mmPort, e);
                 connectionFailed();
                 // Close the socket
                 try {
-                    mmSocket.close();
+                    mmChannel.close();
                 } catch (IOException e2) {
                     Log.e(TAG, "Unable to close() socket on connection failure", e2);
                 }
@@ -220,40 +262,31 @@ public class TcpClient {
             }
 
             // Start the connected thread
-            connected(mmSocket);
+            connected(mmChannel);
         }
 
         void cancel() {
+            if (mmChannel == null) {
+                return;
+            }
             try {
-                mmSocket.close();
+                mmChannel.close();
             } catch (IOException e) {
                 Log.e(TAG, "close() failed at ConnectThread.cancel()", e);
             }
         }
     }
 
-    private class ReaderThread extends Thread {
-        private final Socket mmSocket;
-        private final DataInputStream mmInStream;
-
-        private StringBuilder mmStringBuilder;
-        private boolean mmValid;
+    private class ReaderThread extends Thread implements CommandParser.Listener {
+        private final SocketChannel mmChannel;
+        private final ByteBuffer mmBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final CommandParser mmParser = new CommandParser(this);
+        private long mmReceivedNanos;
 
-        public ReaderThread(Socket socket) {
+        public ReaderThread(SocketChannel channel) {
             Log.d(TAG, "create ReaderThread");
-            mmSocket = socket;
-            InputStream tmpIn = null;
-
-            try {
-                tmpIn = socket.getInputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "Tmp in/out streams not created", e);
-            }
-
-            mmInStream = new DataInputStream(tmpIn);
+            mmChannel = channel;
             mState = STATE_CONNECTED;
-            mmStringBuilder = new StringBuilder();
-            mmValid = false;
         }
 
         @Override
@@ -261,44 +294,41 @@ public class TcpClient {
             super.run();
             Log.i(TAG, "BEGIN mReaderThread");
             setName("ReaderThread");
-            int c;
-            // Keep listening to the InputStream while connected
+            // Keep listening to the channel while connected. read() blocks
+            // until the server sends something and returns whatever arrived,
+            // possibly several commands or a part of one.
             while (mState == STATE_CONNECTED) {
                 try {
-                    // Read from the InputStream
                     // "[<throttle_cmd>;<steering_cmd>]"
-                    while (mmInStream.available() > 0) {
-                        c = mmInStream.read();
-                        if (c == '[') {
-                            mmValid = true;
-                            mmStringBuilder.setLength(0);
-                            continue;
-                        }
-                        if (mmValid) {
-                            if (c == ']') {
-                                parse();
-                                mmValid = false;
-                                break;
-                            } else {
-                                mmStringBuilder.append((char) c);
-                            }
-                        }
+                    mmBuffer.clear();
+                    if (mmChannel.read(mmBuffer) < 0) {
+                        throw new IOException("Server closed the connection");
                     }
+                    mmReceivedNanos = SystemClock.elapsedRealtimeNanos();
+                    mmBuffer.flip();
+                    mmParser.feed(mmBuffer);
+                    mReaderCpuTimeMillis = SystemClock.currentThreadTimeMillis();
                 } catch (IOException e) {
-                    Log.e(TAG, "Connection lost to the tcp server", e);
-                    connectionLost();
+                    if (mState == STATE_CONNECTED) {
+                        Log.e(TAG, "Connection lost to the tcp server", e);
+                        connectionLost();
+                    }
                     break;
                 }
             }
         }
 
-        private void parse() {
+        @Override
+        public void onFrame(byte[] frame, int length) {
             // "<throttle_cmd>;<steering_cmd>"
-            String string = mmStringBuilder.toString();
-
-            Log.d(TAG, "Parse string: " + string);
-            String tokens[] = string.split(";");
-            TcpInput input = new TcpInput(tokens);
+            TcpInput input = TcpInput.obtain();
+            if (!input.parse(frame, length)) {
+                Log.d(TAG, "Malformed command: " + new String(frame, 0, length, StandardCharsets.US_ASCII));
+                input.recycle();
+                return;
+            }
+            input.receivedNanos = mmReceivedNanos;
+            mReceivedCommandCount++;
 
             mHandler.obtainMessage(MESSAGE_RECEIVE, -1, -1, input).sendToTarget();
         }
@@ -307,7 +337,9 @@ public class TcpClient {
     private class WriterThread extends Thread {
         private final Socket mmSocket;
         private final DataOutputStream mmOutStream;
-        private TcpOutput mOut;
+        private final TelemetryHeader mmHeader = new TelemetryHeader();
+        private final Mailbox<TcpOutput> mmOutbox = new Mailbox<>();
+        private volatile boolean mmCancelled = false;
 
         public WriterThread(Socket socket) {
             Log.d(TAG, "create WriterThread");
@@ -326,42 +358,41 @@ public class TcpClient {
         @Override
         public void run() {
             super.run();
-            Log.i(TAG, "BEGIN mReaderThread");
-            setName("ReaderThread");
-            int c;
-            // Keep listening to the InputStream while connected
-            while (mState == STATE_CONNECTED) {
-                TcpOutput tcpOutput = null;
-                if (mOut != null) {
-                    tcpOutput = mOut;
-                    mOut = null;
-                }
+            Log.i(TAG, "BEGIN mWriterThread");
+            setName("WriterThread");
+            // Block until a frame is posted, waking up regularly to check state
+            while (mState == STATE_CONNECTED && !mmCancelled) {
+                TcpOutput tcpOutput = mmOutbox.poll(WRITER_POLL_TIMEOUT, TimeUnit.MILLISECONDS);
                 if (tcpOutput != null) {
                     send(tcpOutput);
                 }
             }
         }
 
+        // Returns false if an older frame was still waiting and got dropped
         boolean sendAsync(TcpOutput out) {
-            if (mOut != null) {
-                return false;
-            }
-            mOut = out;
-            return true;
+            return !mmOutbox.post(out);
         }
 
         void send(TcpOutput out) {
             try {
-                out.writeTo(mmOutStream);
+                if (!out.writeTo(mmOutStream, mmHeader, headerFormat)) {
+                    return;
+                }
                 mmOutStream.flush();
+                PipelineStats.recordSent(out.frame, SystemClock.elapsedRealtimeNanos());
                 mHandler.obtainMessage(MESSAGE_SEND, -1, -1, out).sendToTarget();
             } catch (IOException e) {
                 Log.d(TAG, "Exception on send()", e);
                 connectionLost();
+            } finally {
+                out.releaseFrame();
             }
         }
 
         void cancel() {
+            mmCancelled = true;
+            mmOutbox.wakeUp();
             try {
                 mmOutStream.write("$".getBytes());
                 mmOutStream.flush();
@@ -2,8 +2,12 @@ package com.gokhanettin.driverlessrccar.caroid;
 
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 
 abstract class TcpHandlerCallback implements Handler.Callback {
+    // Time from reading a command off the network to handling it here
+    protected long commandLatencyNanos = 0;
+
     @Override
     public boolean handleMessage(Message msg) {
         switch (msg.what) {
@@ -12,7 +16,11 @@ abstract class TcpHandlerCallback implements Handler.Callback {
                 break;
             case TcpClient.MESSAGE_RECEIVE:
                 TcpInput in = (TcpInput) msg.obj;
+                if (in.receivedNanos != 0) {
+                    commandLatencyNanos = SystemClock.elapsedRealtimeNanos() - in.receivedNanos;
+                }
                 onReceived(in);
+                in.recycle();
                 break;
             case TcpClient.MESSAGE_SEND:
                 TcpOutput out = (TcpOutput) msg.obj;
@@ -31,6 +39,7 @@ abstract class TcpHandlerCallback implements Handler.Callback {
     }
 
     protected abstract void onConnectionStateChanged(int newState);
+    // The input is recycled as soon as this returns, don't keep it around
     protected abstract void onReceived(TcpInput input);
     protected abstract void onSent(TcpOutput output);
     protected abstract void onConnectionEstablished(String serverAddress);
@@ -1,85 +1,330 @@
 package com.gokhanettin.driverlessrccar.caroid;
 
-import android.content.Context;
+import android.hardware.SensorManager;
 import android.util.Log;
 
-import java.util.Date;
-
+// A command from the server, "<cmd>[;<arg>...]" between brackets on the wire:
+//   Q;<quality>            fixed JPEG quality, 0-100
+//   B;<kbit/s>;<fps>       adapt JPEG quality and scale to this target, see
+//                          QualityController. B;0 goes back to a fixed quality
+//   F                      toggle the flash
+//   A;<speed> <steering>   forward a control command to the Arduino
+//   A;<mode>               forward a communication mode (M, C or N)
+//   P                      ping
+//   H;<format>             telemetry header format, see TelemetryHeader
+//   V;<format>[;<codec>]   video format, CameraPreview.VIDEO_FORMAT_*. For
+//                          the luma format optionally LumaEncoder.CODEC_*
+//   K                      H.264 key frame as soon as possible
+//   J;<mode>               JPEG encode mode, JpegEncoder.MODE_*
+//   R[;<left>;<top>;<width>;<height>;<scale>]
+//                          encode only this part of the preview, in preview
+//                          pixels, shrunk by scale. R alone for all of it
+//   D;<threshold>;<refresh>
+//                          send previews whose blocks moved by no more than
+//                          threshold luma levels as empty frames, at least
+//                          every refresh frames a full one. D;0 sends all
+//   G;<network fps>;<disk fps>
+//                          most frames per second sent to the station and
+//                          saved while it is away, 0 for no limit
+//   I;<delay>              phone sensor rate, SensorManager.SENSOR_DELAY_*
+//   S[;<reset>]            send a PipelineStats report, reset afterwards if 1
+//
+// Commands are decoded straight from the received bytes into recycled
+// instances, like android.os.Message: get one with obtain() and hand it back
+// with recycle() once it has been run.
 public class TcpInput {
-    private static final String TAG = "TcpOutput";
+    private static final String TAG = "TcpInput";
 
-    abstract interface IServerCommand {
-        void run(AcquisitionActivity activity);
-    }
+    public static final char COMMAND_NONE = 0;
+    public static final char COMMAND_QUALITY = 'Q';
+    public static final char COMMAND_BITRATE = 'B';
+    public static final char COMMAND_FLASH = 'F';
+    public static final char COMMAND_ARDUINO = 'A';
+    public static final char COMMAND_PING = 'P';
+    public static final char COMMAND_HEADER = 'H';
+    public static final char COMMAND_STATS = 'S';
+    public static final char COMMAND_VIDEO = 'V';
+    public static final char COMMAND_KEY_FRAME = 'K';
+    public static final char COMMAND_JPEG_MODE = 'J';
+    public static final char COMMAND_ROI = 'R';
+    public static final char COMMAND_CHANGES = 'D';
+    public static final char COMMAND_RATE = 'G';
+    public static final char COMMAND_SENSOR_DELAY = 'I';
 
-    class QualityCommand implements IServerCommand {
-        int quality;
+    // Highest frame rate cap the "G" command accepts
+    public static final int MAX_RATE = 120;
 
-        QualityCommand(int quality) {
-            this.quality = quality;
-        }
+    public static final int MAX_ARGS = 8;
+
+    private static final int MAX_POOL_SIZE = 16;
+    private static final Object sPoolSync = new Object();
+    private static TcpInput sPool;
+    private static int sPoolSize = 0;
+
+    public char command = COMMAND_NONE;
+    // Communication mode of an Arduino command, or 0 for a control command
+    public char mode;
+    public final int[] args = new int[MAX_ARGS];
+    public int argCount;
 
-        @Override
-        public void run(AcquisitionActivity activity) {
-            activity.mCameraPreview.jpegQuality = quality;
+    // SystemClock.elapsedRealtimeNanos() when the bytes of this command were
+    // read from the network
+    public long receivedNanos;
+    // Already run on the control path, see UdpClient.setControlListener()
+    public boolean handled;
+
+    private TcpInput next;
+
+    public static TcpInput obtain() {
+        synchronized (sPoolSync) {
+            if (sPool != null) {
+                TcpInput input = sPool;
+                sPool = input.next;
+                input.next = null;
+                sPoolSize--;
+                return input;
+            }
         }
+        return new TcpInput();
     }
 
-    class FlashCommand implements IServerCommand {
-        @Override
-        public void run(AcquisitionActivity activity) {
-            activity.mCameraPreview.flash();
+    public void recycle() {
+        command = COMMAND_NONE;
+        mode = 0;
+        argCount = 0;
+        receivedNanos = 0;
+        handled = false;
+        synchronized (sPoolSync) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                next = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
         }
     }
 
-    class ArduinoCommand implements IServerCommand {
-        String command;
+    // Decodes the bytes between the brackets. Returns false and leaves command
+    // set to COMMAND_NONE if they do not form a valid command.
+    public boolean parse(byte[] frame, int length) {
+        command = COMMAND_NONE;
+        mode = 0;
+        argCount = 0;
+        if (length == 0 || (length > 1 && frame[1] != ';')) {
+            return false;
+        }
 
-        public ArduinoCommand(String command) {
-            this.command = command;
+        char cmd = (char) frame[0];
+        int start = 2;
+        if (cmd == COMMAND_ARDUINO && length == 3 && isMode(frame[2])) {
+            mode = (char) frame[2];
+            start = length;
         }
 
-        @Override
-        public void run(AcquisitionActivity activity) {
-            activity.mTcpClient.pingDate = new Date();
-            if (activity.mUsbClient.getState() == UsbClient.STATE_CONNECTED) {
-                Log.d(TAG, "Send to USB: " + command);
-                activity.mUsbClient.send(command + "\n", 0);
+        boolean valid = parseArgs(frame, start, length);
+        if (valid) {
+            switch (cmd) {
+                case COMMAND_QUALITY:
+                    valid = argCount == 1 && args[0] >= 0 && args[0] <= 100;
+                    break;
+                case COMMAND_BITRATE:
+                    valid = argCount == 1 && args[0] == 0
+                            || argCount == 2 && args[0] > 0 && args[0] <= 1000000
+                            && args[1] > 0 && args[1] <= 120;
+                    break;
+                case COMMAND_FLASH:
+                case COMMAND_PING:
+                case COMMAND_KEY_FRAME:
+                    valid = argCount == 0;
+                    break;
+                case COMMAND_ARDUINO:
+                    valid = mode != 0 ? argCount == 0 : argCount == 2;
+                    break;
+                case COMMAND_HEADER:
+                    valid = argCount == 1 && (args[0] == TelemetryHeader.FORMAT_TEXT
+                            || args[0] == TelemetryHeader.FORMAT_BINARY);
+                    break;
+                case COMMAND_VIDEO:
+                    valid = argCount == 1 && (args[0] == CameraPreview.VIDEO_FORMAT_JPEG
+                            || args[0] == CameraPreview.VIDEO_FORMAT_H264
+                            || args[0] == CameraPreview.VIDEO_FORMAT_LUMA)
+                            || argCount == 2 && args[0] == CameraPreview.VIDEO_FORMAT_LUMA
+                            && LumaEncoder.isCodec(args[1]);
+                    break;
+                case COMMAND_JPEG_MODE:
+                    valid = argCount == 1 && (args[0] == JpegEncoder.MODE_PARALLEL
+                            || args[0] == JpegEncoder.MODE_KEEP_ONE_READY);
+                    break;
+                case COMMAND_ROI:
+                    valid = argCount == 0 || argCount == 5 && args[0] >= 0 && args[1] >= 0
+                            && args[2] > 0 && args[3] > 0 && args[4] >= 1 && args[4] <= Roi.MAX_SCALE;
+                    break;
+                case COMMAND_CHANGES:
+                    valid = argCount == 1 && args[0] == 0
+                            || argCount == 2 && args[0] > 0 && args[0] <= ChangeDetector.MAX_THRESHOLD
+                            && args[1] > 0 && args[1] <= ChangeDetector.MAX_REFRESH_INTERVAL;
+                    break;
+                case COMMAND_RATE:
+                    valid = argCount == 2 && args[0] >= 0 && args[0] <= MAX_RATE
+                            && args[1] >= 0 && args[1] <= MAX_RATE;
+                    break;
+                case COMMAND_SENSOR_DELAY:
+                    valid = argCount == 1 && args[0] >= SensorManager.SENSOR_DELAY_FASTEST
+                            && args[0] <= SensorManager.SENSOR_DELAY_NORMAL;
+                    break;
+                case COMMAND_STATS:
+                    valid = argCount == 0 || argCount == 1 && (args[0] == 0 || args[0] == 1);
+                    break;
+                default:
+                    valid = false;
             }
         }
+        if (valid) {
+            command = cmd;
+        } else {
+            mode = 0;
+            argCount = 0;
+        }
+        return valid;
     }
 
-    class PingCommand implements IServerCommand {
-        @Override
-        public void run(AcquisitionActivity activity) {
-            Log.d(TAG, "Got ping signal from server");
-            activity.mTcpClient.pingDate = new Date();
+    // Integer arguments separated by ';' or ' '
+    private boolean parseArgs(byte[] frame, int i, int length) {
+        while (i < length) {
+            if (argCount == MAX_ARGS) {
+                return false;
+            }
+            boolean negative = frame[i] == '-';
+            if (negative) {
+                i++;
+            }
+            int start = i;
+            int value = 0;
+            while (i < length && frame[i] >= '0' && frame[i] <= '9') {
+                if (value > (Integer.MAX_VALUE - 9) / 10) {
+                    return false;
+                }
+                value = value * 10 + (frame[i] - '0');
+                i++;
+            }
+            if (i == start) {
+                return false;
+            }
+            args[argCount++] = negative ? -value : value;
+            if (i < length) {
+                // A separator must be followed by another argument
+                if (frame[i] != ';' && frame[i] != ' ' || i == length - 1) {
+                    return false;
+                }
+                i++;
+            }
         }
+        return true;
     }
 
-    public IServerCommand command;
-
-    public TcpInput(String tokens[]) {
-        if (tokens.length == 0) {
-            Log.d(TAG, "Empty command from server");
+    public void run(AcquisitionActivity activity) {
+        if (handled) {
             return;
         }
-
-        switch (tokens[0]) {
-            case "Q":
-                command = new QualityCommand(Integer.parseInt(tokens[1]));
+        switch (command) {
+            case COMMAND_QUALITY:
+                activity.mTcpClient.qualityController.disable(args[0]);
+                activity.mCameraPreview.jpegQuality = args[0];
+                activity.mCameraPreview.previewScale = 1;
+                break;
+            case COMMAND_BITRATE:
+                if (argCount == 2) {
+                    Log.d(TAG, "Adapting stream to " + args[0] + " kbit/s at " + args[1] + " fps");
+                    activity.mTcpClient.qualityController.setTarget(args[0] * 1000, args[1]);
+                } else {
+                    activity.mTcpClient.qualityController.disable(activity.mCameraPreview.jpegQuality);
+                    activity.mCameraPreview.previewScale = 1;
+                }
                 break;
-            case "F":
-                command = new FlashCommand();
+            case COMMAND_FLASH:
+                activity.mCameraPreview.flash();
                 break;
-            case "A":
-                command = new ArduinoCommand(tokens[1]);
+            case COMMAND_ARDUINO:
+                forward(activity.mTcpClient, activity.mUsbClient);
                 break;
-            case "P":
-                command = new PingCommand();
+            case COMMAND_PING:
+                Log.d(TAG, "Got ping signal from server");
+                activity.mTcpClient.pingTimeMillis = System.currentTimeMillis();
                 break;
-            default:
-                Log.d(TAG, "Unknown command: " + tokens[0]);
+            case COMMAND_HEADER:
+                Log.d(TAG, "Switching header format to " + args[0]);
+                activity.mTcpClient.headerFormat = args[0];
+                break;
+            case COMMAND_VIDEO:
+                Log.d(TAG, "Switching video format to " + this);
+                if (argCount == 2) {
+                    activity.mCameraPreview.lumaCodec = args[1];
+                }
+                activity.mCameraPreview.videoFormat = args[0];
+                break;
+            case COMMAND_KEY_FRAME:
+                activity.mCameraPreview.requestKeyFrame();
+                break;
+            case COMMAND_ROI:
+                if (argCount == 0) {
+                    activity.mCameraPreview.resetRoi();
+                } else if (!activity.mCameraPreview.setRoi(args[0], args[1], args[2], args[3], args[4])) {
+                    Log.e(TAG, "Region " + this + " does not fit the preview");
+                }
+                break;
+            case COMMAND_JPEG_MODE:
+                Log.d(TAG, "Switching JPEG encode mode to " + args[0]);
+                activity.mCameraPreview.setJpegMode(args[0]);
+                break;
+            case COMMAND_CHANGES:
+                Log.d(TAG, "Change detection " + this);
+                activity.mCameraPreview.setChangeDetection(args[0], argCount == 2 ? args[1] : 0);
+                break;
+            case COMMAND_RATE:
+                Log.d(TAG, "Limiting frames to " + args[0] + " fps over the network, "
+                        + args[1] + " fps to disk");
+                activity.mSendScheduler.setMaxRate(AcquisitionActivity.OUTPUT_NETWORK, args[0]);
+                activity.mSendScheduler.setMaxRate(AcquisitionActivity.OUTPUT_DISK, args[1]);
+                break;
+            case COMMAND_SENSOR_DELAY:
+                Log.d(TAG, "Switching sensor delay to " + args[0]);
+                activity.androidInput.setSensorDelay(args[0]);
+                break;
+            case COMMAND_STATS:
+                Log.d(TAG, "Previews dropped " + activity.mCameraPreview.getDroppedPreviews()
+                        + ", recycled " + activity.mCameraPreview.getRecycledPreviews()
+                        + ", unchanged " + activity.mCameraPreview.getUnchangedPreviews());
+                Log.d(TAG, "Serial writes queued " + activity.mUsbClient.getWriteQueueDepth()
+                        + ", commands coalesced " + activity.mUsbClient.getCoalescedCommandCount());
+                activity.mTcpClient.requestStats(argCount == 1 && args[0] == 1);
+                break;
+        }
+    }
+
+    // Passes an Arduino command on to the serial link. Safe to call from the
+    // network reader thread.
+    public void forward(UdpClient tcpClient, UsbClient usbClient) {
+        tcpClient.pingTimeMillis = System.currentTimeMillis();
+        if (usbClient.getState() == UsbClient.STATE_CONNECTED) {
+            if (mode != 0) {
+                usbClient.requestCommunicationMode(String.valueOf(mode));
+            } else {
+                usbClient.sendControl(args[0], args[1], receivedNanos);
+            }
+        }
+    }
+
+    private static boolean isMode(byte c) {
+        return c == 'M' || c == 'C' || c == 'N';
+    }
+
+    public String toString() {
+        StringBuilder builder = new StringBuilder().append('[').append(command);
+        if (mode != 0) {
+            builder.append(';').append(mode);
+        }
+        for (int i = 0; i < argCount; i++) {
+            builder.append(i == 0 ? ';' : ' ').append(args[i]);
         }
+        return builder.append(']').toString();
     }
 }
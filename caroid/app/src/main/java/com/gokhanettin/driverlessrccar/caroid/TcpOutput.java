@@ -3,16 +3,19 @@ package com.gokhanettin.driverlessrccar.caroid;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.SocketException;
-import java.util.Locale;
+import java.nio.ByteBuffer;
 
 public class TcpOutput {
     private static final String TAG = "TcpOutput";
 
-    public ArduinoInput arduinoInput;
+    // A copy, the caller's reading is reused while this waits for the writer
+    public final ArduinoInput arduinoInput = new ArduinoInput();
     public AndroidInput androidInput;
+    // Encoded preview taken by encodeTo(), owned until releaseFrame()
+    public FrameBuffer frame;
 
     public TcpOutput(ArduinoInput arduinoInput, AndroidInput androidInput) {
-        this.arduinoInput = arduinoInput;
+        this.arduinoInput.set(arduinoInput);
         this.androidInput = androidInput;
     }
 
@@ -20,21 +23,42 @@ public class TcpOutput {
         return "TcpClient.Output = " + arduinoInput.toString() + " | " + androidInput.toString();
     }
 
-    public void writeTo(DataOutputStream stream) throws IOException {
-        CameraPreview camera = androidInput.Camera;
-        byte[] jpeg = camera.getPreviewJpeg();
-
-        String data = String.format(Locale.US, "[%d;%d;%d;%.1f;%d",
-                arduinoInput.isOnline ? 1 : 0,
-                arduinoInput.speedCommand, arduinoInput.steeringCommand, arduinoInput.distance,
-                jpeg.length
-        );
-        for (float sensorValue: androidInput.SensorValues) {
-            data += String.format(Locale.US, ";%.5f", sensorValue);
+    // Returns false if there was no preview to write. Otherwise frame must be
+    // released with releaseFrame().
+    public boolean writeTo(DataOutputStream stream, TelemetryHeader header, int headerFormat)
+            throws IOException {
+        ByteBuffer data = encodeTo(header, headerFormat);
+        if (data == null) {
+            return false;
         }
-        data += "]";
 
-        stream.write(data.getBytes());
-        stream.write(jpeg);
+        stream.write(data.array(), data.arrayOffset(), data.remaining());
+        stream.write(frame.array(), 0, frame.length());
+        return true;
+    }
+
+    // Takes the next encoded preview into frame and returns the matching
+    // header, or null if there is no preview yet. The header buffer is reused
+    // by the caller, frame must be released with releaseFrame().
+    public ByteBuffer encodeTo(TelemetryHeader header, int headerFormat) {
+        frame = androidInput.Camera.takePreviewFrame();
+        if (frame == null) {
+            return null;
+        }
+
+        header.set(arduinoInput, null, frame.length());
+        // Sensor values as they were when the preview was captured
+        androidInput.getSensorValues(frame.captureNanos, header.sensors);
+        header.payloadType = frame.format;
+        header.quality = frame.quality;
+        header.scale = frame.scale;
+        return header.encode(headerFormat);
+    }
+
+    public void releaseFrame() {
+        if (frame != null) {
+            frame.release();
+            frame = null;
+        }
     }
 }
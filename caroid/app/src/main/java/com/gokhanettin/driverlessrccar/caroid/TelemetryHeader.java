@@ -0,0 +1,108 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import java.nio.ByteBuffer;
+import java.util.Formatter;
+import java.util.Locale;
+
+// Per-frame telemetry written in front of every payload.
+//
+// FORMAT_TEXT is the original bracketed header understood by every station:
+//   "[<online>;<speed>;<steering>;<distance>;<size>;<sensor0>;...;<sensor10>]"
+//
+// FORMAT_BINARY is a fixed layout in network byte order, selected by the
+// station with the "H;1" command:
+//   magic (1) | version (1) | flags (2) | speed (4) | steering (4) |
+//   distance (4, float) | payload length (4) | sensors (11 x 4, float) |
+//   timestamp (8, ms since epoch) | JPEG quality (1) | downscale factor (1) |
+//   reserved (2)
+class TelemetryHeader {
+    static final int FORMAT_TEXT = 0;
+    static final int FORMAT_BINARY = 1;
+
+    static final byte MAGIC = (byte) 0xB7;
+    static final byte VERSION = 2;
+    static final int SENSOR_COUNT = 11;
+    static final int BINARY_SIZE = 20 + SENSOR_COUNT * 4 + 12;
+
+    static final int FLAG_ARDUINO_ONLINE = 1;
+    // Bits 1-3 of the flags hold the payload type, CameraPreview.VIDEO_FORMAT_*
+    static final int PAYLOAD_TYPE_SHIFT = 1;
+    static final int PAYLOAD_TYPE_MASK = 7;
+
+    // Longest possible text header is well below this
+    private static final int MAX_SIZE = 512;
+
+    boolean online;
+    int speed;
+    int steering;
+    float distance;
+    int payloadLength;
+    final float[] sensors = new float[SENSOR_COUNT];
+    long timestamp;
+    // Only carried by FORMAT_BINARY, the text header stays as it was
+    int payloadType;
+    int quality;
+    int scale = 1;
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(MAX_SIZE);
+    private final StringBuilder mText = new StringBuilder(MAX_SIZE);
+    private final Formatter mFormatter = new Formatter(mText, Locale.US);
+
+    void set(ArduinoInput arduinoInput, float[] sensorValues, int payloadLength) {
+        online = arduinoInput.isOnline;
+        speed = arduinoInput.speedCommand;
+        steering = arduinoInput.steeringCommand;
+        distance = arduinoInput.distance;
+        this.payloadLength = payloadLength;
+        if (sensorValues != null) {
+            System.arraycopy(sensorValues, 0, sensors, 0,
+                    Math.min(sensorValues.length, SENSOR_COUNT));
+        }
+        timestamp = System.currentTimeMillis();
+    }
+
+    // Returns the encoded header, ready to be read. The buffer is reused by the
+    // next call.
+    ByteBuffer encode(int format) {
+        mBuffer.clear();
+        if (format == FORMAT_BINARY) {
+            writeBinary(mBuffer);
+        } else {
+            writeText(mBuffer);
+        }
+        mBuffer.flip();
+        return mBuffer;
+    }
+
+    void writeBinary(ByteBuffer dst) {
+        dst.put(MAGIC);
+        dst.put(VERSION);
+        int flags = (online ? FLAG_ARDUINO_ONLINE : 0)
+                | (payloadType & PAYLOAD_TYPE_MASK) << PAYLOAD_TYPE_SHIFT;
+        dst.putShort((short) flags);
+        dst.putInt(speed);
+        dst.putInt(steering);
+        dst.putFloat(distance);
+        dst.putInt(payloadLength);
+        for (float sensor : sensors) {
+            dst.putFloat(sensor);
+        }
+        dst.putLong(timestamp);
+        dst.put((byte) quality);
+        dst.put((byte) scale);
+        dst.putShort((short) 0);
+    }
+
+    void writeText(ByteBuffer dst) {
+        mText.setLength(0);
+        mFormatter.format("[%d;%d;%d;%.1f;%d",
+                online ? 1 : 0, speed, steering, distance, payloadLength);
+        for (float sensor : sensors) {
+            mFormatter.format(";%.5f", sensor);
+        }
+        mText.append(']');
+        for (int i = 0; i < mText.length(); i++) {
+            dst.put((byte) mText.charAt(i));
+        }
+    }
+}
@@ -3,12 +3,11 @@ package com.gokhanettin.driverlessrccar.caroid;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
 import java.io.Console;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -19,12 +18,17 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
 
 public class UdpClient {
     private static final String TAG = "UdpClient";
 
     public static final long PING_TIMEOUT = 5000; // expect ping command at least once per 5 seconds
+    private static final long WRITER_POLL_TIMEOUT = 100; // ms, how often the writer re-checks state
+    private static final long STATUS_INTERVAL_NANOS = 100000000L; // 10 Hz control status for the UI
 
     // Message types sent from the TcpClient to activities
     public static final int MESSAGE_CONNECTION_STATE_CHANGE = 0;
@@ -43,13 +47,22 @@ public class UdpClient {
     public static final int STATE_CONNECTED = 2;  // now connected to the server
 
     public float sendProbability = 0.1f;
-    public Date pingDate = new Date();
+    public volatile int headerFormat = TelemetryHeader.FORMAT_TEXT;
+    public volatile long pingTimeMillis = System.currentTimeMillis();
+    // Drives the camera's JPEG quality and scale once the station sets a target
+    public final QualityController qualityController = new QualityController(70);
 
     private ConnectThread mConnectThread = null;
     private ReaderThread mReaderThread = null;
     private WriterThread mWriterThread = null;
 
+    // Handles Arduino commands right on the reader thread, see setControlListener()
+    public interface ControlListener {
+        void onControl(TcpInput input);
+    }
+
     private Handler mHandler;
+    private volatile ControlListener mControlListener;
     private int mState;
     private int mNewState;
 
@@ -74,6 +87,14 @@ public class UdpClient {
         }
     }
 
+    // Arduino commands are handed to the listener on the network reader
+    // thread instead of going through the Handler, so that a busy main looper
+    // does not delay steering. The Handler then only receives them as
+    // rate-limited status updates, already marked as handled.
+    public void setControlListener(ControlListener listener) {
+        mControlListener = listener;
+    }
+
     public synchronized int getState() {
         return mState;
     }
@@ -130,17 +151,38 @@ public class UdpClient {
 
         TcpOutput out = new TcpOutput(arduinoInput, androidInput);
 
-        // Process the preview and send unsynchronized
+        // Process the preview and send unsynchronized, a frame still waiting
+        // for the writer is replaced by this one. It had not taken an encoded
+        // frame yet, so that is no drop for the QualityController.
         float currentProbability = 0f;
         if (mWriterThread.sendAsync(out)) {
             currentProbability = 1f;
-        } else {
-//            Log.d(TAG, "UDP is busy, skip sending");
         }
         // sliding average
         sendProbability = sendProbability * 0.995f + 0.005f * currentProbability;
     }
 
+    // Makes the writer send a PipelineStats report to the station, optionally
+    // starting over afterwards
+    public void requestStats(boolean reset) {
+        WriterThread t = mWriterThread;
+        if (t != null) {
+            t.requestStats(reset);
+        }
+    }
+
+    // Frames handed to the current writer and how many of them were replaced
+    // by a newer frame before the writer got to them
+    public long getPostedFrameCount() {
+        WriterThread t = mWriterThread;
+        return t != null ? t.mmOutbox.getPostedCount() : 0;
+    }
+
+    public long getReplacedFrameCount() {
+        WriterThread t = mWriterThread;
+        return t != null ? t.mmOutbox.getReplacedCount() : 0;
+    }
+
     private synchronized void connected(DatagramSocket socket) {
         Log.d(TAG, "Start read/write threads, port: " + mPort);
 
@@ -227,17 +269,15 @@ public class UdpClient {
         }
     }
 
-    private class ReaderThread extends Thread {
+    private class ReaderThread extends Thread implements CommandParser.Listener {
         private final DatagramSocket mmSocket;
-
-        private StringBuilder mmStringBuilder;
-        private boolean mmValid;
+        private final CommandParser mmParser = new CommandParser(this);
+        private long mmReceivedNanos;
+        private long mmLastStatusNanos;
 
         public ReaderThread(DatagramSocket socket) {
             Log.d(TAG, "create ReaderThread");
             mmSocket = socket;
-            mmStringBuilder = new StringBuilder();
-            mmValid = false;
             mState = STATE_CONNECTING;
         }
 
@@ -247,14 +287,15 @@ public class UdpClient {
             Log.i(TAG, "BEGIN mReaderThread");
             setName("ReaderThread");
             byte[] receiveData = new byte[1024];
-            int c;
+            DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
             // Keep listening to the InputStream while connected
             while (mState == STATE_CONNECTED || mState == STATE_CONNECTING) {
                 try {
                     // Read from the InputStream
                     // "[<throttle_cmd>;<steering_cmd>]"
-                    DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
+                    receivePacket.setData(receiveData);
                     mmSocket.receive(receivePacket);
+                    mmReceivedNanos = SystemClock.elapsedRealtimeNanos();
                     if (receivePacket.getLength() > 0) {
                         InetAddress address = receivePacket.getAddress();
                         int port = receivePacket.getPort();
@@ -273,23 +314,7 @@ public class UdpClient {
                             notifyStateChange();
                         }
                     }
-                    for (int i = 0; i < receivePacket.getLength(); i++) {
-                        c = receiveData[i];
-                        if (c == '[') {
-                            mmValid = true;
-                            mmStringBuilder.setLength(0);
-                            continue;
-                        }
-                        if (mmValid) {
-                            if (c == ']') {
-                                parse();
-                                mmValid = false;
-                                break;
-                            } else {
-                                mmStringBuilder.append((char) c);
-                            }
-                        }
-                    }
+                    mmParser.feed(receiveData, 0, receivePacket.getLength());
                 } catch (SocketException e) {
                     Log.e(TAG, "Connection lost to the tcp server", e);
                     connectionLost();
@@ -302,29 +327,56 @@ public class UdpClient {
             }
         }
 
-        private void parse() {
+        @Override
+        public void onFrame(byte[] frame, int length) {
             // "<throttle_cmd>;<steering_cmd>"
-            String string = mmStringBuilder.toString();
-
-            Log.d(TAG, "Parse string: " + string);
-            String tokens[] = string.split(";");
-            TcpInput input = new TcpInput(tokens);
+            TcpInput input = TcpInput.obtain();
+            if (!input.parse(frame, length)) {
+                Log.d(TAG, "Malformed command: " + new String(frame, 0, length, StandardCharsets.US_ASCII));
+                input.recycle();
+                return;
+            }
+            input.receivedNanos = mmReceivedNanos;
+
+            ControlListener listener = mControlListener;
+            if (listener != null && input.command == TcpInput.COMMAND_ARDUINO) {
+                listener.onControl(input);
+                input.handled = true;
+                if (mmReceivedNanos - mmLastStatusNanos < STATUS_INTERVAL_NANOS) {
+                    input.recycle();
+                    return;
+                }
+                mmLastStatusNanos = mmReceivedNanos;
+            }
 
             mHandler.obtainMessage(MESSAGE_RECEIVE, -1, -1, input).sendToTarget();
         }
     }
 
-    private class WriterThread extends Thread {
+    private class WriterThread extends Thread implements NalPacketizer.Sink {
         private final DatagramSocket mmSocket;
-        private final DataOutputStream mmOutStream;
-        private final ByteArrayOutputStream mmByteOutput;
-        private TcpOutput mOut;
+        private final FrameChunker mmChunker;
+        private final TelemetryHeader mmHeader = new TelemetryHeader();
+        private final ByteBuffer mmChunkHeader;
+        // chunk header, telemetry header slice, frame slice
+        private final ByteBuffer[] mmGather = new ByteBuffer[3];
+        private final NalPacketizer mmPacketizer = new NalPacketizer();
+        // packet header, NAL unit slice
+        private final ByteBuffer[] mmNalGather = new ByteBuffer[2];
+        private DatagramChannel mmChannel;
+        private InetAddress mmPeerAddress;
+        private int mmPeerPort;
+        private final Mailbox<TcpOutput> mmOutbox = new Mailbox<>();
+        private volatile boolean mmCancelled = false;
+        private volatile boolean mmStatsRequested = false;
+        private volatile boolean mmStatsReset = false;
 
         public WriterThread(DatagramSocket socket) {
             Log.d(TAG, "create WriterThread");
             mmSocket = socket;
-            mmByteOutput = new ByteArrayOutputStream(510000);
-            mmOutStream = new DataOutputStream(mmByteOutput);
+            mmChunker = new FrameChunker();
+            mmChunkHeader = ByteBuffer.allocateDirect(FrameChunker.HEADER_SIZE);
+            mmGather[0] = mmChunkHeader;
         }
 
         @Override
@@ -340,61 +392,155 @@ public class UdpClient {
 
             Log.i(TAG, "BEGIN WriterThread");
             setName("WriterThread");
-            int c;
-            // Keep listening to the InputStream while connected
-            while (mState != STATE_NONE) {
-                if (mState == STATE_CONNECTED) {
-                    if (new Date().getTime() - pingDate.getTime() > PING_TIMEOUT) {
-                        mState = STATE_CONNECTING;
-                        notifyStateChange();
-                    }
-                    else {
-                        TcpOutput tcpOutput = null;
-                        if (mOut != null) {
-                            tcpOutput = mOut;
-                            mOut = null;
-                        }
-                        if (tcpOutput != null) {
-                            send(tcpOutput);
-                        }
-                    }
-                } else {
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException exc) {}
+            // Block until a frame is posted, waking up regularly to check state
+            while (mState != STATE_NONE && !mmCancelled) {
+                TcpOutput tcpOutput = mmOutbox.poll(WRITER_POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (mState != STATE_CONNECTED) {
+                    continue;
+                }
+                if (System.currentTimeMillis() - pingTimeMillis > PING_TIMEOUT) {
+                    mState = STATE_CONNECTING;
+                    notifyStateChange();
+                    continue;
+                }
+                if (mmStatsRequested) {
+                    sendStats();
+                }
+                if (tcpOutput != null) {
+                    send(tcpOutput);
                 }
             }
         }
 
-        boolean sendAsync(TcpOutput out) {
-            if (mOut != null) {
-                return false;
+        void requestStats(boolean reset) {
+            mmStatsReset = reset;
+            mmStatsRequested = true;
+            mmOutbox.wakeUp();
+        }
+
+        private void sendStats() {
+            mmStatsRequested = false;
+            String report = PipelineStats.report();
+            if (mmStatsReset) {
+                PipelineStats.reset();
+            }
+            Log.d(TAG, "Pipeline stats " + report);
+            try {
+                channel().write(ByteBuffer.wrap(report.getBytes(StandardCharsets.US_ASCII)));
+            } catch (IOException e) {
+                Log.d(TAG, "Exception on sendStats()", e);
+                connectionLost();
             }
-            mOut = out;
-            return true;
+        }
+
+        // Returns false if an older frame was still waiting and got dropped
+        boolean sendAsync(TcpOutput out) {
+            return !mmOutbox.post(out);
         }
 
         void send(TcpOutput out) {
             try {
-                out.writeTo(mmOutStream);
-                mmOutStream.flush();
-
-                byte[] sendData = mmByteOutput.toByteArray();
-                mmByteOutput.reset();
-                DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, mAddress, mAddressPort);
-                mmSocket.send(sendPacket);
+                ByteBuffer header = out.encodeTo(mmHeader, headerFormat);
+                if (header == null) {
+                    return;
+                }
+                FrameBuffer frame = out.frame;
+                if (frame.format == CameraPreview.VIDEO_FORMAT_H264) {
+                    channel();
+                    mmPacketizer.packetize(header, frame.view(), this);
+                } else {
+                    sendChunks(header, frame.view());
+                }
+                long sentNanos = SystemClock.elapsedRealtimeNanos();
+                PipelineStats.recordSent(frame, sentNanos);
+                adaptQuality(out.androidInput.Camera, frame, sentNanos);
 
                 mHandler.obtainMessage(MESSAGE_SEND, -1, -1, out).sendToTarget();
             } catch (IOException e) {
                 Log.d(TAG, "Exception on send()", e);
                 connectionLost();
+            } finally {
+                out.releaseFrame();
             }
         }
 
+        private void adaptQuality(CameraPreview camera, FrameBuffer frame, long sentNanos) {
+            // Unchanged previews say nothing about the encoder
+            if (frame.format != CameraPreview.VIDEO_FORMAT_JPEG || frame.length() == 0) {
+                return;
+            }
+            qualityController.onDroppedCount(camera.getDroppedFrames());
+            qualityController.onFrameSent(frame.length(), frame.encodedNanos - frame.encodeStartNanos);
+            if (qualityController.update(sentNanos)) {
+                camera.jpegQuality = qualityController.getQuality();
+                camera.previewScale = qualityController.getScale();
+                Log.d(TAG, "Adapted stream to " + qualityController);
+            }
+        }
+
+        // Frames go out through a channel of their own, connected to the
+        // current peer, so that every chunk is a single gathering write of the
+        // chunk header plus slices of the telemetry header and the encoded
+        // frame. Nothing is copied or allocated per frame.
+        private DatagramChannel channel() throws IOException {
+            if (mmChannel == null || !mAddress.equals(mmPeerAddress) || mAddressPort != mmPeerPort) {
+                if (mmChannel != null) {
+                    mmChannel.close();
+                }
+                mmPeerAddress = mAddress;
+                mmPeerPort = mAddressPort;
+                mmChannel = DatagramChannel.open();
+                mmChannel.connect(new InetSocketAddress(mmPeerAddress, mmPeerPort));
+                Log.d(TAG, "Sending frames to " + mmPeerAddress + ":" + mmPeerPort);
+            }
+            return mmChannel;
+        }
+
+        // One datagram per chunk, see FrameChunker for the layout. Both buffers
+        // must be positioned at 0.
+        private void sendChunks(ByteBuffer header, ByteBuffer frame) throws IOException {
+            DatagramChannel channel = channel();
+            int headerLength = header.remaining();
+            int frameLength = frame.remaining();
+            int length = headerLength + frameLength;
+            int frameId = mmChunker.nextFrameId();
+            int count = mmChunker.chunkCount(length);
+            mmGather[1] = header;
+            mmGather[2] = frame;
+            for (int i = 0; i < count; i++) {
+                int offset = mmChunker.chunkOffset(i);
+                int end = offset + mmChunker.chunkLength(length, i);
+
+                mmChunkHeader.clear();
+                FrameChunker.writeHeader(mmChunkHeader, frameId, length, offset, i, count);
+                mmChunkHeader.flip();
+                slice(header, offset, end, headerLength);
+                slice(frame, offset - headerLength, end - headerLength, frameLength);
+
+                channel.write(mmGather);
+            }
+        }
+
+        @Override
+        public void onPacket(ByteBuffer header, ByteBuffer payload) throws IOException {
+            mmNalGather[0] = header;
+            mmNalGather[1] = payload;
+            mmChannel.write(mmNalGather);
+        }
+
+        private void slice(ByteBuffer buffer, int start, int end, int length) {
+            buffer.limit(Math.max(0, Math.min(end, length)));
+            buffer.position(Math.max(0, Math.min(start, length)));
+        }
+
         void cancel() {
+            mmCancelled = true;
+            mmOutbox.wakeUp();
             try {
-                mmOutStream.write("$".getBytes());
-                mmOutStream.flush();
+                if (mmChannel != null) {
+                    mmChannel.write(ByteBuffer.wrap("$".getBytes()));
+                    mmChannel.close();
+                }
             } catch (IOException e) {
                 Log.e(TAG, "Failed to send communication end indication", e);
             }
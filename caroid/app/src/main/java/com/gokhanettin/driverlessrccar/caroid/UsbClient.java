@@ -3,6 +3,7 @@ package com.gokhanettin.driverlessrccar.caroid;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbManager;
@@ -10,6 +11,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Parcel;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.hoho.android.usbserial.driver.UsbSerialDriver;
@@ -17,9 +19,13 @@ import com.hoho.android.usbserial.driver.UsbSerialPort;
 import com.hoho.android.usbserial.util.SerialInputOutputManager;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 class UsbClient {
     private static final String TAG = "UsbClient";
@@ -33,7 +39,36 @@ class UsbClient {
 
     private ConnectedThread mConnectedThread = null;
     private int mState;
+    private volatile long mControlLatencyNanos = 0;
+    private volatile long mMaxControlLatencyNanos = 0;
     private int mNewState;
+    private volatile ReadingListener mReadingListener;
+    private volatile int mBaudRate = BaudNegotiator.DEFAULT_BAUD_RATE;
+
+    // Gets every reading on the serial thread, see setReadingListener(). The
+    // input is recycled as soon as onReading() returns, don't keep it around.
+    public interface ReadingListener {
+        void onReading(ArduinoInput input);
+    }
+
+    // Per device serial number, the baud rate that worked last, failed
+    // negotiations in a row and when to negotiate again after them
+    private static final String PREFERENCES_NAME = "usb_serial";
+    private static final String PREFERENCE_BAUD_RATE = "baud_rate_";
+    private static final String PREFERENCE_BAUD_FAILURES = "baud_failures_";
+    private static final String PREFERENCE_BAUD_RETRY = "baud_retry_";
+    // How long to wait for the Arduino to answer a binary framing request,
+    // which is repeated every PROTOCOL_RETRY_MILLIS in case it was rebooting
+    private static final long PROTOCOL_TIMEOUT_MILLIS = 5000;
+    // Firmware without binary takes the request for a command line and sets
+    // its speed command to atof("B"), 0, which it applies as soon as control
+    // mode is on. So requests only go out before control is requested, and
+    // afterwards this neutral command overwrites what they left behind.
+    private static final String NEUTRAL_COMMAND = String.format(Locale.US, "%d %d\n",
+            ArduinoOutput.SPEED_COMMAND_NEUTRAL, ArduinoOutput.STEERING_COMMAND_NEUTRAL);
+    private static final long PROTOCOL_RETRY_MILLIS = 500;
+
+    private static final long STATUS_INTERVAL_NANOS = 100000000L; // 10 Hz MESSAGE_SEND and MESSAGE_RECEIVE for the UI
 
     // Message types sent from the BluetoothClient to activities
     public static final int MESSAGE_CONNECTION_STATE_CHANGE = 0;
@@ -75,6 +110,12 @@ class UsbClient {
         }
     }
 
+    // Readings are handed to the listener on the serial thread as they are
+    // parsed. The Handler then only gets them at the UI status rate.
+    public void setReadingListener(ReadingListener listener) {
+        mReadingListener = listener;
+    }
+
     public synchronized int getState() {
         return mState;
     }
@@ -93,11 +134,16 @@ class UsbClient {
                 return false;
             }
             port.open(connection);
-            port.setParameters(115200, 8, UsbSerialPort.STOPBITS_1, UsbSerialPort.PARITY_NONE);
+            port.setParameters(BaudNegotiator.DEFAULT_BAUD_RATE, 8,
+                    UsbSerialPort.STOPBITS_1, UsbSerialPort.PARITY_NONE);
         }
         catch (IOException exception) {
             return false;
         }
+        mBaudRate = BaudNegotiator.DEFAULT_BAUD_RATE;
+        SharedPreferences preferences =
+                context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        String deviceKey = deviceKey(port);
 
         mPort = port;
         mDriver = mPort.getDriver();
@@ -109,7 +155,7 @@ class UsbClient {
             mConnectedThread = null;
         }
 
-        mConnectedThread = new ConnectedThread(mPort);
+        mConnectedThread = new ConnectedThread(mPort, preferences, deviceKey);
         mConnectedThread.start();
 
         // Send the name of the connected device back
@@ -122,6 +168,21 @@ class UsbClient {
         return true;
     }
 
+    // The serial number, or vendor and product id for adapters without one
+    private static String deviceKey(UsbSerialPort port) {
+        String serial = port.getSerial();
+        if (serial != null && !serial.isEmpty()) {
+            return serial;
+        }
+        UsbDevice device = port.getDriver().getDevice();
+        return String.format(Locale.US, "%04x:%04x", device.getVendorId(), device.getProductId());
+    }
+
+    // The baud rate the serial link settled at
+    public int getBaudRate() {
+        return mBaudRate;
+    }
+
     public synchronized void disconnect() {
         mState = STATE_NONE;
         notifyStateChange();
@@ -169,6 +230,43 @@ class UsbClient {
         t.send(out, delay);
     }
 
+    // Control command from the network, receivedNanos is when it was read
+    public void sendControl(int speedCmd, int steeringCmd, long receivedNanos) {
+        ArduinoOutput out = new ArduinoOutput();
+        out.speedCommand = speedCmd;
+        out.steeringCommand = steeringCmd;
+        out.receivedNanos = receivedNanos;
+
+        ConnectedThread t;
+
+        // Synchronize a copy of the ReaderThread
+        synchronized (this) {
+            if (mState != STATE_CONNECTED) return;
+            t = mConnectedThread;
+        }
+        // Send unsynchronized
+        t.send(out, 0);
+    }
+
+    // Network read to serial queue latency of the last control command
+    public long getControlLatencyNanos() {
+        return mControlLatencyNanos;
+    }
+
+    public long getMaxControlLatencyNanos() {
+        return mMaxControlLatencyNanos;
+    }
+
+    // Writes waiting for the serial port, and control commands that were
+    // replaced by a newer one before they were written
+    public synchronized int getWriteQueueDepth() {
+        return mConnectedThread != null ? mConnectedThread.mManager.getWriteQueueDepth() : 0;
+    }
+
+    public synchronized long getCoalescedCommandCount() {
+        return mConnectedThread != null ? mConnectedThread.mManager.getCoalescedWriteCount() : 0;
+    }
+
     public void send(String command, int delay) {
         ConnectedThread t;
 
@@ -194,34 +292,162 @@ class UsbClient {
         notifyStateChange();
     }
 
-    private class ConnectedThread extends Thread implements SerialInputOutputManager.Listener {
-        private SerialInputOutputManager mManager;
-
-        private StringBuilder mmStringBuilder;
-        private boolean mmValid;
+    private class ConnectedThread extends Thread
+            implements SerialInputOutputManager.BufferListener, SerialCodec.Listener {
+        private final SerialInputOutputManager mManager;
+
+        private final UsbSerialPort mmPort;
+        private final SerialCodec mmCodec = new SerialCodec(this);
+        // Set once the Arduino answered in binary, commands follow suit
+        private volatile boolean mmBinary;
+        private final CountDownLatch mmBinaryLatch = new CountDownLatch(1);
+        // Synchronized by 'mmProbeLock', set while protocol requests may go out
+        private final Object mmProbeLock = new Object();
+        private boolean mmProbing = true;
+        private final BaudNegotiator mmNegotiator;
+        private final SharedPreferences mmPreferences;
+        private final String mmDeviceKey;
+        private volatile long mmLastFrameNanos;
+        private long mmLastStatusNanos;
+        private long mmLastReadingNanos;
 
         private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
 
-        ConnectedThread(UsbSerialPort port) {
+        ConnectedThread(UsbSerialPort port, SharedPreferences preferences, String deviceKey) {
             Log.d(TAG, "create ReaderThread");
 
+            mmPort = port;
+            mmPreferences = preferences;
+            mmDeviceKey = deviceKey;
             mManager = new SerialInputOutputManager(port, this);
             mExecutor.submit(mManager);
+            mmNegotiator = new BaudNegotiator(new BaudNegotiator.Link() {
+                @Override
+                public boolean supportsBaudRate(int baudRate) {
+                    return mmPort.supportsBaudRate(baudRate);
+                }
+
+                @Override
+                public void setBaudRate(int baudRate) throws IOException {
+                    mmPort.setParameters(baudRate, 8, UsbSerialPort.STOPBITS_1,
+                            UsbSerialPort.PARITY_NONE);
+                }
+
+                @Override
+                public void write(byte[] frame) {
+                    mManager.writeAsync(frame);
+                }
+            });
 
             mState = STATE_CONNECTED;
-            mmStringBuilder = new StringBuilder();
-            mmValid = false;
+        }
+
+        // Switches to binary framing and then to the fastest baud rate that
+        // works, see BaudNegotiator. Firmware without either keeps talking
+        // text at the default rate.
+        @Override
+        public void run() {
+            try {
+                long deadline = SystemClock.elapsedRealtime() + PROTOCOL_TIMEOUT_MILLIS;
+                do {
+                    synchronized (mmProbeLock) {
+                        if (!mmProbing) {
+                            break;
+                        }
+                        mManager.writeAsync(SerialCodec.PROTOCOL_REQUEST.getBytes());
+                    }
+                } while (!mmBinaryLatch.await(PROTOCOL_RETRY_MILLIS, TimeUnit.MILLISECONDS)
+                        && SystemClock.elapsedRealtime() < deadline);
+                stopProbing();
+                if (!mmBinary) {
+                    Log.i(TAG, "Arduino talks text at " + mBaudRate + " baud");
+                    return;
+                }
+
+                if (System.currentTimeMillis()
+                        < mmPreferences.getLong(PREFERENCE_BAUD_RETRY + mmDeviceKey, 0)) {
+                    Log.i(TAG, "Faster baud rates failed recently, staying at " + mBaudRate);
+                    return;
+                }
+                int preferred = mmPreferences.getInt(PREFERENCE_BAUD_RATE + mmDeviceKey, 0);
+                int baudRate = mmNegotiator.negotiate(preferred);
+                if (!mmNegotiator.isAnswered()) {
+                    Log.i(TAG, "Arduino does not negotiate, staying at " + mBaudRate);
+                    return;
+                }
+                if (baudRate == BaudNegotiator.DEFAULT_BAUD_RATE) {
+                    onBaudRateFailed();
+                    return;
+                }
+                mmLastFrameNanos = SystemClock.elapsedRealtimeNanos();
+                mBaudRate = baudRate;
+                mmPreferences.edit()
+                        .putInt(PREFERENCE_BAUD_RATE + mmDeviceKey, baudRate)
+                        .remove(PREFERENCE_BAUD_FAILURES + mmDeviceKey)
+                        .remove(PREFERENCE_BAUD_RETRY + mmDeviceKey)
+                        .apply();
+                Log.i(TAG, "Serial link at " + baudRate + " baud");
+
+                keepAlive();
+                // The firmware went back to the default, e.g. after a reset
+                mmPort.setParameters(BaudNegotiator.DEFAULT_BAUD_RATE, 8,
+                        UsbSerialPort.STOPBITS_1, UsbSerialPort.PARITY_NONE);
+                mBaudRate = BaudNegotiator.DEFAULT_BAUD_RATE;
+                onBaudRateFailed();
+            } catch (InterruptedException e) {
+                // Cancelled
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to restore the serial baud rate", e);
+                connectionLost();
+            }
+        }
+
+        // Pings the Arduino so that it keeps the negotiated rate, returns once
+        // nothing came back for REVERT_MILLIS
+        private void keepAlive() throws InterruptedException {
+            byte[] frame = new byte[SerialCodec.MAX_FRAME_SIZE];
+            long revertNanos = BaudNegotiator.REVERT_MILLIS * 1000000L;
+            for (int sequence = 0; ; sequence = (sequence + 1) & 0xff) {
+                Thread.sleep(BaudNegotiator.KEEPALIVE_MILLIS);
+                if (SystemClock.elapsedRealtimeNanos() - mmLastFrameNanos >= revertNanos) {
+                    return;
+                }
+                int length = SerialCodec.encodePing(sequence, frame);
+                mManager.writeAsync(Arrays.copyOf(frame, length));
+            }
+        }
+
+        // Backs off from negotiating with this device, a single bad attempt
+        // must not keep it at the default for good
+        private void onBaudRateFailed() {
+            int failures = mmPreferences.getInt(PREFERENCE_BAUD_FAILURES + mmDeviceKey, 0) + 1;
+            long delay = BaudNegotiator.retryDelayMillis(failures);
+            mmPreferences.edit()
+                    .putInt(PREFERENCE_BAUD_FAILURES + mmDeviceKey, failures)
+                    .putLong(PREFERENCE_BAUD_RETRY + mmDeviceKey, System.currentTimeMillis() + delay)
+                    .apply();
+            Log.w(TAG, "Serial link back at " + BaudNegotiator.DEFAULT_BAUD_RATE
+                    + " baud, negotiating again in " + delay / 1000 + " s");
+        }
+
+        // Ends the protocol requests, and undoes what they did to firmware
+        // that took them for commands
+        private void stopProbing() {
+            synchronized (mmProbeLock) {
+                if (mmProbing) {
+                    mmProbing = false;
+                    if (!mmBinary) {
+                        mManager.writeAsync(NEUTRAL_COMMAND.getBytes());
+                    }
+                }
+            }
         }
 
         void send(String command, int delay) {
             Log.d(TAG, "Sending to serial: " + command);
 
-            byte[] buffer = command.getBytes();
-            try {
-                mManager.writeAsync(buffer);
-            } catch (Exception e) {
-                Log.e(TAG, "Exception on send()", e);
-                connectionLost();
+            if (!mManager.writeAsync(command.getBytes())) {
+                Log.w(TAG, "Serial write queue full, dropped " + command);
             }
 
             if (delay > 0) {
@@ -234,18 +460,59 @@ class UsbClient {
         }
 
         void send(ArduinoOutput out, int delay) {
-            // "<throttle_cmd> <steering_cmd>\n"
-            String string = String.format(Locale.US, "%d %d\n", out.speedCommand, out.steeringCommand);
-            send(string, delay);
-            mHandler.obtainMessage(MESSAGE_SEND, -1, -1, out).sendToTarget();
+            byte[] buffer;
+            if (mmBinary) {
+                buffer = new byte[SerialCodec.HEADER_SIZE + SerialCodec.CONTROL_SIZE + 1];
+                SerialCodec.encodeControl(out.speedCommand, out.steeringCommand, buffer);
+            } else {
+                // "<throttle_cmd> <steering_cmd>\n"
+                buffer = String.format(Locale.US, "%d %d\n", out.speedCommand, out.steeringCommand)
+                        .getBytes();
+            }
+            // Only the latest command matters, one still queued is replaced
+            mManager.writeLatestAsync(buffer);
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            out.queuedNanos = SystemClock.elapsedRealtimeNanos();
+            PipelineStats.record(PipelineStats.STAGE_COMMAND, out.receivedNanos, out.queuedNanos);
+            if (out.receivedNanos != 0) {
+                long latency = out.queuedNanos - out.receivedNanos;
+                mControlLatencyNanos = latency;
+                if (latency > mMaxControlLatencyNanos) {
+                    mMaxControlLatencyNanos = latency;
+                }
+            }
+
+            // The UI only needs to follow along, don't flood the main looper
+            if (out.queuedNanos - mmLastStatusNanos >= STATUS_INTERVAL_NANOS) {
+                mmLastStatusNanos = out.queuedNanos;
+                mHandler.obtainMessage(MESSAGE_SEND, -1, -1, out).sendToTarget();
+            }
         }
 
         void requestCommunicationMode(String mode, int delay) {
             // "<mode>\n"
             Log.d(TAG, "Changing mode to " + mode);
-            byte[] buffer = (mode + "\n").getBytes();
+            if (MODE_CONTROL.equals(mode)) {
+                stopProbing();
+            }
+            byte[] buffer;
+            if (mmBinary) {
+                buffer = new byte[SerialCodec.HEADER_SIZE + 2];
+                SerialCodec.encodeMode(mode.charAt(0), buffer);
+            } else {
+                buffer = (mode + "\n").getBytes();
+            }
             try {
-                mManager.writeAsync(buffer);
+                if (!mManager.writeAsync(buffer)) {
+                    Log.w(TAG, "Serial write queue full, dropped mode " + mode);
+                    return;
+                }
                 Message msg = mHandler.obtainMessage(MESSAGE_COMMUNICATION_MODE_CHANGE);
                 Bundle bundle = new Bundle();
                 bundle.putString(COMMUNICATION_MODE, mode);
@@ -265,45 +532,69 @@ class UsbClient {
         }
 
         void cancel() {
+            interrupt();
             try {
                 mManager.stop();
-                mManager = null;
             } catch (Exception e) {
                 Log.e(TAG, "close() of connect socket failed", e);
             }
         }
 
-        private void parse() {
-            // "<throttle_cmd>;<steering_cmd>;<velocity>;<steering>"
-            String string = mmStringBuilder.toString();
-            try {
-                Log.d(TAG, "Parse string: " + string);
-                String tokens[] = string.split(" ");
-                ArduinoInput in = new ArduinoInput();
-                in.speedCommand = Integer.parseInt(tokens[0]);
-                in.steeringCommand = Integer.parseInt(tokens[1]);
-                in.distance = Float.parseFloat(tokens[2]);
-                mHandler.obtainMessage(MESSAGE_RECEIVE, -1, -1, in).sendToTarget();
-            } catch (NumberFormatException exc) {
-                Log.e(TAG, "Unable to parse data from serial: " + string, exc);
+        @Override
+        public void onLine(byte[] line, int length) {
+            ArduinoInput in = ArduinoInput.obtain();
+            if (!in.parse(line, length)) {
+                Log.e(TAG, "Unable to parse data from serial: "
+                        + new String(line, 0, length, StandardCharsets.US_ASCII));
+                in.recycle();
+                return;
             }
+            deliver(in);
         }
 
         @Override
-        public void onNewData(byte[] data) {
-            for (byte c : data) {
-                if (mmValid) {
-                    if (c == '\n') {
-                        parse();
-                        mmStringBuilder.setLength(0);
-                        break;
-                    } else {
-                        mmStringBuilder.append((char) c);
-                    }
-                } else if (c == '\n') {
-                    mmValid = true;
+        public void onFrame(int type, byte[] payload, int length) {
+            mmLastFrameNanos = SystemClock.elapsedRealtimeNanos();
+            if (type != SerialCodec.TYPE_TELEMETRY) {
+                mmNegotiator.onFrame(type, payload, length);
+                return;
+            }
+            ArduinoInput in = ArduinoInput.obtain();
+            if (!SerialCodec.decodeTelemetry(payload, length, in)) {
+                in.recycle();
+                return;
+            }
+            if (!mmBinary) {
+                Log.d(TAG, "Arduino switched to binary framing");
+                mmBinary = true;
+                mmBinaryLatch.countDown();
+            }
+            deliver(in);
+        }
+
+        private void deliver(ArduinoInput in) {
+            ReadingListener listener = mReadingListener;
+            if (listener != null) {
+                listener.onReading(in);
+                long now = SystemClock.elapsedRealtimeNanos();
+                if (now - mmLastReadingNanos < STATUS_INTERVAL_NANOS) {
+                    in.recycle();
+                    return;
                 }
+                mmLastReadingNanos = now;
             }
+            // Recycled by UsbHandlerCallback
+            mHandler.obtainMessage(MESSAGE_RECEIVE, -1, -1, in).sendToTarget();
+        }
+
+        @Override
+        public void onNewData(byte[] buffer, int offset, int length) {
+            mmCodec.feed(buffer, offset, length);
+        }
+
+        @Override
+        public void onNewData(byte[] data) {
+            onNewData(data, 0, data.length);
         }
 
         @Override
@@ -13,6 +13,7 @@ abstract class UsbHandlerCallback implements Handler.Callback {
             case UsbClient.MESSAGE_RECEIVE:
                 ArduinoInput in = (ArduinoInput) msg.obj;
                 onReceived(in);
+                in.recycle();
                 break;
             case UsbClient.MESSAGE_SEND:
                 ArduinoOutput out = (ArduinoOutput) msg.obj;
@@ -34,6 +35,7 @@ abstract class UsbHandlerCallback implements Handler.Callback {
         return true;
     }
     protected abstract void onConnectionStateChanged(int newState);
+    // The input is recycled as soon as this returns, don't keep it around
     protected abstract void onReceived(ArduinoInput in);
     protected abstract void onSent(ArduinoOutput out);
     protected abstract void onCommunicationModeChanged(String newMode);
@@ -0,0 +1,175 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import android.graphics.ImageFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+// Converts camera previews into NV12, the layout MediaCodec takes for
+// COLOR_FormatYUV420SemiPlanar: a tightly packed Y plane followed by
+// interleaved U/V at half resolution.
+//
+// Supports the two formats every camera offers:
+//   NV21  Y plane, then interleaved V/U. Only the chroma byte order differs.
+//   YV12  Y plane with rows padded to 16 bytes, then the V and U planes with
+//         rows padded to 16 bytes as well.
+// Chroma is moved in bulk through long views of the arrays and swapped or
+// interleaved eight bytes at a time with shifts and masks. Bulk long copies
+// are native on ART, single byte array accesses are not. Widths that are not
+// a multiple of 16 take a plain byte loop.
+class YuvConverter {
+    private static final long LOW_BYTES = 0x00FF00FF00FF00FFL;
+    private static final int BLOCK_LONGS = 512;
+
+    private final int mFormat;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mYStride;
+    private final int mCStride;
+    private final boolean mAligned;
+
+    private final long[] mIn = new long[BLOCK_LONGS];
+    private final long[] mIn2 = new long[BLOCK_LONGS];
+    private final long[] mOut = new long[BLOCK_LONGS * 2];
+
+    YuvConverter(int format, int width, int height) {
+        if (format != ImageFormat.NV21 && format != ImageFormat.YV12) {
+            throw new IllegalArgumentException("Unsupported preview format " + format);
+        }
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+        mYStride = format == ImageFormat.YV12 ? align16(width) : width;
+        mCStride = format == ImageFormat.YV12 ? align16(mYStride / 2) : width;
+        mAligned = width % 16 == 0 && width / 2 <= BLOCK_LONGS * 8;
+    }
+
+    // Size of a preview in the source format
+    int sourceSize() {
+        return mYStride * mHeight + mCStride * mHeight / 2 * (mFormat == ImageFormat.YV12 ? 2 : 1);
+    }
+
+    // Buffer size the camera needs for a preview in any format, see
+    // Camera.Parameters.setPreviewFormat()
+    static int sourceSize(int format, int width, int height) {
+        if (format == ImageFormat.NV21) {
+            return outputSize(width, height);
+        }
+        if (format == ImageFormat.YV12) {
+            int yStride = align16(width);
+            return yStride * height + align16(yStride / 2) * height;
+        }
+        return width * height * ImageFormat.getBitsPerPixel(format) / 8;
+    }
+
+    static int outputSize(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    void toNv12(byte[] src, byte[] dst) {
+        copyLuma(src, dst);
+        if (mFormat == ImageFormat.NV21) {
+            if (mAligned) {
+                swapChroma(src, dst);
+            } else {
+                swapChromaBytes(src, dst);
+            }
+        } else {
+            if (mAligned) {
+                interleaveChroma(src, dst);
+            } else {
+                interleaveChromaBytes(src, dst);
+            }
+        }
+    }
+
+    private void copyLuma(byte[] src, byte[] dst) {
+        if (mYStride == mWidth) {
+            System.arraycopy(src, 0, dst, 0, mWidth * mHeight);
+        } else {
+            for (int y = 0; y < mHeight; y++) {
+                System.arraycopy(src, y * mYStride, dst, y * mWidth, mWidth);
+            }
+        }
+    }
+
+    // V/U to U/V: swap the bytes of every 16 bit lane
+    private void swapChroma(byte[] src, byte[] dst) {
+        int offset = mWidth * mHeight;
+        LongBuffer in = longs(src, offset);
+        LongBuffer out = longs(dst, offset);
+        int remaining = mWidth * mHeight / 2 / 8;
+        while (remaining > 0) {
+            int n = Math.min(remaining, BLOCK_LONGS);
+            in.get(mIn, 0, n);
+            for (int i = 0; i < n; i++) {
+                long vu = mIn[i];
+                mIn[i] = (vu & LOW_BYTES) << 8 | (vu >>> 8) & LOW_BYTES;
+            }
+            out.put(mIn, 0, n);
+            remaining -= n;
+        }
+    }
+
+    // Separate V and U planes to interleaved U/V, one row per block
+    private void interleaveChroma(byte[] src, byte[] dst) {
+        int vPlane = mYStride * mHeight;
+        int uPlane = vPlane + mCStride * mHeight / 2;
+        LongBuffer vs = longs(src, vPlane);
+        LongBuffer us = longs(src, uPlane);
+        LongBuffer out = longs(dst, mWidth * mHeight);
+        int n = mWidth / 2 / 8;
+        for (int y = 0; y < mHeight / 2; y++) {
+            vs.position(y * mCStride / 8);
+            us.position(y * mCStride / 8);
+            vs.get(mIn, 0, n);
+            us.get(mIn2, 0, n);
+            for (int i = 0; i < n; i++) {
+                long u = mIn2[i];
+                long v = mIn[i];
+                mOut[i * 2] = spread(u) | spread(v) << 8;
+                mOut[i * 2 + 1] = spread(u >>> 32) | spread(v >>> 32) << 8;
+            }
+            out.put(mOut, 0, n * 2);
+        }
+    }
+
+    private void swapChromaBytes(byte[] src, byte[] dst) {
+        int lumaSize = mWidth * mHeight;
+        for (int i = lumaSize; i + 1 < lumaSize + lumaSize / 2; i += 2) {
+            dst[i] = src[i + 1];
+            dst[i + 1] = src[i];
+        }
+    }
+
+    private void interleaveChromaBytes(byte[] src, byte[] dst) {
+        int vPlane = mYStride * mHeight;
+        int uPlane = vPlane + mCStride * mHeight / 2;
+        for (int y = 0; y < mHeight / 2; y++) {
+            int d = mWidth * mHeight + y * mWidth;
+            for (int x = 0; x < mWidth / 2; x++) {
+                dst[d + x * 2] = src[uPlane + y * mCStride + x];
+                dst[d + x * 2 + 1] = src[vPlane + y * mCStride + x];
+            }
+        }
+    }
+
+    // Little endian, so the first byte in memory is the lowest of each long
+    private static LongBuffer longs(byte[] array, int offset) {
+        ByteBuffer bytes = ByteBuffer.wrap(array).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.position(offset);
+        return bytes.asLongBuffer();
+    }
+
+    // Moves the four low bytes of x to the even bytes of the result
+    private static long spread(long x) {
+        x &= 0xFFFFFFFFL;
+        x = (x | x << 16) & 0x0000FFFF0000FFFFL;
+        return (x | x << 8) & LOW_BYTES;
+    }
+
+    private static int align16(int x) {
+        return (x + 15) & ~15;
+    }
+}
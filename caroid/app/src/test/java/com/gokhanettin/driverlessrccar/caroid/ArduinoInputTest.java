@@ -0,0 +1,58 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class ArduinoInputTest {
+    private static boolean parse(ArduinoInput input, String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.US_ASCII);
+        return input.parse(bytes, bytes.length);
+    }
+
+    @Test
+    public void parsesReading() {
+        ArduinoInput input = new ArduinoInput();
+        assertTrue(parse(input, "1450 1600 23.75\r"));
+        assertTrue(input.isOnline);
+        assertEquals(1450, input.speedCommand);
+        assertEquals(1600, input.steeringCommand);
+        assertEquals(23.75f, input.distance, 1e-4f);
+
+        assertTrue(parse(input, "-1 0 -0.50"));
+        assertEquals(-1, input.speedCommand);
+        assertEquals(0, input.steeringCommand);
+        assertEquals(-0.5f, input.distance, 1e-6f);
+
+        assertTrue(parse(input, "1400 1568 7"));
+        assertEquals(7f, input.distance, 0f);
+    }
+
+    @Test
+    public void rejectsMalformedLines() {
+        ArduinoInput input = new ArduinoInput();
+        String[] lines = {"", "\r", "1400", "1400 1568", "1400 1568 ", "1400  1568 1.0",
+                "1400 1568 1.", "1400 1568 .5", "1400 1568 nan", "1400 1568 1.0 2",
+                "a 1568 1.0", "1400 1568 1.0x", "99999999999 1 1.0"};
+        for (String line : lines) {
+            assertFalse(line, parse(input, line));
+        }
+        assertFalse(input.isOnline);
+        assertEquals(1400, input.speedCommand);
+        assertEquals(0f, input.distance, 0f);
+    }
+
+    @Test
+    public void recycledInstancesAreReset() {
+        ArduinoInput input = ArduinoInput.obtain();
+        parse(input, "1 2 3.0");
+        input.recycle();
+        ArduinoInput again = ArduinoInput.obtain();
+        assertFalse(again.isOnline);
+        assertEquals(1400, again.speedCommand);
+        assertEquals(1568, again.steeringCommand);
+        again.recycle();
+    }
+}
@@ -0,0 +1,158 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BaudNegotiatorTest {
+    // Echoes like carino.ino does, as long as both ends are at the same rate
+    // and the rate is one that works. Goes back to the default rate once
+    // REVERT_MILLIS pass without a valid frame.
+    private static class FakeArduino implements BaudNegotiator.Link {
+        final int maxWorkingRate;
+        final boolean knowsHandshake;
+        BaudNegotiator negotiator;
+        int phoneRate = BaudNegotiator.DEFAULT_BAUD_RATE;
+        int arduinoRate = BaudNegotiator.DEFAULT_BAUD_RATE;
+        long lastFrameNanos;
+        int lostConfirmEchoes;
+        // What the phone's driver can do, and whether it says so up front
+        int maxPhoneRate = Integer.MAX_VALUE;
+        boolean reportsPhoneRates = true;
+        final List<Integer> tried = new ArrayList<>();
+
+        FakeArduino(int maxWorkingRate, boolean knowsHandshake) {
+            this.maxWorkingRate = maxWorkingRate;
+            this.knowsHandshake = knowsHandshake;
+        }
+
+        @Override
+        public boolean supportsBaudRate(int baudRate) {
+            return !reportsPhoneRates || baudRate <= maxPhoneRate;
+        }
+
+        @Override
+        public void setBaudRate(int baudRate) throws IOException {
+            if (baudRate > maxPhoneRate) {
+                throw new IOException("Baud rate " + baudRate + " currently not supported");
+            }
+            phoneRate = baudRate;
+        }
+
+        @Override
+        public void write(byte[] frame) {
+            revert();
+            if (phoneRate != arduinoRate || arduinoRate > maxWorkingRate || !knowsHandshake) {
+                return;
+            }
+            int type = frame[2];
+            int length = frame[1];
+            byte[] payload = new byte[length];
+            System.arraycopy(frame, SerialCodec.HEADER_SIZE, payload, 0, length);
+            assertEquals(SerialCodec.crc8(frame, 1, length + 2), frame[3 + length] & 0xff);
+            int rate = length == 4 ? (payload[0] & 0xff) | (payload[1] & 0xff) << 8
+                    | (payload[2] & 0xff) << 16 | (payload[3] & 0xff) << 24 : 0;
+            lastFrameNanos = System.nanoTime();
+            if (type == SerialCodec.TYPE_BAUD_CONFIRM && lostConfirmEchoes > 0) {
+                lostConfirmEchoes--;
+                return;
+            }
+            negotiator.onFrame(type, payload, length);
+            if (type == SerialCodec.TYPE_BAUD) {
+                tried.add(rate);
+                arduinoRate = rate;
+            }
+        }
+
+        void revert() {
+            if (arduinoRate != BaudNegotiator.DEFAULT_BAUD_RATE && System.nanoTime()
+                    - lastFrameNanos >= BaudNegotiator.REVERT_MILLIS * 1000000L) {
+                arduinoRate = BaudNegotiator.DEFAULT_BAUD_RATE;
+            }
+        }
+    }
+
+    private static FakeArduino connect(int maxWorkingRate, boolean knowsHandshake) {
+        FakeArduino arduino = new FakeArduino(maxWorkingRate, knowsHandshake);
+        arduino.negotiator = new BaudNegotiator(arduino);
+        return arduino;
+    }
+
+    @Test
+    public void settlesOnFastestRate() throws Exception {
+        FakeArduino arduino = connect(1000000, true);
+        assertEquals(1000000, arduino.negotiator.negotiate(0));
+        assertTrue(arduino.negotiator.isAnswered());
+        assertEquals(1000000, arduino.phoneRate);
+    }
+
+    @Test
+    public void fallsBackToNextRate() throws Exception {
+        FakeArduino arduino = connect(500000, true);
+        assertEquals(500000, arduino.negotiator.negotiate(0));
+        assertEquals(500000, arduino.phoneRate);
+        assertEquals(500000, arduino.arduinoRate);
+        assertEquals(2, arduino.tried.size());
+    }
+
+    @Test
+    public void lostConfirmationEchoDoesNotStrandLink() throws Exception {
+        FakeArduino arduino = connect(1000000, true);
+        arduino.lostConfirmEchoes = 1;
+        // The firmware kept 1M, but went back once the phone fell silent
+        assertEquals(500000, arduino.negotiator.negotiate(0));
+        assertEquals(500000, arduino.phoneRate);
+        assertEquals(500000, arduino.arduinoRate);
+        assertEquals(2, arduino.tried.size());
+    }
+
+    @Test
+    public void skipsRatesThePhoneCannotSet() throws Exception {
+        // CH34x
+        FakeArduino arduino = connect(1000000, true);
+        arduino.maxPhoneRate = BaudNegotiator.DEFAULT_BAUD_RATE;
+        long start = System.nanoTime();
+        assertEquals(BaudNegotiator.DEFAULT_BAUD_RATE, arduino.negotiator.negotiate(500000));
+        assertTrue(arduino.tried.isEmpty());
+        assertFalse(arduino.negotiator.isAnswered());
+        assertTrue(System.nanoTime() - start < BaudNegotiator.REVERT_MILLIS * 1000000L);
+    }
+
+    @Test
+    public void recoversWhenPhoneFailsToSwitch() throws Exception {
+        FakeArduino arduino = connect(1000000, true);
+        arduino.maxPhoneRate = 250000;
+        arduino.reportsPhoneRates = false;
+        assertEquals(250000, arduino.negotiator.negotiate(0));
+        assertEquals(250000, arduino.phoneRate);
+        assertEquals(250000, arduino.arduinoRate);
+        assertEquals(3, arduino.tried.size());
+    }
+
+    @Test
+    public void backsOffAfterFailures() {
+        assertEquals(0, BaudNegotiator.retryDelayMillis(0));
+        assertEquals(BaudNegotiator.RETRY_MILLIS, BaudNegotiator.retryDelayMillis(1));
+        assertEquals(4 * BaudNegotiator.RETRY_MILLIS, BaudNegotiator.retryDelayMillis(3));
+        assertEquals(BaudNegotiator.MAX_RETRY_MILLIS, BaudNegotiator.retryDelayMillis(100));
+    }
+
+    @Test
+    public void triesPreferredRateFirst() throws Exception {
+        FakeArduino arduino = connect(1000000, true);
+        assertEquals(250000, arduino.negotiator.negotiate(250000));
+        assertEquals(1, arduino.tried.size());
+    }
+
+    @Test
+    public void oldFirmwareStaysAtDefault() throws Exception {
+        FakeArduino arduino = connect(1000000, false);
+        assertEquals(BaudNegotiator.DEFAULT_BAUD_RATE, arduino.negotiator.negotiate(0));
+        assertFalse(arduino.negotiator.isAnswered());
+        assertEquals(BaudNegotiator.DEFAULT_BAUD_RATE, arduino.phoneRate);
+    }
+}
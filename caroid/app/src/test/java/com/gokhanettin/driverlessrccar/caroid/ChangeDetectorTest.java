@@ -0,0 +1,96 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ChangeDetectorTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    private static byte[] preview(int luma) {
+        byte[] preview = new byte[Nv21.size(WIDTH, HEIGHT)];
+        Arrays.fill(preview, 0, WIDTH * HEIGHT, (byte) luma);
+        return preview;
+    }
+
+    // Changes every pixel of one 16x16 block
+    private static void paintBlock(byte[] preview, int left, int top, int luma) {
+        for (int y = top; y < top + ChangeDetector.BLOCK_SIZE; y++) {
+            Arrays.fill(preview, y * WIDTH + left, y * WIDTH + left + ChangeDetector.BLOCK_SIZE, (byte) luma);
+        }
+    }
+
+    @Test
+    public void firstFrameHasChanged() {
+        ChangeDetector detector = new ChangeDetector();
+        detector.setThreshold(4, 100);
+        assertTrue(detector.isEnabled());
+        assertTrue(detector.update(preview(100), WIDTH, Roi.full(WIDTH, HEIGHT)));
+        assertFalse(detector.update(preview(100), WIDTH, Roi.full(WIDTH, HEIGHT)));
+        assertEquals(1, detector.getUnchangedCount());
+    }
+
+    @Test
+    public void smallDifferencesAreIgnored() {
+        ChangeDetector detector = new ChangeDetector();
+        detector.setThreshold(4, 100);
+        Roi roi = Roi.full(WIDTH, HEIGHT);
+        detector.update(preview(100), WIDTH, roi);
+        assertFalse(detector.update(preview(104), WIDTH, roi));
+        assertTrue(detector.update(preview(105), WIDTH, roi));
+    }
+
+    @Test
+    public void oneChangedBlockIsEnough() {
+        ChangeDetector detector = new ChangeDetector();
+        detector.setThreshold(4, 100);
+        Roi roi = Roi.full(WIDTH, HEIGHT);
+        byte[] preview = preview(100);
+        detector.update(preview, WIDTH, roi);
+        paintBlock(preview, 48, 32, 200);
+        assertTrue(detector.update(preview, WIDTH, roi));
+        // The changed frame is the new reference
+        assertFalse(detector.update(preview, WIDTH, roi));
+    }
+
+    @Test
+    public void changesOutsideTheRegionAreIgnored() {
+        ChangeDetector detector = new ChangeDetector();
+        detector.setThreshold(4, 100);
+        Roi roi = Roi.clip(0, 0, 32, 32, 1, WIDTH, HEIGHT);
+        byte[] preview = preview(100);
+        assertTrue(detector.update(preview, WIDTH, roi));
+        paintBlock(preview, 48, 32, 200);
+        assertFalse(detector.update(preview, WIDTH, roi));
+        // A new region needs a new reference
+        assertTrue(detector.update(preview, WIDTH, roi.scaledBy(2)));
+    }
+
+    @Test
+    public void refreshAfterInterval() {
+        ChangeDetector detector = new ChangeDetector();
+        detector.setThreshold(4, 3);
+        Roi roi = Roi.full(WIDTH, HEIGHT);
+        byte[] preview = preview(100);
+        assertTrue(detector.update(preview, WIDTH, roi));
+        assertFalse(detector.update(preview, WIDTH, roi));
+        assertFalse(detector.update(preview, WIDTH, roi));
+        assertTrue(detector.update(preview, WIDTH, roi));
+        assertFalse(detector.update(preview, WIDTH, roi));
+    }
+
+    @Test
+    public void resetForgetsTheReference() {
+        ChangeDetector detector = new ChangeDetector();
+        detector.setThreshold(4, 100);
+        Roi roi = Roi.full(WIDTH, HEIGHT);
+        detector.update(preview(100), WIDTH, roi);
+        detector.reset();
+        assertTrue(detector.update(preview(100), WIDTH, roi));
+        detector.setThreshold(0, 0);
+        assertFalse(detector.isEnabled());
+    }
+}
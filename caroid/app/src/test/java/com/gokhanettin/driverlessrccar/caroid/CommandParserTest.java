@@ -0,0 +1,64 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CommandParserTest {
+    private final List<String> mFrames = new ArrayList<>();
+    private final CommandParser mParser = new CommandParser(new CommandParser.Listener() {
+        @Override
+        public void onFrame(byte[] frame, int length) {
+            mFrames.add(new String(frame, 0, length, StandardCharsets.US_ASCII));
+        }
+    });
+
+    private void feed(String data) {
+        mParser.feed(ByteBuffer.wrap(data.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    public void burstOfCommandsInOneRead() {
+        feed("[P][A;1400 1568][Q;50]");
+        assertEquals(3, mFrames.size());
+        assertEquals("P", mFrames.get(0));
+        assertEquals("A;1400 1568", mFrames.get(1));
+        assertEquals("Q;50", mFrames.get(2));
+    }
+
+    @Test
+    public void frameSplitAcrossReads() {
+        feed("[A;14");
+        assertTrue(mFrames.isEmpty());
+        feed("00 15");
+        feed("68][F");
+        assertEquals(1, mFrames.size());
+        assertEquals("A;1400 1568", mFrames.get(0));
+        feed("]");
+        assertEquals("F", mFrames.get(1));
+    }
+
+    @Test
+    public void garbageAndLostBracketsResync() {
+        feed("noise]][A;C[P]");
+        assertEquals(1, mFrames.size());
+        assertEquals("P", mFrames.get(0));
+    }
+
+    @Test
+    public void runawayFrameIsDropped() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i <= CommandParser.MAX_FRAME_LENGTH; i++) {
+            builder.append('x');
+        }
+        feed(builder.toString() + "][P]");
+        assertEquals(1, mFrames.size());
+        assertEquals("P", mFrames.get(0));
+        assertEquals(1, mParser.getOverflowCount());
+    }
+}
@@ -0,0 +1,140 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameAssemblerTest {
+    private static List<byte[]> chunk(FrameChunker chunker, byte[] frame) {
+        List<byte[]> datagrams = new ArrayList<>();
+        int frameId = chunker.nextFrameId();
+        int count = chunker.chunkCount(frame.length);
+        for (int i = 0; i < count; i++) {
+            int offset = chunker.chunkOffset(i);
+            int length = chunker.chunkLength(frame.length, i);
+            ByteBuffer buffer = ByteBuffer.allocate(FrameChunker.HEADER_SIZE + length);
+            FrameChunker.writeHeader(buffer, frameId, frame.length, offset, i, count);
+            buffer.put(frame, offset, length);
+            datagrams.add(buffer.array());
+        }
+        return datagrams;
+    }
+
+    private static byte[] randomFrame(int length, long seed) {
+        byte[] frame = new byte[length];
+        new Random(seed).nextBytes(frame);
+        return frame;
+    }
+
+    private static byte[] copy(FrameAssembler.Frame frame) {
+        byte[] data = new byte[frame.length];
+        System.arraycopy(frame.data, 0, data, 0, frame.length);
+        return data;
+    }
+
+    @Test
+    public void largeFrameSurvivesLoopback() throws Exception {
+        FrameChunker chunker = new FrameChunker();
+        FrameAssembler assembler = new FrameAssembler();
+        byte[] frame = randomFrame(200000, 1);
+
+        DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        DatagramSocket sender = new DatagramSocket();
+        try {
+            receiver.setReceiveBufferSize(4 * 1024 * 1024);
+            receiver.setSoTimeout(2000);
+            List<byte[]> datagrams = chunk(chunker, frame);
+            assertTrue(datagrams.size() > 1);
+
+            byte[] buffer = new byte[chunker.getDatagramSize()];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            FrameAssembler.Frame result = null;
+            for (byte[] datagram : datagrams) {
+                sender.send(new DatagramPacket(datagram, datagram.length,
+                        receiver.getLocalAddress(), receiver.getLocalPort()));
+                packet.setData(buffer);
+                receiver.receive(packet);
+                result = assembler.offer(packet.getData(), packet.getOffset(), packet.getLength());
+            }
+            assertNotNull(result);
+            assertArrayEquals(frame, copy(result));
+        } finally {
+            sender.close();
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void lostChunkCostsOneFrame() {
+        FrameChunker chunker = new FrameChunker();
+        FrameAssembler assembler = new FrameAssembler();
+        byte[] first = randomFrame(10000, 2);
+        byte[] second = randomFrame(12000, 3);
+
+        List<byte[]> lossy = chunk(chunker, first);
+        lossy.remove(3);
+        for (byte[] datagram : lossy) {
+            assertNull(assembler.offer(datagram, 0, datagram.length));
+        }
+
+        FrameAssembler.Frame result = null;
+        for (byte[] datagram : chunk(chunker, second)) {
+            result = assembler.offer(datagram, 0, datagram.length);
+        }
+        assertNotNull(result);
+        assertArrayEquals(second, copy(result));
+        assertEquals(1, assembler.getCompletedCount());
+        assertEquals(1, assembler.getDroppedCount());
+    }
+
+    @Test
+    public void interleavedAndDuplicateChunks() {
+        FrameChunker chunker = new FrameChunker();
+        FrameAssembler assembler = new FrameAssembler();
+        byte[] first = randomFrame(5000, 4);
+        byte[] second = randomFrame(5000, 5);
+        List<byte[]> a = chunk(chunker, first);
+        List<byte[]> b = chunk(chunker, second);
+
+        for (int i = 0; i < a.size() - 1; i++) {
+            assertNull(assembler.offer(a.get(i), 0, a.get(i).length));
+            assertNull(assembler.offer(b.get(i), 0, b.get(i).length));
+            assertNull(assembler.offer(b.get(i), 0, b.get(i).length));
+        }
+        byte[] last = a.get(a.size() - 1);
+        assertArrayEquals(first, copy(assembler.offer(last, 0, last.length)));
+        last = b.get(b.size() - 1);
+        assertArrayEquals(second, copy(assembler.offer(last, 0, last.length)));
+        assertEquals(0, assembler.getDroppedCount());
+    }
+
+    @Test
+    public void malformedDatagramIsRejected() {
+        FrameAssembler assembler = new FrameAssembler();
+        byte[] legacy = "[0;1400;1568;0.0;0]".getBytes();
+        assertNull(assembler.offer(legacy, 0, legacy.length));
+        assertEquals(1, assembler.getMalformedCount());
+    }
+
+    @Test
+    public void outOfRangeHeaderIsRejected() {
+        FrameAssembler assembler = new FrameAssembler();
+        ByteBuffer buffer = ByteBuffer.allocate(FrameChunker.HEADER_SIZE + 16);
+        // chunkOffset + payloadLength overflows
+        FrameChunker.writeHeader(buffer, 1, 1000, Integer.MAX_VALUE - 4, 0, 1);
+        assertNull(assembler.offer(buffer.array(), 0, buffer.capacity()));
+
+        buffer.clear();
+        FrameChunker.writeHeader(buffer, 2, Integer.MAX_VALUE, 0, 0, 1);
+        assertNull(assembler.offer(buffer.array(), 0, buffer.capacity()));
+        assertEquals(2, assembler.getMalformedCount());
+    }
+}
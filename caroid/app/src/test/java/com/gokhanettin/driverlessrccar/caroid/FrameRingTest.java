@@ -0,0 +1,145 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameRingTest {
+    private static final int CAPACITY = 5;
+    private static final int MAX_READY = 2;
+
+    @Test
+    public void buffersAreSizedOnce() {
+        FrameRing ring = new FrameRing(CAPACITY, 6, MAX_READY);
+        assertEquals(CAPACITY, ring.capacity());
+        for (int i = 0; i < CAPACITY; i++) {
+            assertEquals(6, ring.buffer(i).length);
+            assertEquals(FrameRing.STATE_CAMERA, ring.state(i));
+            assertEquals(i, ring.indexOf(ring.buffer(i)));
+        }
+        assertEquals(-1, ring.indexOf(new byte[6]));
+    }
+
+    @Test
+    public void oldestReadyIsEncodedFirst() {
+        FrameRing ring = new FrameRing(CAPACITY, 6, MAX_READY);
+        assertNull(ring.publish(ring.buffer(3), 30));
+        assertNull(ring.publish(ring.buffer(1), 10));
+        assertEquals(2, ring.getReadyCount());
+
+        int slot = ring.acquire();
+        assertEquals(3, slot);
+        assertEquals(30, ring.captureNanos(slot));
+        assertEquals(FrameRing.STATE_ENCODING, ring.state(slot));
+        assertEquals(1, ring.acquire());
+        assertEquals(-1, ring.acquire());
+
+        assertSame(ring.buffer(3), ring.release(3));
+        assertEquals(FrameRing.STATE_CAMERA, ring.state(3));
+        assertEquals(1, ring.getRecycledCount());
+    }
+
+    @Test
+    public void oldestReadyIsDroppedWhenFull() {
+        FrameRing ring = new FrameRing(CAPACITY, 6, MAX_READY);
+        ring.publish(ring.buffer(0), 1);
+        ring.publish(ring.buffer(1), 2);
+        assertSame(ring.buffer(0), ring.publish(ring.buffer(2), 3));
+        assertEquals(FrameRing.STATE_CAMERA, ring.state(0));
+        assertEquals(MAX_READY, ring.getReadyCount());
+        assertEquals(1, ring.getDroppedCount());
+        assertEquals(1, ring.acquire());
+    }
+
+    @Test
+    public void encodingSlotsAreNotDropped() {
+        FrameRing ring = new FrameRing(CAPACITY, 6, MAX_READY);
+        ring.publish(ring.buffer(0), 1);
+        assertEquals(0, ring.acquire());
+        ring.publish(ring.buffer(1), 2);
+        ring.publish(ring.buffer(2), 3);
+        assertSame(ring.buffer(1), ring.publish(ring.buffer(3), 4));
+        assertEquals(FrameRing.STATE_ENCODING, ring.state(0));
+        assertEquals(1, ring.getDroppedCount());
+    }
+
+    @Test
+    public void takeSkipsTheReadyState() {
+        FrameRing ring = new FrameRing(CAPACITY, 6, MAX_READY);
+        assertEquals(4, ring.take(ring.buffer(4), 7));
+        assertEquals(FrameRing.STATE_ENCODING, ring.state(4));
+        assertEquals(0, ring.getReadyCount());
+        assertEquals(-1, ring.take(new byte[6], 7));
+    }
+
+    @Test
+    public void reclaimReturnsOnlyReadySlots() {
+        FrameRing ring = new FrameRing(CAPACITY, 6, MAX_READY);
+        ring.publish(ring.buffer(0), 1);
+        ring.publish(ring.buffer(1), 2);
+        ring.acquire();
+        ring.reclaim();
+        assertEquals(FrameRing.STATE_ENCODING, ring.state(0));
+        assertEquals(FrameRing.STATE_CAMERA, ring.state(1));
+        assertEquals(0, ring.getReadyCount());
+    }
+
+    @Test
+    public void concurrentEncodersNeverShareASlot() throws InterruptedException {
+        final FrameRing ring = new FrameRing(CAPACITY, 6, MAX_READY);
+        final int frames = 20000;
+        final int[] encoded = new int[1];
+        final boolean[] shared = new boolean[1];
+        Thread[] encoders = new Thread[2];
+        final boolean[] done = new boolean[1];
+        for (int t = 0; t < encoders.length; t++) {
+            encoders[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (true) {
+                        int slot = ring.acquire();
+                        if (slot < 0) {
+                            synchronized (done) {
+                                if (done[0] && ring.getReadyCount() == 0) {
+                                    return;
+                                }
+                            }
+                            Thread.yield();
+                            continue;
+                        }
+                        byte[] buffer = ring.buffer(slot);
+                        // Another encoder seeing the mark means both own the slot
+                        synchronized (encoded) {
+                            shared[0] |= buffer[0] != 0;
+                            encoded[0]++;
+                        }
+                        buffer[0] = 1;
+                        Thread.yield();
+                        buffer[0] = 0;
+                        ring.release(slot);
+                    }
+                }
+            });
+            encoders[t].start();
+        }
+
+        // The camera only fills buffers it owns
+        int captured = 0;
+        while (captured < frames) {
+            for (int i = 0; i < CAPACITY && captured < frames; i++) {
+                if (ring.state(i) == FrameRing.STATE_CAMERA) {
+                    ring.publish(ring.buffer(i), captured++);
+                }
+            }
+        }
+        synchronized (done) {
+            done[0] = true;
+        }
+        for (Thread encoder : encoders) {
+            encoder.join();
+        }
+        assertFalse(shared[0]);
+        assertEquals(frames, encoded[0] + ring.getDroppedCount());
+        assertEquals(encoded[0], ring.getRecycledCount());
+    }
+}
@@ -0,0 +1,78 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameSequencerTest {
+    private static FrameBuffer frame() {
+        return new FrameBuffer(16);
+    }
+
+    @Test
+    public void framesComeOutInCaptureOrder() {
+        FrameSequencer sequencer = new FrameSequencer(4);
+        sequencer.begin(1);
+        sequencer.begin(2);
+        sequencer.begin(3);
+        FrameBuffer first = frame();
+        FrameBuffer second = frame();
+        FrameBuffer third = frame();
+
+        sequencer.complete(3, third);
+        sequencer.complete(2, second);
+        // Frame 1 is still being encoded
+        assertNull(sequencer.poll());
+        assertEquals(2, sequencer.getReadyCount());
+
+        sequencer.complete(1, first);
+        assertSame(first, sequencer.poll());
+        assertSame(second, sequencer.poll());
+        assertSame(third, sequencer.poll());
+        assertNull(sequencer.poll());
+        assertEquals(0, sequencer.size());
+    }
+
+    @Test
+    public void failedFramesDoNotHoldBackLaterOnes() {
+        FrameSequencer sequencer = new FrameSequencer(4);
+        sequencer.begin(5);
+        sequencer.begin(6);
+        FrameBuffer later = frame();
+        sequencer.complete(6, later);
+        sequencer.complete(5, null);
+        assertSame(later, sequencer.poll());
+    }
+
+    @Test
+    public void dropOldestIgnoresFramesInFlight() {
+        FrameSequencer sequencer = new FrameSequencer(4);
+        sequencer.begin(1);
+        sequencer.begin(2);
+        sequencer.begin(3);
+        FrameBuffer second = frame();
+        FrameBuffer third = frame();
+        sequencer.complete(3, third);
+        sequencer.complete(2, second);
+        assertEquals(3, sequencer.size());
+
+        assertSame(second, sequencer.dropOldest());
+        assertEquals(1, sequencer.getDroppedCount());
+        sequencer.complete(1, null);
+        assertSame(third, sequencer.poll());
+        assertNull(sequencer.dropOldest());
+    }
+
+    @Test
+    public void clearEmptiesFinishedFrames() {
+        FrameSequencer sequencer = new FrameSequencer(4);
+        sequencer.begin(1);
+        sequencer.begin(2);
+        sequencer.complete(1, frame());
+        sequencer.complete(2, frame());
+        assertNotNull(sequencer.clear());
+        assertNotNull(sequencer.clear());
+        assertNull(sequencer.clear());
+        assertEquals(0, sequencer.getReadyCount());
+    }
+}
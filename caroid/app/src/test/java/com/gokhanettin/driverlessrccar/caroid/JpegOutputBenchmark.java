@@ -0,0 +1,90 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Host-side comparison of the JPEG output path, allocation per frame is the
+// interesting number: run JpegOutputBenchmark.main(), which adds the GC
+// profiler, and look at gc.alloc.rate.norm. compressToJpeg() writes its output
+// in 4 KiB pieces, which is simulated here.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JpegOutputBenchmark {
+    private static final int CHUNK_SIZE = 4096;
+
+    @Param({"40000"})
+    public int jpegSize;
+
+    private byte[] mChunk;
+    private ArrayBlockingQueue<FrameBuffer> mFree;
+
+    @Setup
+    public void setUp() {
+        mChunk = new byte[CHUNK_SIZE];
+        mFree = new ArrayBlockingQueue<>(2);
+        FrameBuffer.Pool pool = new FrameBuffer.Pool() {
+            @Override
+            public void recycle(FrameBuffer frame) {
+                mFree.offer(frame);
+            }
+        };
+        mFree.add(new FrameBuffer(32 * 1024, pool));
+    }
+
+    private void compress(ByteArrayOutputStream out) {
+        for (int written = 0; written < jpegSize; written += CHUNK_SIZE) {
+            out.write(mChunk, 0, Math.min(CHUNK_SIZE, jpegSize - written));
+        }
+    }
+
+    // What previewToJpeg() did before the encode stage: a fresh stream that
+    // grows from 32 bytes and one more copy for toByteArray()
+    @Benchmark
+    public int freshStream() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        compress(baos);
+        return baos.toByteArray().length;
+    }
+
+    // A pooled frame handed to the writer and released after sending
+    @Benchmark
+    public int pooledFrame() {
+        FrameBuffer frame = mFree.poll();
+        frame.reset();
+        compress(frame);
+        ByteBuffer view = frame.view();
+        int length = view.remaining();
+        frame.release();
+        return length;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(JpegOutputBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
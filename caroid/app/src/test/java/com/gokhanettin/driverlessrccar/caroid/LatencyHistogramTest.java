@@ -0,0 +1,86 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 50; i++) {
+            histogram.record(i);
+        }
+        assertEquals(50, histogram.getTotalCount());
+        assertEquals(25, histogram.getValueAtPercentile(50));
+        assertEquals(50, histogram.getValueAtPercentile(100));
+        assertEquals(50, histogram.getMax());
+    }
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        // Buckets are contiguous and each value maps into its own bucket
+        long previous = -1;
+        for (int i = 0; i < LatencyHistogram.index(LatencyHistogram.MAX_VALUE); i++) {
+            long highest = LatencyHistogram.highestEquivalentValue(i);
+            assertEquals(i, LatencyHistogram.index(highest));
+            assertEquals(i, LatencyHistogram.index(previous + 1));
+            assertTrue(highest > previous);
+            previous = highest;
+        }
+    }
+
+    @Test
+    public void percentilesWithinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 1 ms to 10 ms in 1 us steps
+        for (long v = 1000000; v <= 10000000; v += 1000) {
+            histogram.record(v);
+        }
+        assertNear(5500000, histogram.getValueAtPercentile(50));
+        assertNear(9910000, histogram.getValueAtPercentile(99));
+        assertNear(9991000, histogram.getValueAtPercentile(99.9));
+        assertEquals(10000000, histogram.getMax());
+    }
+
+    @Test
+    public void clampsAndResets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(LatencyHistogram.MAX_VALUE, histogram.getValueAtPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getTotalCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void concurrentRecordsAreCounted() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        histogram.record(i % 1000);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400000, histogram.getTotalCount());
+        assertEquals(999, histogram.getMax());
+    }
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue("expected ~" + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected / 32);
+    }
+}
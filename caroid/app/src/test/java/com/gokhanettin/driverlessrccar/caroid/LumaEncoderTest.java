@@ -0,0 +1,92 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LumaEncoderTest {
+    private static final int WIDTH = 96;
+    private static final int HEIGHT = 48;
+
+    // Gradient with some noise, chroma left at 0
+    private static byte[] preview() {
+        Random random = new Random(5);
+        byte[] preview = new byte[Nv21.size(WIDTH, HEIGHT)];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                preview[y * WIDTH + x] = (byte) (x * 2 + y + random.nextInt(3));
+            }
+        }
+        return preview;
+    }
+
+    private static void assertHeader(FrameBuffer frame, int codec, int width, int height) {
+        byte[] data = frame.array();
+        assertEquals(LumaEncoder.MAGIC, data[0]);
+        assertEquals(codec, data[1]);
+        assertEquals(width, (data[2] & 0xff) << 8 | data[3] & 0xff);
+        assertEquals(height, (data[4] & 0xff) << 8 | data[5] & 0xff);
+    }
+
+    // What the station does for CODEC_DELTA_LZ4
+    private static byte[] decode(FrameBuffer frame, int width, int height) {
+        byte[] plane = Lz4Test.decompress(frame.array(), LumaEncoder.HEADER_SIZE,
+                frame.length() - LumaEncoder.HEADER_SIZE, width * height);
+        byte above = 0;
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            plane[row] += above;
+            above = plane[row];
+            for (int x = 1; x < width; x++) {
+                plane[row + x] += plane[row + x - 1];
+            }
+        }
+        return plane;
+    }
+
+    @Test
+    public void rawIsTheLumaPlane() {
+        byte[] preview = preview();
+        FrameBuffer frame = new FrameBuffer(16);
+        new LumaEncoder().encode(preview, WIDTH, HEIGHT, Roi.full(WIDTH, HEIGHT),
+                LumaEncoder.CODEC_RAW, frame);
+        assertEquals(LumaEncoder.HEADER_SIZE + WIDTH * HEIGHT, frame.length());
+        assertHeader(frame, LumaEncoder.CODEC_RAW, WIDTH, HEIGHT);
+        assertArrayEquals(Arrays.copyOf(preview, WIDTH * HEIGHT),
+                Arrays.copyOfRange(frame.array(), LumaEncoder.HEADER_SIZE, frame.length()));
+    }
+
+    @Test
+    public void deltaLz4IsLossless() {
+        byte[] preview = preview();
+        FrameBuffer frame = new FrameBuffer(16);
+        new LumaEncoder().encode(preview, WIDTH, HEIGHT, Roi.full(WIDTH, HEIGHT),
+                LumaEncoder.CODEC_DELTA_LZ4, frame);
+        assertHeader(frame, LumaEncoder.CODEC_DELTA_LZ4, WIDTH, HEIGHT);
+        assertTrue(frame.length() < WIDTH * HEIGHT);
+        assertArrayEquals(Arrays.copyOf(preview, WIDTH * HEIGHT), decode(frame, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void regionIsCroppedAndScaled() {
+        byte[] preview = preview();
+        Roi roi = Roi.clip(8, 4, 64, 40, 2, WIDTH, HEIGHT);
+        byte[] expected = new byte[32 * 20];
+        Nv21.cropLuma(preview, WIDTH, 8, 4, 64, 40, 2, expected, 0);
+
+        LumaEncoder encoder = new LumaEncoder();
+        FrameBuffer frame = new FrameBuffer(16);
+        encoder.encode(preview, WIDTH, HEIGHT, roi, LumaEncoder.CODEC_DELTA_LZ4, frame);
+        assertHeader(frame, LumaEncoder.CODEC_DELTA_LZ4, 32, 20);
+        assertArrayEquals(expected, decode(frame, 32, 20));
+
+        // Frames are appended, the caller resets the buffer
+        frame.reset();
+        encoder.encode(preview, WIDTH, HEIGHT, roi, LumaEncoder.CODEC_RAW, frame);
+        assertArrayEquals(expected,
+                Arrays.copyOfRange(frame.array(), LumaEncoder.HEADER_SIZE, frame.length()));
+    }
+}
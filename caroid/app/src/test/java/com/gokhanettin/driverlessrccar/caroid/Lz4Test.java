@@ -0,0 +1,101 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Lz4Test {
+    // Straight from the block format description, as the station decodes it
+    static byte[] decompress(byte[] src, int offset, int length, int size) {
+        byte[] dst = new byte[size];
+        int end = offset + length;
+        int i = offset;
+        int d = 0;
+        while (true) {
+            int token = src[i++] & 0xff;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    b = src[i++] & 0xff;
+                    literals += b;
+                } while (b == 255);
+            }
+            System.arraycopy(src, i, dst, d, literals);
+            i += literals;
+            d += literals;
+            if (i == end) {
+                break;
+            }
+            int matchOffset = (src[i] & 0xff) | (src[i + 1] & 0xff) << 8;
+            i += 2;
+            int matchLength = token & 15;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    b = src[i++] & 0xff;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += 4;
+            // Overlapping copies repeat the bytes just written
+            for (int j = 0; j < matchLength; j++, d++) {
+                dst[d] = dst[d - matchOffset];
+            }
+        }
+        assertEquals(size, d);
+        return dst;
+    }
+
+    private static byte[] roundTrip(byte[] data) {
+        byte[] compressed = new byte[Lz4.maxCompressedLength(data.length) + 3];
+        int length = Lz4.compress(data, 0, data.length, compressed, 3, new int[Lz4.TABLE_SIZE]);
+        assertTrue(length <= Lz4.maxCompressedLength(data.length));
+        assertArrayEquals(data, decompress(compressed, 3, length, data.length));
+        return Arrays.copyOfRange(compressed, 3, 3 + length);
+    }
+
+    @Test
+    public void shortInputIsLiteralsOnly() {
+        byte[] data = {1, 2, 3, 1, 2, 3, 1, 2, 3};
+        byte[] compressed = roundTrip(data);
+        assertEquals(data.length + 1, compressed.length);
+        assertEquals(data.length << 4, compressed[0] & 0xff);
+        roundTrip(new byte[0]);
+    }
+
+    @Test
+    public void repeatedBytesCompress() {
+        byte[] compressed = roundTrip(new byte[100000]);
+        assertTrue(compressed.length < 500);
+    }
+
+    @Test
+    public void randomBytesSurvive() {
+        byte[] data = new byte[70000];
+        new Random(17).nextBytes(data);
+        roundTrip(data);
+    }
+
+    @Test
+    public void mixedContent() {
+        // Long literal runs between matches further apart than 255 bytes
+        Random random = new Random(3);
+        byte[] data = new byte[200000];
+        for (int i = 0; i < data.length; i += 1000) {
+            if (random.nextBoolean()) {
+                for (int j = i; j < i + 1000; j++) {
+                    data[j] = (byte) random.nextInt(8);
+                }
+            } else {
+                for (int j = i; j < i + 1000; j++) {
+                    data[j] = (byte) (j % 300);
+                }
+            }
+        }
+        roundTrip(data);
+    }
+}
@@ -0,0 +1,101 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class MailboxTest {
+    @Test
+    public void latestValueWins() {
+        Mailbox<Integer> mailbox = new Mailbox<>();
+        assertFalse(mailbox.post(1));
+        assertTrue(mailbox.post(2));
+        assertTrue(mailbox.post(3));
+        assertEquals(Integer.valueOf(3), mailbox.poll(0, TimeUnit.MILLISECONDS));
+        assertNull(mailbox.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals(3, mailbox.getPostedCount());
+        assertEquals(2, mailbox.getReplacedCount());
+        assertEquals(1, mailbox.getTakenCount());
+    }
+
+    @Test
+    public void pollTimesOut() {
+        Mailbox<Integer> mailbox = new Mailbox<>();
+        long start = System.nanoTime();
+        assertNull(mailbox.poll(50, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+    }
+
+    @Test
+    public void postWakesWaitingConsumer() throws Exception {
+        final Mailbox<Integer> mailbox = new Mailbox<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final Integer[] taken = new Integer[1];
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                taken[0] = mailbox.poll(10, TimeUnit.SECONDS);
+            }
+        });
+        consumer.start();
+        started.await();
+        long start = System.nanoTime();
+        mailbox.post(42);
+        consumer.join(5000);
+        assertFalse(consumer.isAlive());
+        assertEquals(Integer.valueOf(42), taken[0]);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    public void everyPostIsEitherTakenOrReplaced() throws Exception {
+        final Mailbox<Integer> mailbox = new Mailbox<>();
+        final int producers = 4;
+        final int perProducer = 20000;
+        final long[] taken = new long[1];
+        final AtomicBoolean done = new AtomicBoolean(false);
+
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    Integer item = mailbox.poll(10, TimeUnit.MILLISECONDS);
+                    if (item != null) {
+                        taken[0]++;
+                    } else if (done.get()) {
+                        return;
+                    }
+                }
+            }
+        });
+        consumer.start();
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        mailbox.post(i);
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        done.set(true);
+        consumer.join(5000);
+        assertFalse(consumer.isAlive());
+
+        assertEquals(producers * perProducer, mailbox.getPostedCount());
+        assertEquals(mailbox.getPostedCount(), mailbox.getReplacedCount() + taken[0]);
+        assertEquals(taken[0], mailbox.getTakenCount());
+    }
+}
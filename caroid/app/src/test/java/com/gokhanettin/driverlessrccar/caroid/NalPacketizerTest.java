@@ -0,0 +1,130 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NalPacketizerTest {
+    private static final int DATAGRAM_SIZE = 100;
+
+    private static class Recorder implements NalPacketizer.Sink {
+        final List<byte[]> packets = new ArrayList<>();
+
+        @Override
+        public void onPacket(ByteBuffer header, ByteBuffer payload) {
+            byte[] packet = new byte[header.remaining() + payload.remaining()];
+            header.get(packet, 0, header.remaining());
+            payload.get(packet, packet.length - payload.remaining(), payload.remaining());
+            packets.add(packet);
+        }
+    }
+
+    private static void nal(ByteArrayOutputStream out, boolean longStartCode, int header, int length) {
+        if (longStartCode) {
+            out.write(0);
+        }
+        out.write(0);
+        out.write(0);
+        out.write(1);
+        out.write(header);
+        for (int i = 1; i < length; i++) {
+            // No accidental start codes
+            out.write(2 + i % 250);
+        }
+    }
+
+    // Rebuilds the Annex B frame with 4 byte start codes, like the station
+    private static byte[] depacketize(List<byte[]> packets) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] packet : packets) {
+            int type = packet[2] & 0xff & ~NalPacketizer.FLAG_LAST;
+            if (type != NalPacketizer.TYPE_NAL) {
+                continue;
+            }
+            int nalHeader = packet[NalPacketizer.HEADER_SIZE] & 0xff;
+            int offset = NalPacketizer.HEADER_SIZE;
+            if ((nalHeader & 0x1f) == NalPacketizer.NAL_TYPE_FU_A) {
+                int fuHeader = packet[offset + 1] & 0xff;
+                if ((fuHeader & 0x80) != 0) {
+                    out.write(new byte[] {0, 0, 0, 1}, 0, 4);
+                    out.write((nalHeader & 0xe0) | (fuHeader & 0x1f));
+                }
+                offset += 2;
+            } else {
+                out.write(new byte[] {0, 0, 0, 1}, 0, 4);
+            }
+            out.write(packet, offset, packet.length - offset);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void smallAndFragmentedNals() throws Exception {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        nal(frame, true, 0x67, 20);  // SPS
+        nal(frame, true, 0x68, 4);   // PPS
+        nal(frame, true, 0x65, 500); // IDR slice, needs FU-A
+        byte[] data = frame.toByteArray();
+
+        Recorder recorder = new Recorder();
+        NalPacketizer packetizer = new NalPacketizer(DATAGRAM_SIZE);
+        ByteBuffer telemetry = ByteBuffer.wrap(new byte[] {1, 2, 3});
+        packetizer.packetize(telemetry, ByteBuffer.wrap(data), recorder);
+
+        // header, SPS, PPS and ceil(499 / 89) fragments
+        List<byte[]> packets = recorder.packets;
+        assertEquals(3 + 6, packets.size());
+        for (int i = 0; i < packets.size(); i++) {
+            byte[] packet = packets.get(i);
+            assertTrue(packet.length <= DATAGRAM_SIZE);
+            assertEquals(NalPacketizer.MAGIC, packet[0]);
+            ByteBuffer header = ByteBuffer.wrap(packet);
+            assertEquals(0, header.getInt(3));
+            assertEquals(i, header.getShort(7));
+            boolean last = (packet[2] & NalPacketizer.FLAG_LAST) != 0;
+            assertEquals(i == packets.size() - 1, last);
+        }
+        assertEquals(NalPacketizer.TYPE_HEADER, packets.get(0)[2]);
+        assertEquals(3, packets.get(0)[NalPacketizer.HEADER_SIZE + 2]);
+        // FU indicator keeps NRI, FU header keeps the type and marks the start
+        assertEquals(0x60 | NalPacketizer.NAL_TYPE_FU_A, packets.get(3)[NalPacketizer.HEADER_SIZE] & 0xff);
+        assertEquals(0x80 | 5, packets.get(3)[NalPacketizer.HEADER_SIZE + 1] & 0xff);
+        assertEquals(0x40 | 5, packets.get(8)[NalPacketizer.HEADER_SIZE + 1] & 0xff);
+
+        assertArrayEquals(data, depacketize(packets));
+    }
+
+    @Test
+    public void shortStartCodesAndFrameIds() throws Exception {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        nal(frame, false, 0x41, 50);
+        nal(frame, false, 0x41, 60);
+        byte[] data = frame.toByteArray();
+
+        Recorder recorder = new Recorder();
+        NalPacketizer packetizer = new NalPacketizer(DATAGRAM_SIZE);
+        packetizer.packetize(ByteBuffer.allocate(0), ByteBuffer.wrap(new byte[0]), recorder);
+        packetizer.packetize(ByteBuffer.allocate(0), ByteBuffer.wrap(data), recorder);
+
+        // An empty frame is just its header, marked last
+        assertEquals(NalPacketizer.TYPE_HEADER | NalPacketizer.FLAG_LAST, recorder.packets.get(0)[2] & 0xff);
+        List<byte[]> packets = recorder.packets.subList(1, recorder.packets.size());
+        assertEquals(3, packets.size());
+        assertEquals(1, ByteBuffer.wrap(packets.get(0)).getInt(3));
+        assertEquals(50, packets.get(1).length - NalPacketizer.HEADER_SIZE);
+        assertEquals(60, packets.get(2).length - NalPacketizer.HEADER_SIZE);
+    }
+
+    @Test
+    public void findsStartCodes() {
+        byte[] data = {5, 0, 0, 1, 9, (byte) 0x80, 0, 0, 0, 1, 7};
+        assertEquals(4, NalPacketizer.nextNal(data, 0, data.length));
+        assertEquals(10, NalPacketizer.nextNal(data, 4, data.length));
+        assertEquals(-1, NalPacketizer.nextNal(data, 10, data.length));
+    }
+}
@@ -0,0 +1,76 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class Nv21Test {
+    // 8x4 frame, luma is x + 10 * y, chroma pairs are (100 + x, 200 + y)
+    private static byte[] frame() {
+        byte[] frame = new byte[Nv21.size(8, 4)];
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 8; x++) {
+                frame[y * 8 + x] = (byte) (x + 10 * y);
+            }
+        }
+        for (int y = 0; y < 2; y++) {
+            for (int x = 0; x < 4; x++) {
+                frame[32 + y * 8 + x * 2] = (byte) (100 + x);
+                frame[32 + y * 8 + x * 2 + 1] = (byte) (200 + y);
+            }
+        }
+        return frame;
+    }
+
+    @Test
+    public void downscaleByTwo() {
+        byte[] dst = new byte[Nv21.size(4, 2)];
+        Nv21.downscale(frame(), 8, 4, 2, dst);
+        // Average of (0, 1, 10, 11) is 5
+        assertArrayEquals(new byte[] {5, 7, 9, 11, 25, 27, 29, 31}, Arrays.copyOf(dst, 8));
+        // V/U of the 2x2 chroma boxes
+        assertEquals(100, dst[8] & 0xff);
+        assertEquals(200, dst[9] & 0xff);
+        assertEquals(102, dst[10] & 0xff);
+        assertEquals(200, dst[11] & 0xff);
+    }
+
+    @Test
+    public void cropWithoutScaling() {
+        byte[] dst = new byte[Nv21.size(4, 2)];
+        Nv21.crop(frame(), 8, 4, 2, 2, 4, 2, 1, dst);
+        assertArrayEquals(new byte[] {22, 23, 24, 25, 32, 33, 34, 35}, Arrays.copyOf(dst, 8));
+        // Chroma row 1, pairs 1 and 2
+        assertArrayEquals(new byte[] {101, (byte) 201, 102, (byte) 201}, Arrays.copyOfRange(dst, 8, 12));
+    }
+
+    @Test
+    public void cropAndScale() {
+        byte[] dst = new byte[Nv21.size(2, 2)];
+        Nv21.crop(frame(), 8, 4, 4, 0, 4, 4, 2, dst);
+        // Average of (4, 5, 14, 15) is 9
+        assertArrayEquals(new byte[] {9, 11, 29, 31}, Arrays.copyOf(dst, 4));
+        // Average of the V/U pairs 2 and 3 over both chroma rows
+        assertEquals(102, dst[4] & 0xff);
+        assertEquals(200, dst[5] & 0xff);
+    }
+
+    @Test
+    public void downscaleIsAFullCrop() {
+        byte[] cropped = new byte[Nv21.size(4, 2)];
+        byte[] scaled = new byte[Nv21.size(4, 2)];
+        Nv21.crop(frame(), 8, 4, 0, 0, 8, 4, 2, cropped);
+        Nv21.downscale(frame(), 8, 4, 2, scaled);
+        assertArrayEquals(scaled, cropped);
+    }
+
+    @Test
+    public void scaledSizeStaysEven() {
+        assertEquals(426, Nv21.scaledWidth(1280, 3));
+        assertEquals(240, Nv21.scaledHeight(720, 3));
+        assertEquals(180, Nv21.scaledHeight(720, 4));
+        assertEquals(12, Nv21.size(4, 2));
+    }
+}
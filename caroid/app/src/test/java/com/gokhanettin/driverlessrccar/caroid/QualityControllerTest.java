@@ -0,0 +1,216 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class QualityControllerTest {
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final long SECOND = 1000000000L;
+
+    // Camera, single writer thread and link, like AcquisitionActivity feeding
+    // UdpClient. Frames that arrive while the writer is busy wait in a one
+    // frame mailbox and replace each other, which the writer learns from the
+    // encoder's drop count. Arduino readings in between wake up the writer
+    // too, but never post a frame twice.
+    private static class Link {
+        final QualityController controller;
+        double capacity; // bits per second
+        double encodeNanosPerPixel = 5;
+        int cameraFps = 30;
+        int readingsPerSecond = 0;
+
+        long now = 0;
+        long writerFreeAt = 0;
+        boolean pending = false;
+        long encoderDrops = 0;
+
+        // Totals since the last measure()
+        long sentBytes = 0;
+        int sentFrames = 0;
+        int droppedFrames = 0;
+
+        Link(QualityController controller, double capacity) {
+            this.controller = controller;
+            this.capacity = capacity;
+        }
+
+        void run(long duration) {
+            long end = now + duration;
+            long frameInterval = SECOND / cameraFps;
+            for (; now < end; now += frameInterval) {
+                flush(now);
+                if (writerFreeAt <= now) {
+                    send(now);
+                } else {
+                    if (pending) {
+                        encoderDrops++;
+                        droppedFrames++;
+                    }
+                    pending = true;
+                }
+                for (int i = 1; i * cameraFps < readingsPerSecond; i++) {
+                    flush(now + frameInterval * i * cameraFps / readingsPerSecond);
+                }
+            }
+        }
+
+        // The writer takes the waiting frame once it is free
+        void flush(long time) {
+            if (pending && writerFreeAt <= time) {
+                send(writerFreeAt);
+                pending = false;
+            }
+        }
+
+        void send(long start) {
+            int scale = controller.getScale();
+            int pixels = (WIDTH / scale) * (HEIGHT / scale);
+            float q = controller.getQuality() / 100f;
+            // Roughly what JPEG gives for camera frames, 0.12 to 1.7 bits per pixel
+            int bytes = (int) (pixels * (0.1 + 2 * q * q) / 8);
+            long encode = (long) (pixels * encodeNanosPerPixel);
+            long transmit = (long) (bytes * 8 / capacity * SECOND);
+            writerFreeAt = start + encode + transmit;
+
+            controller.onDroppedCount(encoderDrops);
+            controller.onFrameSent(bytes, encode);
+            controller.update(writerFreeAt);
+            sentBytes += bytes;
+            sentFrames++;
+        }
+
+        void measure(long duration) {
+            sentBytes = 0;
+            sentFrames = 0;
+            droppedFrames = 0;
+            run(duration);
+        }
+
+        double bitrate(long duration) {
+            return sentBytes * 8.0 * SECOND / duration;
+        }
+
+        double dropRatio() {
+            return (double) droppedFrames / (sentFrames + droppedFrames);
+        }
+    }
+
+    @Test
+    public void disabledKeepsQuality() {
+        QualityController controller = new QualityController(70);
+        Link link = new Link(controller, 1e6);
+        link.run(10 * SECOND);
+        assertEquals(70, controller.getQuality());
+        assertEquals(1, controller.getScale());
+        assertFalse(controller.update(link.now + SECOND));
+    }
+
+    @Test
+    public void convergesToBitrateTarget() {
+        QualityController controller = new QualityController(70);
+        controller.setTarget(2000000, 30);
+        Link link = new Link(controller, 20e6);
+        link.run(20 * SECOND);
+
+        link.measure(10 * SECOND);
+        double bitrate = link.bitrate(10 * SECOND);
+        assertTrue("bitrate " + bitrate, bitrate < 2000000 * 1.15);
+        assertTrue("bitrate " + bitrate, bitrate > 2000000 * 0.5);
+        assertTrue("drops " + link.dropRatio(), link.dropRatio() < 0.05);
+        // A full size frame can't fit 66 kbit at any quality
+        assertEquals(2, controller.getScale());
+    }
+
+    @Test
+    public void backsOffWhenLinkDegrades() {
+        QualityController controller = new QualityController(70);
+        controller.setTarget(8000000, 30);
+        Link link = new Link(controller, 10e6);
+        link.run(20 * SECOND);
+        int quality = controller.getQuality();
+        int scale = controller.getScale();
+
+        // Target is now far above what the link can carry, only drops tell
+        link.capacity = 2e6;
+        link.run(10 * SECOND);
+        assertTrue(controller.getScale() > scale || controller.getQuality() < quality);
+
+        link.measure(10 * SECOND);
+        assertTrue("drops " + link.dropRatio(), link.dropRatio() < 0.2);
+        assertTrue("fps " + link.sentFrames / 10, link.sentFrames / 10 >= 20);
+    }
+
+    @Test
+    public void readingsFasterThanFramesAreNoDrops() {
+        QualityController controller = new QualityController(50);
+        controller.setTarget(60000000, 30);
+        Link link = new Link(controller, 100e6);
+        // Binary telemetry from the Arduino
+        link.readingsPerSecond = 100;
+        link.run(20 * SECOND);
+
+        assertEquals(0f, controller.getDropRatio(), 0f);
+        assertEquals(1, controller.getScale());
+        assertEquals(QualityController.MAX_QUALITY, controller.getQuality());
+    }
+
+    @Test
+    public void countsOnlyNewDrops() {
+        QualityController controller = new QualityController(70);
+        controller.setTarget(2000000, 30);
+        controller.update(1);
+        // Drops before the controller started watching don't count
+        controller.onDroppedCount(50);
+        for (int i = 0; i < 30; i++) {
+            controller.onDroppedCount(50);
+            controller.onFrameSent(1000, 0);
+        }
+        controller.onDroppedCount(60);
+        controller.update(1 + QualityController.WINDOW_NANOS);
+        assertEquals(10f / 40, controller.getDropRatio(), 1e-6f);
+    }
+
+    @Test
+    public void slowEncoderReducesResolution() {
+        QualityController controller = new QualityController(50);
+        controller.setTarget(50000000, 30);
+        Link link = new Link(controller, 100e6);
+        // 60 ms per full size frame
+        link.encodeNanosPerPixel = 60e6 / (WIDTH * HEIGHT);
+        link.run(10 * SECOND);
+        assertEquals(2, controller.getScale());
+
+        link.measure(5 * SECOND);
+        assertTrue("fps " + link.sentFrames / 5, link.sentFrames / 5 >= 25);
+    }
+
+    @Test
+    public void recoversWhenBudgetGrows() {
+        QualityController controller = new QualityController(70);
+        controller.setTarget(500000, 30);
+        Link link = new Link(controller, 100e6);
+        link.run(20 * SECOND);
+        assertTrue(controller.getScale() > 1);
+
+        controller.setTarget(60000000, 30);
+        link.run(30 * SECOND);
+        assertEquals(1, controller.getScale());
+        assertEquals(QualityController.MAX_QUALITY, controller.getQuality());
+    }
+
+    @Test
+    public void manualQualityDisables() {
+        QualityController controller = new QualityController(70);
+        controller.setTarget(500000, 30);
+        Link link = new Link(controller, 100e6);
+        link.run(10 * SECOND);
+
+        controller.disable(40);
+        assertFalse(controller.isEnabled());
+        link.run(10 * SECOND);
+        assertEquals(40, controller.getQuality());
+        assertEquals(1, controller.getScale());
+    }
+}
@@ -0,0 +1,55 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RateGateTest {
+    private static final long MS = 1000000L;
+
+    @Test
+    public void uncappedByDefault() {
+        RateGate gate = new RateGate();
+        gate.onSent(0);
+        assertEquals(0, gate.delayNanos(1));
+        assertEquals(0, gate.getRate());
+    }
+
+    @Test
+    public void holdsBackUntilTheInterval() {
+        RateGate gate = new RateGate();
+        gate.setRate(10);
+        assertEquals(10, gate.getRate());
+        assertEquals(0, gate.delayNanos(0));
+        gate.onSent(0);
+        assertEquals(60 * MS, gate.delayNanos(40 * MS));
+        assertEquals(0, gate.delayNanos(100 * MS));
+    }
+
+    @Test
+    public void jitterDoesNotHalveTheRate() {
+        // 30 fps camera, capped at 30 fps, frames a little early or late
+        RateGate gate = new RateGate();
+        gate.setRate(30);
+        long interval = 1000000000L / 30;
+        int sent = 0;
+        for (int i = 0; i < 30; i++) {
+            long now = i * interval + (i % 2 == 0 ? -2 * MS : 2 * MS);
+            long delay = gate.delayNanos(now);
+            assertTrue(delay <= 4 * MS);
+            gate.onSent(now + delay);
+            sent++;
+        }
+        assertEquals(30, sent);
+    }
+
+    @Test
+    public void atMostOneEarlySendAfterAPause() {
+        RateGate gate = new RateGate();
+        gate.setRate(10);
+        gate.onSent(0);
+        gate.onSent(1000 * MS);
+        // Half an interval of credit, not ten intervals
+        assertEquals(50 * MS, gate.delayNanos(1000 * MS));
+    }
+}
@@ -0,0 +1,52 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RoiTest {
+    @Test
+    public void fullFrame() {
+        Roi roi = Roi.full(720, 480);
+        assertTrue(roi.isFull(720, 480));
+        assertEquals(720, roi.outputWidth());
+        assertFalse(roi.scaledBy(2).isFull(720, 480));
+        assertEquals(360, roi.scaledBy(2).outputWidth());
+    }
+
+    @Test
+    public void cornersMoveToEvenPixels() {
+        Roi roi = Roi.clip(3, 5, 100, 51, 1, 720, 480);
+        assertEquals(2, roi.left);
+        assertEquals(4, roi.top);
+        assertEquals(100, roi.width);
+        assertEquals(52, roi.height);
+    }
+
+    @Test
+    public void regionsOutsideThePreviewAreRejected() {
+        assertNull(Roi.clip(0, 0, 721, 480, 1, 720, 480));
+        assertNull(Roi.clip(700, 0, 40, 40, 1, 720, 480));
+        assertNull(Roi.clip(-2, 0, 40, 40, 1, 720, 480));
+        assertNull(Roi.clip(0, 0, 720, 480, Roi.MAX_SCALE + 1, 720, 480));
+        // 64 / 8 is below MIN_OUTPUT_SIZE
+        assertNull(Roi.clip(0, 0, 64, 64, 8, 720, 480));
+    }
+
+    @Test
+    public void outputIsAlignedForTheEncoder() {
+        Roi roi = Roi.clip(0, 120, 720, 360, 4, 720, 480).alignOutput(16);
+        assertEquals(176, roi.outputWidth());
+        assertEquals(80, roi.outputHeight());
+        assertEquals(704, roi.width);
+        assertEquals(320, roi.height);
+        assertEquals(120, roi.top);
+    }
+
+    @Test
+    public void equality() {
+        assertEquals(Roi.clip(0, 0, 64, 64, 2, 720, 480), Roi.clip(1, 1, 64, 64, 2, 720, 480));
+        assertNotEquals(Roi.clip(0, 0, 64, 64, 2, 720, 480), Roi.clip(0, 0, 64, 64, 1, 720, 480));
+        assertNotEquals(Roi.full(720, 480), null);
+    }
+}
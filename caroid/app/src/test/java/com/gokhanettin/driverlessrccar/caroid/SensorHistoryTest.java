@@ -0,0 +1,85 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class SensorHistoryTest {
+    private static final float DELTA = 1e-4f;
+
+    @Test
+    public void emptyHistoryLeavesValuesAlone() {
+        SensorHistory history = new SensorHistory(3, 8);
+        float[] dst = {7f, 7f, 7f};
+        assertFalse(history.sample(100, dst, 0));
+        assertEquals(7f, dst[0], 0f);
+    }
+
+    @Test
+    public void interpolatesBetweenSamples() {
+        SensorHistory history = new SensorHistory(2, 8);
+        history.add(1000, new float[] {0f, 10f});
+        history.add(2000, new float[] {1f, 20f});
+        float[] dst = new float[4];
+        assertTrue(history.sample(1250, dst, 2));
+        assertEquals(0.25f, dst[2], DELTA);
+        assertEquals(12.5f, dst[3], DELTA);
+    }
+
+    @Test
+    public void nearestSampleOutsideTheHistory() {
+        SensorHistory history = new SensorHistory(1, 4);
+        for (int i = 0; i < 10; i++) {
+            history.add(i * 100, new float[] {i});
+        }
+        float[] dst = new float[1];
+        // Samples 7 to 9 are left, 6 may be overwritten next
+        history.sample(0, dst, 0);
+        assertEquals(7f, dst[0], DELTA);
+        history.sample(5000, dst, 0);
+        assertEquals(9f, dst[0], DELTA);
+        history.sample(850, dst, 0);
+        assertEquals(8.5f, dst[0], DELTA);
+    }
+
+    @Test
+    public void capacityMustBeAPowerOfTwo() {
+        try {
+            new SensorHistory(3, 100);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    // A fast writer and a reader: every sample has all values equal to its
+    // timestamp, so an interpolated result must be consistent across values
+    @Test
+    public void readsAreNeverTorn() throws InterruptedException {
+        final SensorHistory history = new SensorHistory(3, 16);
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                float[] values = new float[3];
+                for (int i = 0; i < 200000; i++) {
+                    values[0] = values[1] = values[2] = i;
+                    history.add(i, values);
+                }
+                done.set(true);
+            }
+        });
+        writer.start();
+        float[] dst = new float[3];
+        boolean torn = false;
+        while (!done.get()) {
+            long t = history.getCount() - 8;
+            if (history.sample(t, dst, 0)) {
+                torn |= dst[0] != dst[1] || dst[1] != dst[2];
+            }
+        }
+        writer.join();
+        assertFalse(torn);
+    }
+}
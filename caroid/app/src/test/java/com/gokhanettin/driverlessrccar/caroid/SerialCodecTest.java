@@ -0,0 +1,121 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SerialCodecTest {
+    private final List<String> mLines = new ArrayList<>();
+    private final List<byte[]> mFrames = new ArrayList<>();
+    private final List<Integer> mTypes = new ArrayList<>();
+    private final SerialCodec mCodec = new SerialCodec(new SerialCodec.Listener() {
+        @Override
+        public void onLine(byte[] line, int length) {
+            mLines.add(new String(line, 0, length, StandardCharsets.US_ASCII));
+        }
+
+        @Override
+        public void onFrame(int type, byte[] payload, int length) {
+            mTypes.add(type);
+            mFrames.add(Arrays.copyOf(payload, length));
+        }
+    });
+
+    private static byte[] telemetry(int speed, int steering, float distance) {
+        byte[] frame = new byte[SerialCodec.MAX_FRAME_SIZE];
+        int length = SerialCodec.encodeTelemetry(speed, steering, distance, frame);
+        return Arrays.copyOf(frame, length);
+    }
+
+    private void feed(byte[] data) {
+        mCodec.feed(data, 0, data.length);
+    }
+
+    @Test
+    public void crcMatchesCheckValue() {
+        // CRC-8 with polynomial 0x07, the same as carino.ino
+        byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(0xF4, SerialCodec.crc8(check, 0, check.length));
+    }
+
+    @Test
+    public void telemetryRoundTrip() {
+        byte[] frame = telemetry(1150, 2098, 123.45f);
+        assertEquals(10, frame.length);
+        assertEquals((byte) SerialCodec.SYNC, frame[0]);
+        feed(frame);
+
+        assertEquals(1, mFrames.size());
+        assertEquals(SerialCodec.TYPE_TELEMETRY, (int) mTypes.get(0));
+        ArduinoInput input = new ArduinoInput();
+        assertTrue(SerialCodec.decodeTelemetry(mFrames.get(0), mFrames.get(0).length, input));
+        assertTrue(input.isOnline);
+        assertEquals(1150, input.speedCommand);
+        assertEquals(2098, input.steeringCommand);
+        assertEquals(123.5f, input.distance, 1e-4f);
+        assertFalse(SerialCodec.decodeTelemetry(mFrames.get(0), 5, input));
+    }
+
+    @Test
+    public void commandsEncodeLittleEndian() {
+        byte[] frame = new byte[SerialCodec.MAX_FRAME_SIZE];
+        int length = SerialCodec.encodeControl(-2, 1568, frame);
+        assertEquals(8, length);
+        assertArrayEquals(new byte[]{(byte) 0xA5, 4, SerialCodec.TYPE_CONTROL,
+                (byte) 0xFE, (byte) 0xFF, 0x20, 0x06}, Arrays.copyOf(frame, 7));
+        assertEquals(SerialCodec.crc8(frame, 1, 6), frame[7] & 0xff);
+
+        length = SerialCodec.encodeMode('C', frame);
+        assertEquals(5, length);
+        feed(Arrays.copyOf(frame, length));
+        assertEquals(SerialCodec.TYPE_MODE, (int) mTypes.get(0));
+        assertEquals('C', mFrames.get(0)[0]);
+    }
+
+    @Test
+    public void textAndFramesMixAcrossReads() {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte[] text = "00 1568 1.00\r\n1400 1568 2.00\r\n".getBytes(StandardCharsets.US_ASCII);
+        stream.write(text, 0, text.length);
+        byte[] frame = telemetry(1400, 1568, 3f);
+        stream.write(frame, 0, frame.length);
+        stream.write(frame, 0, frame.length);
+        byte[] all = stream.toByteArray();
+
+        // One byte at a time, then in odd pieces
+        for (byte b : all) {
+            feed(new byte[]{b});
+        }
+        assertEquals(Arrays.asList("1400 1568 2.00\r"), mLines);
+        assertEquals(2, mFrames.size());
+
+        for (int i = 0; i < all.length; i += 7) {
+            mCodec.feed(all, i, Math.min(7, all.length - i));
+        }
+        // The line cut off the first time is whole now
+        assertEquals(4, mFrames.size());
+        assertEquals(3, mLines.size());
+        assertEquals("00 1568 1.00\r", mLines.get(1));
+        assertEquals(0, mCodec.getErrorCount());
+    }
+
+    @Test
+    public void corruptFramesAreDropped() {
+        byte[] bad = telemetry(1400, 1568, 3f);
+        bad[4] ^= 0x10;
+        byte[] badLength = {(byte) SerialCodec.SYNC, (byte) (SerialCodec.MAX_PAYLOAD + 1)};
+        feed(bad);
+        feed(badLength);
+        feed(telemetry(1500, 1568, 3f));
+
+        assertEquals(1, mFrames.size());
+        assertEquals(2, mCodec.getErrorCount());
+        assertEquals(1, mCodec.getFrameCount());
+    }
+}
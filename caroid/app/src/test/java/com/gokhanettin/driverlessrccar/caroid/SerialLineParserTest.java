@@ -0,0 +1,61 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SerialLineParserTest {
+    private final List<String> mLines = new ArrayList<>();
+    private final SerialLineParser mParser = new SerialLineParser(new SerialLineParser.Listener() {
+        @Override
+        public void onLine(byte[] line, int length) {
+            mLines.add(new String(line, 0, length, StandardCharsets.US_ASCII));
+        }
+    });
+
+    private void feed(String data) {
+        byte[] bytes = ("xx" + data).getBytes(StandardCharsets.US_ASCII);
+        mParser.feed(bytes, 2, bytes.length - 2);
+    }
+
+    @Test
+    public void partialFirstLineIsDropped() {
+        feed("00 1568 12.00\r\n1400 1568 12.00\r\n");
+        assertEquals(1, mLines.size());
+        assertEquals("1400 1568 12.00\r", mLines.get(0));
+    }
+
+    @Test
+    public void burstOfLinesInOneRead() {
+        feed("\n1 2 3\n4 5 6\n7 8");
+        assertEquals(2, mLines.size());
+        assertEquals("1 2 3", mLines.get(0));
+        assertEquals("4 5 6", mLines.get(1));
+    }
+
+    @Test
+    public void lineSplitAcrossReads() {
+        feed("\n14");
+        feed("00 15");
+        assertTrue(mLines.isEmpty());
+        feed("68 0.00\n");
+        assertEquals(1, mLines.size());
+        assertEquals("1400 1568 0.00", mLines.get(0));
+    }
+
+    @Test
+    public void runawayLineIsDropped() {
+        StringBuilder builder = new StringBuilder("\n");
+        for (int i = 0; i <= SerialLineParser.MAX_LINE_LENGTH; i++) {
+            builder.append('x');
+        }
+        feed(builder.toString() + "tail\n1 2 3\n");
+        assertEquals(1, mLines.size());
+        assertEquals("1 2 3", mLines.get(0));
+        assertEquals(1, mParser.getOverflowCount());
+    }
+}
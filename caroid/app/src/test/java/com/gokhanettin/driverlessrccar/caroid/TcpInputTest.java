@@ -0,0 +1,155 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class TcpInputTest {
+    private static TcpInput parse(String frame) {
+        byte[] bytes = frame.getBytes(StandardCharsets.US_ASCII);
+        TcpInput input = TcpInput.obtain();
+        input.parse(bytes, bytes.length);
+        return input;
+    }
+
+    @Test
+    public void quality() {
+        TcpInput input = parse("Q;70");
+        assertEquals(TcpInput.COMMAND_QUALITY, input.command);
+        assertEquals(1, input.argCount);
+        assertEquals(70, input.args[0]);
+    }
+
+    @Test
+    public void flashAndPing() {
+        assertEquals(TcpInput.COMMAND_FLASH, parse("F").command);
+        assertEquals(TcpInput.COMMAND_PING, parse("P").command);
+    }
+
+    @Test
+    public void keyFrame() {
+        assertEquals(TcpInput.COMMAND_KEY_FRAME, parse("K").command);
+        assertEquals(TcpInput.COMMAND_NONE, parse("K;1").command);
+    }
+
+    @Test
+    public void regionOfInterest() {
+        TcpInput input = parse("R;0;120;720;360;4");
+        assertEquals(TcpInput.COMMAND_ROI, input.command);
+        assertEquals(5, input.argCount);
+        assertEquals(360, input.args[3]);
+        assertEquals(TcpInput.COMMAND_ROI, parse("R").command);
+        assertEquals(TcpInput.COMMAND_NONE, parse("R;0;0;720;360;0").command);
+        assertEquals(TcpInput.COMMAND_NONE, parse("R;0;0;720;360").command);
+        assertEquals(TcpInput.COMMAND_NONE, parse("R;-2;0;720;360;1").command);
+    }
+
+    @Test
+    public void videoFormat() {
+        assertEquals(TcpInput.COMMAND_VIDEO, parse("V;2").command);
+        TcpInput input = parse("V;2;1");
+        assertEquals(TcpInput.COMMAND_VIDEO, input.command);
+        assertEquals(LumaEncoder.CODEC_DELTA_LZ4, input.args[1]);
+        assertEquals(TcpInput.COMMAND_NONE, parse("V;3").command);
+        assertEquals(TcpInput.COMMAND_NONE, parse("V;2;5").command);
+        // Only the luma format takes a codec
+        assertEquals(TcpInput.COMMAND_NONE, parse("V;0;1").command);
+    }
+
+    @Test
+    public void changeDetection() {
+        TcpInput input = parse("D;4;30");
+        assertEquals(TcpInput.COMMAND_CHANGES, input.command);
+        assertEquals(30, input.args[1]);
+        assertEquals(TcpInput.COMMAND_CHANGES, parse("D;0").command);
+        assertEquals(TcpInput.COMMAND_NONE, parse("D;4").command);
+        assertEquals(TcpInput.COMMAND_NONE, parse("D;4;0").command);
+        assertEquals(TcpInput.COMMAND_NONE, parse("D;256;30").command);
+    }
+
+    @Test
+    public void rateLimits() {
+        TcpInput input = parse("G;20;5");
+        assertEquals(TcpInput.COMMAND_RATE, input.command);
+        assertEquals(5, input.args[1]);
+        assertEquals(TcpInput.COMMAND_RATE, parse("G;0;0").command);
+        assertEquals(TcpInput.COMMAND_NONE, parse("G;20").command);
+        assertEquals(TcpInput.COMMAND_NONE, parse("G;200;5").command);
+    }
+
+    @Test
+    public void sensorDelay() {
+        assertEquals(TcpInput.COMMAND_SENSOR_DELAY, parse("I;0").command);
+        assertEquals(TcpInput.COMMAND_SENSOR_DELAY, parse("I;3").command);
+        assertEquals(TcpInput.COMMAND_NONE, parse("I;4").command);
+        assertEquals(TcpInput.COMMAND_NONE, parse("I").command);
+    }
+
+    @Test
+    public void jpegMode() {
+        TcpInput input = parse("J;1");
+        assertEquals(TcpInput.COMMAND_JPEG_MODE, input.command);
+        assertEquals(JpegEncoder.MODE_KEEP_ONE_READY, input.args[0]);
+        assertEquals(TcpInput.COMMAND_NONE, parse("J;2").command);
+        assertEquals(TcpInput.COMMAND_NONE, parse("J").command);
+    }
+
+    @Test
+    public void arduinoControl() {
+        TcpInput input = parse("A;1400 1568");
+        assertEquals(TcpInput.COMMAND_ARDUINO, input.command);
+        assertEquals(0, input.mode);
+        assertEquals(2, input.argCount);
+        assertEquals(1400, input.args[0]);
+        assertEquals(1568, input.args[1]);
+    }
+
+    @Test
+    public void arduinoMode() {
+        TcpInput input = parse("A;C");
+        assertEquals(TcpInput.COMMAND_ARDUINO, input.command);
+        assertEquals('C', input.mode);
+        assertEquals(0, input.argCount);
+    }
+
+    @Test
+    public void stats() {
+        assertEquals(TcpInput.COMMAND_STATS, parse("S").command);
+        TcpInput input = parse("S;1");
+        assertEquals(TcpInput.COMMAND_STATS, input.command);
+        assertEquals(1, input.args[0]);
+        assertEquals(TcpInput.COMMAND_NONE, parse("S;2").command);
+    }
+
+    @Test
+    public void headerFormat() {
+        TcpInput input = parse("H;1");
+        assertEquals(TcpInput.COMMAND_HEADER, input.command);
+        assertEquals(TelemetryHeader.FORMAT_BINARY, input.args[0]);
+    }
+
+    @Test
+    public void malformedInputIsRejected() {
+        String[] frames = {
+                "", "X", "Q", "Q;", "Q;abc", "Q;101", "Q;5;", "QQ;5", "F;1", "A;1400",
+                "A;1400 1568 1", "A;X", "A;1400  1568", "H;7", "Q;99999999999", "A;C;1"
+        };
+        for (String frame : frames) {
+            TcpInput input = parse(frame);
+            assertEquals("\"" + frame + "\"", TcpInput.COMMAND_NONE, input.command);
+            assertEquals(0, input.argCount);
+        }
+    }
+
+    @Test
+    public void recycledInstancesAreReused() {
+        TcpInput input = parse("Q;10");
+        input.recycle();
+        TcpInput reused = TcpInput.obtain();
+        assertSame(input, reused);
+        assertEquals(TcpInput.COMMAND_NONE, reused.command);
+        assertEquals(0, reused.argCount);
+    }
+}
@@ -0,0 +1,79 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+// Host-side comparison of the telemetry header encoders. Run with
+// TelemetryHeaderBenchmark.main() from the unit test classpath.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TelemetryHeaderBenchmark {
+    private ArduinoInput mArduinoInput;
+    private float[] mSensorValues;
+    private TelemetryHeader mHeader;
+
+    @Setup
+    public void setUp() {
+        mArduinoInput = new ArduinoInput();
+        mArduinoInput.isOnline = true;
+        mArduinoInput.distance = 42.5f;
+        mSensorValues = new float[TelemetryHeader.SENSOR_COUNT];
+        for (int i = 0; i < mSensorValues.length; i++) {
+            mSensorValues[i] = (i - 5) * 1.2345f;
+        }
+        mHeader = new TelemetryHeader();
+    }
+
+    // What TcpOutput.writeTo() did before TelemetryHeader
+    @Benchmark
+    public byte[] legacyString() {
+        String data = String.format(Locale.US, "[%d;%d;%d;%.1f;%d",
+                mArduinoInput.isOnline ? 1 : 0,
+                mArduinoInput.speedCommand, mArduinoInput.steeringCommand, mArduinoInput.distance,
+                30000
+        );
+        for (float sensorValue : mSensorValues) {
+            data += String.format(Locale.US, ";%.5f", sensorValue);
+        }
+        data += "]";
+        return data.getBytes();
+    }
+
+    @Benchmark
+    public ByteBuffer text() {
+        mHeader.set(mArduinoInput, mSensorValues, 30000);
+        return mHeader.encode(TelemetryHeader.FORMAT_TEXT);
+    }
+
+    @Benchmark
+    public ByteBuffer binary() {
+        mHeader.set(mArduinoInput, mSensorValues, 30000);
+        return mHeader.encode(TelemetryHeader.FORMAT_BINARY);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(TelemetryHeaderBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,108 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import android.graphics.ImageFormat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Host-side comparison of the preview to NV12 conversions at 720p and 1080p.
+// Run with YuvConverterBenchmark.main() from the unit test classpath.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class YuvConverterBenchmark {
+    @Param({"1280x720", "1920x1080"})
+    public String size;
+
+    private int mWidth;
+    private int mHeight;
+    private byte[] mNv21;
+    private byte[] mYv12;
+    private byte[] mOutput;
+    private YuvConverter mNv21Converter;
+    private YuvConverter mYv12Converter;
+
+    @Setup
+    public void setUp() {
+        String[] dimensions = size.split("x");
+        mWidth = Integer.parseInt(dimensions[0]);
+        mHeight = Integer.parseInt(dimensions[1]);
+        mNv21Converter = new YuvConverter(ImageFormat.NV21, mWidth, mHeight);
+        mYv12Converter = new YuvConverter(ImageFormat.YV12, mWidth, mHeight);
+        Random random = new Random(1);
+        mNv21 = new byte[mNv21Converter.sourceSize()];
+        mYv12 = new byte[mYv12Converter.sourceSize()];
+        random.nextBytes(mNv21);
+        random.nextBytes(mYv12);
+        mOutput = new byte[YuvConverter.outputSize(mWidth, mHeight)];
+    }
+
+    // AvcEncoder.YV12toYUV420PackedSemiPlanar() before YuvConverter
+    @Benchmark
+    public byte[] legacyYv12() {
+        int yStride = (int) Math.ceil(mWidth / 16.0f) * 16;
+        int cStride = (int) Math.ceil(mWidth / 32.0f) * 16;
+        int ySize = yStride * mHeight;
+        int cSize = cStride * mHeight / 2;
+        int halfWidth = mWidth / 2;
+        int halfHeight = mHeight / 2;
+        for (int i = 0; i < mHeight; i++)
+            System.arraycopy(mYv12, yStride * i, mOutput, yStride * i, yStride);
+        for (int i = 0; i < halfHeight; i++) {
+            for (int j = 0; j < halfWidth; j++) {
+                mOutput[ySize + (i * halfWidth + j) * 2] = mYv12[ySize + cSize + i * cStride + j];
+                mOutput[ySize + (i * halfWidth + j) * 2 + 1] = mYv12[ySize + i * cStride + j];
+            }
+        }
+        return mOutput;
+    }
+
+    // Byte at a time NV21 swap
+    @Benchmark
+    public byte[] bytewiseNv21() {
+        int lumaSize = mWidth * mHeight;
+        System.arraycopy(mNv21, 0, mOutput, 0, lumaSize);
+        for (int i = lumaSize; i < lumaSize + lumaSize / 2; i += 2) {
+            mOutput[i] = mNv21[i + 1];
+            mOutput[i + 1] = mNv21[i];
+        }
+        return mOutput;
+    }
+
+    @Benchmark
+    public byte[] convertNv21() {
+        mNv21Converter.toNv12(mNv21, mOutput);
+        return mOutput;
+    }
+
+    @Benchmark
+    public byte[] convertYv12() {
+        mYv12Converter.toNv12(mYv12, mOutput);
+        return mOutput;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(YuvConverterBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,79 @@
+package com.gokhanettin.driverlessrccar.caroid;
+
+import android.graphics.ImageFormat;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class YuvConverterTest {
+    private static final int HEIGHT = 10;
+
+    // 80 wide takes the long path, 72 wide the byte loops. Both get their YV12
+    // rows padded to 80 and 48 bytes.
+    @Test
+    public void nv21() {
+        nv21(80);
+        nv21(72);
+    }
+
+    @Test
+    public void yv12() {
+        yv12(80);
+        yv12(72);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherFormats() {
+        new YuvConverter(ImageFormat.YUY2, 80, HEIGHT);
+    }
+
+    private static void nv21(int width) {
+        YuvConverter converter = new YuvConverter(ImageFormat.NV21, width, HEIGHT);
+        byte[] src = random(converter.sourceSize());
+        byte[] dst = new byte[YuvConverter.outputSize(width, HEIGHT)];
+        converter.toNv12(src, dst);
+
+        int lumaSize = width * HEIGHT;
+        for (int i = 0; i < lumaSize; i++) {
+            assertEquals(src[i], dst[i]);
+        }
+        for (int i = lumaSize; i < dst.length; i += 2) {
+            assertEquals("U at " + i, src[i + 1], dst[i]);
+            assertEquals("V at " + i, src[i], dst[i + 1]);
+        }
+    }
+
+    private static void yv12(int width) {
+        YuvConverter converter = new YuvConverter(ImageFormat.YV12, width, HEIGHT);
+        int yStride = 80;
+        int cStride = 48;
+        assertEquals(yStride * HEIGHT + cStride * HEIGHT, converter.sourceSize());
+        byte[] src = random(converter.sourceSize());
+        byte[] dst = new byte[YuvConverter.outputSize(width, HEIGHT)];
+        converter.toNv12(src, dst);
+
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < width; x++) {
+                assertEquals(src[y * yStride + x], dst[y * width + x]);
+            }
+        }
+        int vPlane = yStride * HEIGHT;
+        int uPlane = vPlane + cStride * HEIGHT / 2;
+        for (int y = 0; y < HEIGHT / 2; y++) {
+            for (int x = 0; x < width / 2; x++) {
+                int d = width * HEIGHT + y * width + x * 2;
+                assertEquals("U at " + x + "," + y, src[uPlane + y * cStride + x], dst[d]);
+                assertEquals("V at " + x + "," + y, src[vPlane + y * cStride + x], dst[d + 1]);
+            }
+        }
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(7).nextBytes(data);
+        return data;
+    }
+}
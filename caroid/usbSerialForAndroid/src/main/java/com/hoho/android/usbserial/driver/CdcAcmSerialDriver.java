@@ -157,6 +157,11 @@ public class CdcAcmSerialDriver implements UsbSerialDriver {
             mConnection = null;
         }
 
+        @Override
+        public UsbEndpoint getReadEndpoint() {
+            return mConnection != null ? mReadEndpoint : null;
+        }
+
         @Override
         public int read(byte[] dest, int timeoutMillis) throws IOException {
             if (mEnableAsyncReads) {
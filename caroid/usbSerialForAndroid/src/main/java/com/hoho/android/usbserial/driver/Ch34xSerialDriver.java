@@ -61,6 +61,11 @@ public class Ch34xSerialDriver implements UsbSerialDriver {
 		return Collections.singletonList(mPort);
 	}
 
+	// Baud rate, then the values for registers 0x1312 and 0x0f2c
+	private static final int[] BAUD_RATES = new int[]{2400, 0xd901, 0x0038, 4800, 0x6402,
+			0x001f, 9600, 0xb202, 0x0013, 19200, 0xd902, 0x000d, 38400,
+			0x6403, 0x000a, 115200, 0xcc03, 0x0008};
+
 	public class Ch340SerialPort extends CommonUsbSerialPort {
 
 		private static final int USB_TIMEOUT_MILLIS = 5000;
@@ -144,6 +149,11 @@ public class Ch34xSerialDriver implements UsbSerialDriver {
 		}
 
 
+		@Override
+		public UsbEndpoint getReadEndpoint() {
+			return mConnection != null ? mReadEndpoint : null;
+		}
+
 		@Override
 		public int read(byte[] dest, int timeoutMillis) throws IOException {
 			final int numBytesRead;
@@ -271,9 +281,7 @@ public class Ch34xSerialDriver implements UsbSerialDriver {
 
 
 		private void setBaudRate(int baudRate) throws IOException {
-			int[] baud = new int[]{2400, 0xd901, 0x0038, 4800, 0x6402,
-					0x001f, 9600, 0xb202, 0x0013, 19200, 0xd902, 0x000d, 38400,
-					0x6403, 0x000a, 115200, 0xcc03, 0x0008};
+			int[] baud = BAUD_RATES;
 
 			for (int i = 0; i < baud.length / 3; i++) {
 				if (baud[i * 3] == baudRate) {
@@ -303,6 +311,16 @@ public class Ch34xSerialDriver implements UsbSerialDriver {
 			// TODO databit, stopbit and paraty set not implemented
 		}
 
+		@Override
+		public boolean supportsBaudRate(int baudRate) {
+			for (int i = 0; i < BAUD_RATES.length; i += 3) {
+				if (BAUD_RATES[i] == baudRate) {
+					return true;
+				}
+			}
+			return false;
+		}
+
 		@Override
 		public boolean getCD() throws IOException {
 			return false;
@@ -23,6 +23,7 @@ package com.hoho.android.usbserial.driver;
 
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
 
 import java.io.IOException;
 
@@ -119,6 +120,24 @@ abstract class CommonUsbSerialPort implements UsbSerialPort {
         }
     }
 
+    @Override
+    public UsbDeviceConnection getConnection() {
+        return mConnection;
+    }
+
+    @Override
+    public int filterReadData(byte[] buffer, int length) {
+        return length;
+    }
+
+    @Override
+    public boolean supportsBaudRate(int baudRate) {
+        return true;
+    }
+
+    @Override
+    public abstract UsbEndpoint getReadEndpoint();
+
     @Override
     public abstract void open(UsbDeviceConnection connection) throws IOException;
 
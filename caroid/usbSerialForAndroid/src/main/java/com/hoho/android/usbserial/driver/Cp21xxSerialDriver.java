@@ -177,6 +177,11 @@ public class Cp21xxSerialDriver implements UsbSerialDriver {
             }
         }
 
+        @Override
+        public UsbEndpoint getReadEndpoint() {
+            return mConnection != null ? mReadEndpoint : null;
+        }
+
         @Override
         public int read(byte[] dest, int timeoutMillis) throws IOException {
             final int numBytesRead;
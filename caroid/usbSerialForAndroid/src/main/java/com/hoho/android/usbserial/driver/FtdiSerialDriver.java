@@ -212,9 +212,9 @@ public class FtdiSerialDriver implements UsbSerialDriver {
         private final int filterStatusBytes(byte[] src, byte[] dest, int totalBytesRead, int maxPacketSize) {
             final int packetsCount = totalBytesRead / maxPacketSize + (totalBytesRead % maxPacketSize == 0 ? 0 : 1);
             for (int packetIdx = 0; packetIdx < packetsCount; ++packetIdx) {
-                final int count = (packetIdx == (packetsCount - 1))
-                        ? (totalBytesRead % maxPacketSize) - MODEM_STATUS_HEADER_LENGTH
-                        : maxPacketSize - MODEM_STATUS_HEADER_LENGTH;
+                // The last packet may be short, or full as well
+                final int count = Math.min(maxPacketSize, totalBytesRead - packetIdx * maxPacketSize)
+                        - MODEM_STATUS_HEADER_LENGTH;
                 if (count > 0) {
                     System.arraycopy(src,
                             packetIdx * maxPacketSize + MODEM_STATUS_HEADER_LENGTH,
@@ -276,6 +276,20 @@ public class FtdiSerialDriver implements UsbSerialDriver {
             }
         }
 
+        @Override
+        public UsbEndpoint getReadEndpoint() {
+            return mConnection != null ? mDevice.getInterface(0).getEndpoint(0) : null;
+        }
+
+        @Override
+        public int filterReadData(byte[] buffer, int length) {
+            if (length < MODEM_STATUS_HEADER_LENGTH) {
+                return 0;
+            }
+            return filterStatusBytes(buffer, buffer, length,
+                    mDevice.getInterface(0).getEndpoint(0).getMaxPacketSize());
+        }
+
         @Override
         public int read(byte[] dest, int timeoutMillis) throws IOException {
             final UsbEndpoint endpoint = mDevice.getInterface(0).getEndpoint(0);
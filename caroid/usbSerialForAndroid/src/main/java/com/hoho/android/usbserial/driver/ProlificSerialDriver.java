@@ -366,6 +366,11 @@ public class ProlificSerialDriver implements UsbSerialDriver {
             }
         }
 
+        @Override
+        public UsbEndpoint getReadEndpoint() {
+            return mConnection != null ? mReadEndpoint : null;
+        }
+
         @Override
         public int read(byte[] dest, int timeoutMillis) throws IOException {
             synchronized (mReadBufferLock) {
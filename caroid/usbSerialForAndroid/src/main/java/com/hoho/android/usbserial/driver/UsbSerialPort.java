@@ -22,6 +22,7 @@
 package com.hoho.android.usbserial.driver;
 
 import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbManager;
 
 import java.io.IOException;
@@ -149,6 +150,15 @@ public interface UsbSerialPort {
     public void setParameters(
             int baudRate, int dataBits, int stopBits, int parity) throws IOException;
 
+    /**
+     * Tells whether {@link #setParameters(int, int, int, int)} accepts the
+     * given baud rate, without touching the port.
+     *
+     * @param baudRate baud rate as an integer, for example {@code 115200}.
+     * @return {@code false} if the driver is known to reject the rate
+     */
+    public boolean supportsBaudRate(int baudRate);
+
     /**
      * Gets the CD (Carrier Detect) bit from the underlying UART.
      *
@@ -225,4 +235,29 @@ public interface UsbSerialPort {
      */
     public boolean purgeHwBuffers(boolean flushRX, boolean flushTX) throws IOException;
 
+    /**
+     * Returns the connection the port was opened with, or {@code null} when
+     * the port is closed.
+     */
+    public UsbDeviceConnection getConnection();
+
+    /**
+     * Returns the bulk endpoint that {@link #read(byte[], int)} reads from, or
+     * {@code null} when the port is closed. Callers may keep their own
+     * {@link android.hardware.usb.UsbRequest}s queued on it instead of calling
+     * {@link #read(byte[], int)}, and must then pass what they receive through
+     * {@link #filterReadData(byte[], int)}.
+     */
+    public UsbEndpoint getReadEndpoint();
+
+    /**
+     * Removes driver specific framing, such as FTDI modem status bytes, from
+     * data that was read straight from {@link #getReadEndpoint()}.
+     *
+     * @param buffer the data, filtered in place
+     * @param length the number of bytes read into buffer
+     * @return the number of payload bytes now at the start of buffer
+     */
+    public int filterReadData(byte[] buffer, int length);
+
 }
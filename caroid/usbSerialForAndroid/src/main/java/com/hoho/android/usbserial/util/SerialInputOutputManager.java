@@ -21,6 +21,8 @@
 
 package com.hoho.android.usbserial.util;
 
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbRequest;
 import android.util.Log;
 
@@ -28,27 +30,42 @@ import com.hoho.android.usbserial.driver.UsbSerialPort;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Utility class which services a {@link UsbSerialPort} in its {@link #run()}
  * method.
  *
+ * Reads and writes are independent of each other: {@link #run()} keeps
+ * {@link #READ_REQUESTS} {@link UsbRequest}s queued on the read endpoint, so
+ * the host controller always has somewhere to put incoming data, while a
+ * second thread writes whatever {@link #writeAsync(byte[])} was given as soon
+ * as it is given. A write therefore waits for the bus, not for a read to time
+ * out. Writes of which only the latest one matters can go through
+ * {@link #writeLatestAsync(byte[])}, which replaces one that is still waiting.
+ * Ports that do not expose their read endpoint are read with blocking reads
+ * instead, still next to the writer thread.
+ *
  * @author mike wakerly (opensource@hoho.com)
  */
 public class SerialInputOutputManager implements Runnable {
 
     private static final String TAG = SerialInputOutputManager.class.getSimpleName();
-    private static final boolean DEBUG = true;
+    // Logs every read and write, which allocates on every read
+    private static final boolean DEBUG = false;
 
+    // Blocking reads only, queued reads wait for data or stop()
     private static final int READ_WAIT_MILLIS = 200;
+    private static final int WRITE_WAIT_MILLIS = 200;
     private static final int BUFSIZ = 4096;
+    private static final int READ_REQUESTS = 4;
+    private static final int WRITE_QUEUE_SIZE = 64;
 
     private final UsbSerialPort mDriver;
 
     private final ByteBuffer mReadBuffer = ByteBuffer.allocate(BUFSIZ);
 
-    // Synchronized by 'mWriteBuffer'
-    private final ByteBuffer mWriteBuffer = ByteBuffer.allocate(BUFSIZ);
+    private final SerialWriteQueue mWriteQueue = new SerialWriteQueue(WRITE_QUEUE_SIZE);
 
     private enum State {
         STOPPED,
@@ -62,6 +79,10 @@ public class SerialInputOutputManager implements Runnable {
     // Synchronized by 'this'
     private Listener mListener;
 
+    // Synchronized by 'this', the queued reads and the writer while running
+    private UsbRequest[] mRequests;
+    private Thread mWriter;
+
     public interface Listener {
         /**
          * Called when new incoming data is available.
@@ -75,6 +96,19 @@ public class SerialInputOutputManager implements Runnable {
         public void onRunError(Exception e);
     }
 
+    /**
+     * A {@link Listener} that is handed the read buffer itself instead of a
+     * copy of the new data, so that reading allocates nothing.
+     */
+    public interface BufferListener extends Listener {
+        /**
+         * Called instead of {@link Listener#onNewData(byte[])} when new
+         * incoming data is available. The buffer is reused as soon as this
+         * returns.
+         */
+        public void onNewData(byte[] buffer, int offset, int length);
+    }
+
     /**
      * Creates a new instance with no listener.
      */
@@ -98,17 +132,69 @@ public class SerialInputOutputManager implements Runnable {
         return mListener;
     }
 
-    public void writeAsync(byte[] data) {
-        synchronized (mWriteBuffer) {
-            mWriteBuffer.put(data);
-        }
+    /**
+     * Queues data to be written after everything queued before it. Returns
+     * false and drops the data if the queue is full.
+     */
+    public boolean writeAsync(byte[] data) {
+        return mWriteQueue.offer(data);
+    }
+
+    /**
+     * Queues data that supersedes the last data queued this way, such as a
+     * control command. If that is still waiting, it is replaced and counted
+     * in {@link #getCoalescedWriteCount()}.
+     */
+    public void writeLatestAsync(byte[] data) {
+        mWriteQueue.offerLatest(data);
+    }
+
+    /**
+     * Writes waiting for the writer thread.
+     */
+    public int getWriteQueueDepth() {
+        return mWriteQueue.size();
     }
 
-    public synchronized void stop() {
-        if (getState() == State.RUNNING) {
+    /**
+     * Writes from {@link #writeLatestAsync(byte[])} that were replaced before
+     * they were written.
+     */
+    public long getCoalescedWriteCount() {
+        return mWriteQueue.getCoalescedCount();
+    }
+
+    /**
+     * Writes from {@link #writeAsync(byte[])} that were dropped because the
+     * queue was full.
+     */
+    public long getDroppedWriteCount() {
+        return mWriteQueue.getRejectedCount();
+    }
+
+    public void stop() {
+        requestStop();
+    }
+
+    // Returns false if the manager was not running
+    private boolean requestStop() {
+        synchronized (this) {
+            if (getState() != State.RUNNING) {
+                return false;
+            }
             Log.i(TAG, "Stop requested");
             mState = State.STOPPING;
+            // requestWait() returns cancelled requests
+            if (mRequests != null) {
+                for (UsbRequest request : mRequests) {
+                    request.cancel();
+                }
+            }
+            if (mWriter != null) {
+                LockSupport.unpark(mWriter);
+            }
         }
+        return true;
     }
 
     private synchronized State getState() {
@@ -118,9 +204,6 @@ public class SerialInputOutputManager implements Runnable {
     /**
      * Continuously services the read and write buffers until {@link #stop()} is
      * called, or until a driver exception is raised.
-     *
-     * NOTE(mikey): Uses inefficient read/write-with-timeout.
-     * TODO(mikey): Read asynchronously with {@link UsbRequest#queue(ByteBuffer, int)}
      */
     @Override
     public void run() {
@@ -132,59 +215,161 @@ public class SerialInputOutputManager implements Runnable {
         }
 
         Log.i(TAG, "Running ..");
+        Thread writer = new Thread(mWriteLoop, TAG + " writer");
+        synchronized (this) {
+            mWriter = writer;
+        }
+        mWriteQueue.setConsumer(writer);
+        writer.start();
         try {
-            while (true) {
-                if (getState() != State.RUNNING) {
-                    Log.i(TAG, "Stopping mState=" + getState());
-                    break;
-                }
-                step();
+            UsbDeviceConnection connection = mDriver.getConnection();
+            UsbEndpoint endpoint = mDriver.getReadEndpoint();
+            if (connection != null && endpoint != null) {
+                readQueued(connection, endpoint);
+            } else {
+                readBlocking();
             }
+            Log.i(TAG, "Stopping mState=" + getState());
         } catch (Exception e) {
-            Log.w(TAG, "Run ending due to exception: " + e.getMessage(), e);
-            final Listener listener = getListener();
-            if (listener != null) {
-              listener.onRunError(e);
-            }
+            onError(e);
         } finally {
+            stop();
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mWriteQueue.setConsumer(null);
             synchronized (this) {
+                mWriter = null;
                 mState = State.STOPPED;
                 Log.i(TAG, "Stopped.");
             }
         }
     }
 
-    private void step() throws IOException {
-        // Handle incoming data.
-        int len = mDriver.read(mReadBuffer.array(), READ_WAIT_MILLIS);
-        if (len > 0) {
-            if (DEBUG) Log.d(TAG, "Read data len=" + len);
-            final Listener listener = getListener();
-            if (listener != null) {
-                final byte[] data = new byte[len];
-                mReadBuffer.get(data, 0, len);
-                listener.onNewData(data);
+    private void readQueued(UsbDeviceConnection connection, UsbEndpoint endpoint)
+            throws IOException {
+        UsbRequest[] requests = new UsbRequest[READ_REQUESTS];
+        try {
+            for (int i = 0; i < requests.length; i++) {
+                UsbRequest request = new UsbRequest();
+                if (!request.initialize(connection, endpoint)) {
+                    request.close();
+                    throw new IOException("Error initializing request.");
+                }
+                request.setClientData(ByteBuffer.allocate(BUFSIZ));
+                requests[i] = request;
+            }
+            synchronized (this) {
+                if (mState != State.RUNNING) {
+                    return;
+                }
+                mRequests = requests;
+            }
+            for (UsbRequest request : requests) {
+                queue(request);
+            }
+
+            while (getState() == State.RUNNING) {
+                UsbRequest request = connection.requestWait();
+                if (request == null) {
+                    throw new IOException("Null response");
+                }
+                if (getState() != State.RUNNING) {
+                    break;
+                }
+                ByteBuffer buffer = (ByteBuffer) request.getClientData();
+                if (buffer == null) {
+                    // Not ours, e.g. a read through the driver
+                    continue;
+                }
+                // Requests on one endpoint complete in the order they were queued
+                int len = mDriver.filterReadData(buffer.array(), buffer.position());
+                if (len > 0) {
+                    onNewData(buffer.array(), len);
+                }
+                queue(request);
+            }
+        } finally {
+            synchronized (this) {
+                mRequests = null;
+            }
+            for (UsbRequest request : requests) {
+                if (request != null) {
+                    request.cancel();
+                    request.close();
+                }
             }
-            mReadBuffer.clear();
         }
+    }
 
-        // Handle outgoing data.
-        byte[] outBuff = null;
-        synchronized (mWriteBuffer) {
-            len = mWriteBuffer.position();
+    private static void queue(UsbRequest request) throws IOException {
+        ByteBuffer buffer = (ByteBuffer) request.getClientData();
+        buffer.clear();
+        if (!request.queue(buffer, BUFSIZ)) {
+            throw new IOException("Error queueing request.");
+        }
+    }
+
+    private void readBlocking() throws IOException {
+        while (getState() == State.RUNNING) {
+            int len = mDriver.read(mReadBuffer.array(), READ_WAIT_MILLIS);
             if (len > 0) {
-                outBuff = new byte[len];
-                mWriteBuffer.rewind();
-                mWriteBuffer.get(outBuff, 0, len);
-                mWriteBuffer.clear();
+                onNewData(mReadBuffer.array(), len);
             }
         }
-        if (outBuff != null) {
-            if (DEBUG) {
-                Log.d(TAG, "Writing data len=" + len);
-            }
-            mDriver.write(outBuff, READ_WAIT_MILLIS);
+    }
+
+    private void onNewData(byte[] buffer, int len) {
+        if (DEBUG) Log.d(TAG, "Read data len=" + len);
+        final Listener listener = getListener();
+        if (listener instanceof BufferListener) {
+            ((BufferListener) listener).onNewData(buffer, 0, len);
+        } else if (listener != null) {
+            final byte[] data = new byte[len];
+            System.arraycopy(buffer, 0, data, 0, len);
+            listener.onNewData(data);
+        }
+    }
+
+    // Reports the first error of either thread, errors after stop() are the
+    // cancelled reads and writes
+    private void onError(Exception e) {
+        if (!requestStop()) {
+            return;
+        }
+        Log.w(TAG, "Run ending due to exception: " + e.getMessage(), e);
+        final Listener listener = getListener();
+        if (listener != null) {
+            listener.onRunError(e);
         }
     }
 
+    private final Runnable mWriteLoop = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    // Pending data still goes out after stop()
+                    byte[] outBuff = mWriteQueue.poll();
+                    if (outBuff == null) {
+                        if (getState() != State.RUNNING) {
+                            return;
+                        }
+                        // Unparked by the next write or by stop()
+                        LockSupport.park(this);
+                        continue;
+                    }
+                    if (DEBUG) {
+                        Log.d(TAG, "Writing data len=" + outBuff.length);
+                    }
+                    mDriver.write(outBuff, WRITE_WAIT_MILLIS);
+                }
+            } catch (Exception e) {
+                onError(e);
+            }
+        }
+    };
+
 }
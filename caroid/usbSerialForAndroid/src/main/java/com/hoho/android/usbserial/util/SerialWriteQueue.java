@@ -0,0 +1,198 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: https://github.com/mik3y/usb-serial-for-android
+ */
+
+package com.hoho.android.usbserial.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes waiting for the writer thread of {@link SerialInputOutputManager}.
+ * Any number of threads offer, one thread polls, and nobody takes a lock.
+ *
+ * Most writes go through a bounded ring and come out in the order they went
+ * in; a full ring rejects the write instead of growing. Writes that only the
+ * latest one of matters, such as a control command that supersedes the last
+ * one, are {@link #offerLatest(byte[]) offered} to a single slot instead, and
+ * a write still waiting there is replaced. The slot remembers how far the ring
+ * was filled at the time, so it still comes out after the ordered writes that
+ * went in before it, and before those that went in after it.
+ */
+class SerialWriteQueue {
+
+    private static class Latest {
+        final byte[] data;
+        // Ring writes claimed before this one was offered
+        final long position;
+
+        Latest(byte[] data, long position) {
+            this.data = data;
+            this.position = position;
+        }
+    }
+
+    private final int mMask;
+    private final AtomicReferenceArray<byte[]> mItems;
+    // Slot i is free for the write at position p when it holds p, and that
+    // write can be polled when it holds p + 1
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mTail = new AtomicLong();
+    // Written by the consumer only
+    private volatile long mHead;
+
+    private final AtomicReference<Latest> mLatest = new AtomicReference<Latest>();
+    private volatile Thread mConsumer;
+
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+
+    /**
+     * @param capacity ring size, a power of two
+     */
+    SerialWriteQueue(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mMask = capacity - 1;
+        mItems = new AtomicReferenceArray<byte[]>(capacity);
+        mSequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    /**
+     * Sets the thread that polls, it is unparked whenever a write is offered.
+     */
+    void setConsumer(Thread consumer) {
+        mConsumer = consumer;
+    }
+
+    /**
+     * Queues a write behind all others. Returns false if the ring is full.
+     */
+    boolean offer(byte[] data) {
+        long position = claim();
+        if (position < 0) {
+            return false;
+        }
+        publish(position, data);
+        return true;
+    }
+
+    /**
+     * Reserves the next ring position, or returns -1 if the ring is full. The
+     * write must follow with {@link #publish(long, byte[])}.
+     */
+    long claim() {
+        while (true) {
+            long position = mTail.get();
+            int slot = (int) position & mMask;
+            long available = mSequences.get(slot) - position;
+            if (available == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+            } else if (available < 0) {
+                mRejectedCount.incrementAndGet();
+                return -1;
+            }
+            // Another producer took the slot, try the next one
+        }
+    }
+
+    void publish(long position, byte[] data) {
+        int slot = (int) position & mMask;
+        mItems.set(slot, data);
+        mSequences.set(slot, position + 1);
+        signal();
+    }
+
+    /**
+     * Replaces the latest-only write, if it has not been polled yet.
+     */
+    void offerLatest(byte[] data) {
+        Latest stale = mLatest.getAndSet(new Latest(data, mTail.get()));
+        if (stale != null) {
+            mCoalescedCount.incrementAndGet();
+        }
+        signal();
+    }
+
+    private void signal() {
+        Thread consumer = mConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Consumer thread only. Returns the next write, or null if there is none.
+     */
+    byte[] poll() {
+        while (true) {
+            long head = mHead;
+            Latest latest = mLatest.get();
+            if (latest != null && latest.position <= head) {
+                // Offered before the write at head
+                if (mLatest.compareAndSet(latest, null)) {
+                    return latest.data;
+                }
+                continue;
+            }
+            int slot = (int) head & mMask;
+            if (mSequences.get(slot) == head + 1) {
+                byte[] data = mItems.get(slot);
+                mItems.set(slot, null);
+                mSequences.set(slot, head + mMask + 1);
+                mHead = head + 1;
+                return data;
+            }
+            // The ring is empty, or its next write is claimed but not
+            // published yet. A latest-only write still waiting was offered
+            // after that one and must not overtake it, the producer signals
+            // once it is published.
+            return null;
+        }
+    }
+
+    /**
+     * Writes waiting in the ring and the latest-only slot.
+     */
+    int size() {
+        int size = (int) Math.max(0, mTail.get() - mHead);
+        return mLatest.get() != null ? size + 1 : size;
+    }
+
+    /**
+     * Latest-only writes that were replaced before they were polled.
+     */
+    long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    /**
+     * Ordered writes that found the ring full.
+     */
+    long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+}
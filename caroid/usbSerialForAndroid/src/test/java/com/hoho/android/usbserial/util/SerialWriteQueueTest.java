@@ -0,0 +1,131 @@
+package com.hoho.android.usbserial.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class SerialWriteQueueTest {
+    private static byte[] bytes(String s) {
+        return s.getBytes();
+    }
+
+    private static List<String> drain(SerialWriteQueue queue) {
+        List<String> writes = new ArrayList<String>();
+        byte[] data;
+        while ((data = queue.poll()) != null) {
+            writes.add(new String(data));
+        }
+        return writes;
+    }
+
+    @Test
+    public void keepsOrder() {
+        SerialWriteQueue queue = new SerialWriteQueue(4);
+        queue.offer(bytes("M"));
+        queue.offer(bytes("C"));
+        queue.offer(bytes("N"));
+        assertEquals(3, queue.size());
+        assertEquals("[M, C, N]", drain(queue).toString());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void rejectsWhenFull() {
+        SerialWriteQueue queue = new SerialWriteQueue(2);
+        assertTrue(queue.offer(bytes("a")));
+        assertTrue(queue.offer(bytes("b")));
+        assertFalse(queue.offer(bytes("c")));
+        assertEquals(1, queue.getRejectedCount());
+        assertEquals("a", new String(queue.poll()));
+        assertTrue(queue.offer(bytes("d")));
+        assertEquals("[b, d]", drain(queue).toString());
+    }
+
+    @Test
+    public void latestWinsAndKeepsItsPlace() {
+        SerialWriteQueue queue = new SerialWriteQueue(8);
+        queue.offer(bytes("C"));
+        queue.offerLatest(bytes("1400 1500"));
+        queue.offerLatest(bytes("1450 1500"));
+        queue.offer(bytes("N"));
+        assertEquals(1, queue.getCoalescedCount());
+        assertEquals(3, queue.size());
+        assertEquals("[C, 1450 1500, N]", drain(queue).toString());
+
+        queue.offerLatest(bytes("1500 1500"));
+        queue.offer(bytes("M"));
+        assertEquals("[1500 1500, M]", drain(queue).toString());
+    }
+
+    @Test
+    public void latestWaitsForClaimedWrite() {
+        SerialWriteQueue queue = new SerialWriteQueue(8);
+        // A mode change on one thread, a command on another
+        long position = queue.claim();
+        queue.offerLatest(bytes("1450 1500"));
+        assertNull(queue.poll());
+        queue.publish(position, bytes("C"));
+        assertEquals("[C, 1450 1500]", drain(queue).toString());
+    }
+
+    @Test
+    public void concurrentProducersLoseNothingOrdered() throws InterruptedException {
+        final SerialWriteQueue queue = new SerialWriteQueue(16);
+        final int producers = 4;
+        final int perProducer = 5000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int id = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        while (!queue.offer(bytes(id + ":" + i))) {
+                            Thread.yield();
+                        }
+                        queue.offerLatest(bytes("latest"));
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        start.countDown();
+
+        Set<String> seen = new HashSet<String>();
+        int[] next = new int[producers];
+        int latest = 0;
+        while (seen.size() < producers * perProducer) {
+            byte[] data = queue.poll();
+            if (data == null) {
+                continue;
+            }
+            String write = new String(data);
+            if (write.equals("latest")) {
+                latest++;
+                continue;
+            }
+            assertTrue(seen.add(write));
+            // Each producer's writes come out in its order
+            String[] parts = write.split(":");
+            int id = Integer.parseInt(parts[0]);
+            assertEquals(next[id]++, Integer.parseInt(parts[1]));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        latest += drain(queue).size();
+        assertEquals(producers * perProducer, latest + queue.getCoalescedCount());
+    }
+}
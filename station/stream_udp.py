@@ -8,6 +8,12 @@ import numpy as np
 import win32api as wapi
 import time
 import threading
+import struct
+
+try:
+    import lz4.block
+except ImportError:
+    lz4 = None  # falls back to lz4_decompress() below
 
 APP_NAME = "stream"
 HOST = "192.168.1.67"
@@ -18,6 +24,22 @@ TIMEOUT = 5  # seconds
 SAVE_DATASET = False
 
 VIDEO_STREAM = False
+LUMA_STREAM = False  # grayscale Y plane only, instead of JPEG or H.264
+LUMA_CODEC = 1  # 0 raw, 1 delta + LZ4
+JPEG_KEEP_ONE_READY = False  # caroid encodes one frame ahead instead of every frame
+# (left, top, width, height, scale) of the preview to stream, None for all of it,
+# e.g. (0, 120, 720, 360, 4) for the lower part at the size deeprccar trains on
+ROI = None
+# (threshold, refresh) to have caroid send nearly unchanged frames as headers
+# only, e.g. (4, 30): blocks whose mean luma moved by at most 4, and a full
+# frame at least every 30. None sends every frame
+CHANGE_DETECTION = None
+# (network fps, disk fps) caps for caroid's frame output, 0 for no cap, None to
+# keep its defaults
+RATE_LIMITS = None
+# Android SensorManager.SENSOR_DELAY_* for the IMU values in the header, 0 is the
+# fastest, 3 caroid's default
+SENSOR_DELAY = None
 DATASET_VIDEO = 'dataset.avi'
 
 CONTROL_SEND_INTERVAL = 1.0 / 60  # 60 times per second
@@ -47,6 +69,227 @@ def lerp(value, min, neutral, max, value_min=-1.0, value_neutral=0.0, value_max=
     return np.clip(result, min, max)
 
 
+# Datagram chunk header, see FrameChunker.java on the caroid side
+CHUNK_MAGIC = 0xFC
+CHUNK_VERSION = 1
+CHUNK_HEADER = struct.Struct('>BBiiiHH')
+CHUNK_MAX_PENDING = 4
+
+# H.264 datagrams, see NalPacketizer.java on the caroid side
+VIDEO_MAGIC = 0xFD
+VIDEO_VERSION = 1
+VIDEO_HEADER = struct.Struct('>BBBiH')
+VIDEO_TYPE_HEADER = 0
+VIDEO_TYPE_NAL = 1
+VIDEO_FLAG_LAST = 0x80
+KEY_FRAME_REQUEST_INTERVAL = 0.5  # seconds between "K" requests after losses
+NAL_TYPE_FU_A = 28
+START_CODE = b'\x00\x00\x00\x01'
+
+# Luma-only payload, see LumaEncoder.java on the caroid side
+LUMA_MAGIC = ord('Y')
+LUMA_HEADER = struct.Struct('>BBHH')
+LUMA_CODEC_RAW = 0
+LUMA_CODEC_DELTA_LZ4 = 1
+
+# Binary telemetry header, see TelemetryHeader.java on the caroid side
+BINARY_HEADER = True
+TELEMETRY_MAGIC = 0xB7
+TELEMETRY_VERSION = 2
+TELEMETRY_HEADER = struct.Struct('>BBhiifi11fqBBh')
+TELEMETRY_FLAG_ARDUINO_ONLINE = 1
+
+# Adaptive quality target toggled with the B key, see QualityController.java
+ADAPTIVE_BITRATE = 2000  # kbit/s
+ADAPTIVE_FPS = 30
+
+# Latency report sent in reply to the "S" command, see PipelineStats.java
+STATS_PREFIX = b'[S;'
+
+
+def lz4_decompress(src, size):
+    """Decodes an LZ4 block, with the lz4 package if it is installed."""
+    if lz4 is not None:
+        return lz4.block.decompress(src, uncompressed_size=size)
+    dst = bytearray()
+    i = 0
+    while True:
+        token = src[i]
+        i += 1
+        literals = token >> 4
+        if literals == 15:
+            while True:
+                literals += src[i]
+                i += 1
+                if src[i - 1] != 255:
+                    break
+        dst += src[i:i + literals]
+        i += literals
+        if i >= len(src):
+            break
+        offset = src[i] | src[i + 1] << 8
+        i += 2
+        length = token & 15
+        if length == 15:
+            while True:
+                length += src[i]
+                i += 1
+                if src[i - 1] != 255:
+                    break
+        length += 4
+        start = len(dst) - offset
+        if offset >= length:
+            dst += dst[start:start + length]
+        else:
+            # overlapping match, the last offset bytes repeat
+            pattern = dst[start:]
+            dst += (pattern * (length // offset + 1))[:length]
+    if len(dst) != size:
+        raise ValueError("LZ4 block decoded to {} bytes instead of {}".format(len(dst), size))
+    return bytes(dst)
+
+
+def decode_luma(payload):
+    """Returns the grayscale image of a luma-only payload."""
+    _, codec, width, height = LUMA_HEADER.unpack_from(payload)
+    data = bytes(payload[LUMA_HEADER.size:])
+    if codec == LUMA_CODEC_RAW:
+        return np.frombuffer(data, dtype=np.uint8, count=width * height).reshape(height, width)
+    delta = np.frombuffer(lz4_decompress(data, width * height), dtype=np.uint8).reshape(height, width)
+    # undo the differences: first column top to bottom, then every row left to right
+    delta = delta.copy()
+    delta[:, 0] = np.cumsum(delta[:, 0], dtype=np.uint8)
+    return np.cumsum(delta, axis=1, dtype=np.uint8)
+
+
+class FrameAssembler:
+    """Reassembles frames that caroid splits into datagrams.
+
+    As soon as a frame completes, older incomplete frames are abandoned, so a
+    lost chunk costs one frame instead of stalling the stream.
+    """
+
+    def __init__(self, max_pending=CHUNK_MAX_PENDING):
+        self.max_pending = max_pending
+        self.pending = {}  # frame id -> [data, received chunk indices, count]
+        self.last_completed = None
+        self.completed = 0
+        self.dropped = 0
+
+    def offer(self, datagram):
+        """Returns a complete frame as bytes, or None if more chunks are needed."""
+        if len(datagram) < CHUNK_HEADER.size or datagram[0] != CHUNK_MAGIC:
+            # Legacy sender, one frame per datagram
+            return bytes(datagram)
+
+        magic, version, frame_id, length, offset, index, count = \
+            CHUNK_HEADER.unpack_from(datagram)
+        payload = datagram[CHUNK_HEADER.size:]
+        if version != CHUNK_VERSION or index >= count or offset + len(payload) > length:
+            return None
+        if self.last_completed is not None and frame_id <= self.last_completed:
+            return None
+
+        frame = self.pending.get(frame_id)
+        if frame is None:
+            if len(self.pending) >= self.max_pending:
+                oldest = min(self.pending)
+                if frame_id < oldest:
+                    return None
+                del self.pending[oldest]
+                self.dropped += 1
+            frame = [bytearray(length), set(), count]
+            self.pending[frame_id] = frame
+
+        data, received, count = frame
+        if index not in received:
+            received.add(index)
+            data[offset:offset + len(payload)] = payload
+        if len(received) < count:
+            return None
+
+        del self.pending[frame_id]
+        for stale in [i for i in self.pending if i < frame_id]:
+            del self.pending[stale]
+            self.dropped += 1
+        self.last_completed = frame_id
+        self.completed += 1
+        return bytes(data)
+
+
+class VideoAssembler:
+    """Rebuilds H.264 frames from the datagrams of caroid's NalPacketizer.
+
+    A lost datagram costs the NAL unit it belongs to, the decoder conceals the
+    rest until the next key frame; Stream asks for one as soon as `lost`
+    grows. A frame is returned as the telemetry header followed by Annex B
+    NAL units once its last datagram arrives, or never if its header was
+    lost.
+    """
+
+    def __init__(self):
+        self.frame_id = None
+        self.next_index = 0
+        self.header = None
+        self.data = bytearray()
+        self.fragment = None
+        self.finished = True
+        self.completed = 0
+        self.lost = 0
+
+    def offer(self, datagram):
+        if len(datagram) < VIDEO_HEADER.size:
+            return None
+        magic, version, kind, frame_id, index = VIDEO_HEADER.unpack_from(datagram)
+        payload = datagram[VIDEO_HEADER.size:]
+        if version != VIDEO_VERSION:
+            return None
+        if frame_id != self.frame_id:
+            if self.frame_id is not None and frame_id < self.frame_id:
+                return None
+            if self.frame_id is not None and (not self.finished or frame_id > self.frame_id + 1):
+                # The end of the previous frame or whole frames went missing
+                self.lost += 1
+            self.frame_id = frame_id
+            self.finished = False
+            self.next_index = 0
+            self.header = None
+            self.data = bytearray()
+            self.fragment = None
+        if index < self.next_index:
+            return None
+        if index > self.next_index:
+            self.lost += index - self.next_index
+            self.fragment = None
+        self.next_index = index + 1
+
+        if kind & ~VIDEO_FLAG_LAST == VIDEO_TYPE_HEADER:
+            self.header = bytes(payload)
+        elif len(payload) > 0 and payload[0] & 0x1F == NAL_TYPE_FU_A:
+            if len(payload) < 2:
+                return None
+            fu = payload[1]
+            if fu & 0x80:
+                self.fragment = bytearray(START_CODE)
+                self.fragment.append((payload[0] & 0xE0) | (fu & 0x1F))
+            if self.fragment is not None:
+                self.fragment += payload[2:]
+                if fu & 0x40:
+                    self.data += self.fragment
+                    self.fragment = None
+        else:
+            self.data += START_CODE + payload
+
+        if kind & VIDEO_FLAG_LAST:
+            self.finished = True
+        if not kind & VIDEO_FLAG_LAST or self.header is None:
+            return None
+        self.completed += 1
+        frame = self.header + bytes(self.data)
+        self.header = None
+        return frame
+
+
 def infinite_loop(target):
     while True:
         target()
@@ -60,7 +303,7 @@ class Stream:
         self.image_id = 0
         self.keys = [
             '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
-            'F',
+            'F', 'L', 'B',
             'C', 'M',
             'W', 'A', 'S', 'D'
         ]
@@ -78,6 +321,14 @@ class Stream:
         self.capture = None
         self.video_file = None
 
+        self.assembler = FrameAssembler()
+        self.video_assembler = VideoAssembler()
+        self.video_lost = 0
+        self.key_frame_requested = None
+        self.adaptive = False
+        self.encoding = None  # (quality, scale) of the last binary header
+        self.last_frame = None  # shown again for frames without a payload
+
     def start(self, start_image_id=0):
         self.image_id = start_image_id
         t = threading.Thread(target=infinite_loop, args=(self.key_check,))
@@ -94,6 +345,19 @@ class Stream:
             try:
                 self.ping()
                 self.send_command("Q;10")
+                if BINARY_HEADER:
+                    self.send_command("H;1")
+                if LUMA_STREAM:
+                    self.send_command("V;2;{}".format(LUMA_CODEC))
+                else:
+                    self.send_command("V;1" if VIDEO_STREAM else "V;0")
+                self.send_command("J;1" if JPEG_KEEP_ONE_READY else "J;0")
+                self.send_command("R;" + ";".join(str(v) for v in ROI) if ROI else "R")
+                self.send_command("D;{};{}".format(*CHANGE_DETECTION) if CHANGE_DETECTION else "D;0")
+                if RATE_LIMITS:
+                    self.send_command("G;{};{}".format(*RATE_LIMITS))
+                if SENSOR_DELAY is not None:
+                    self.send_command("I;{}".format(SENSOR_DELAY))
                 self.connection(self.socket)
                 self.socket.close()
             except (ConnectionResetError, ConnectionAbortedError):
@@ -108,6 +372,16 @@ class Stream:
             self.ping_time = now
             self.send_command("P")
 
+    def request_key_frame(self):
+        # the decoder can't recover from a loss before the next IDR, ask for one
+        if self.video_assembler.lost == self.video_lost:
+            return
+        now = time.time()
+        if self.key_frame_requested is None or now - self.key_frame_requested > KEY_FRAME_REQUEST_INTERVAL:
+            self.video_lost = self.video_assembler.lost
+            self.key_frame_requested = now
+            self.send_command("K")
+
     def send_command(self, command):
         if self.socket is None or self.socket_address is None:
             print("Simulate send", command)
@@ -135,11 +409,23 @@ class Stream:
             if key_presssed[str(q)]:
                 quality = q * 10 if q > 0 else 5
                 self.send_command('Q;{}'.format(quality))
+                self.adaptive = False
                 break
 
+        if key_presssed['B']:
+            self.adaptive = not self.adaptive
+            if self.adaptive:
+                self.send_command("B;{};{}".format(ADAPTIVE_BITRATE, ADAPTIVE_FPS))
+            else:
+                self.send_command("B;0")
+
         if key_presssed['F']:
             self.send_command("F")
 
+        if key_presssed['L']:
+            # latency report, starting over afterwards
+            self.send_command("S;1")
+
         if key_presssed['C']:
             self.send_command("A;C")
             self.control = True
@@ -198,11 +484,28 @@ class Stream:
                 break
 
             try:
-                packet = conn.recv(510000)
+                datagram = conn.recv(65536)
             except socket.error:
                 time.sleep(0.01)
                 continue
 
+            if datagram.startswith(STATS_PREFIX):
+                Stream.print_stats(datagram)
+                continue
+
+            if len(datagram) > 0 and datagram[0] == VIDEO_MAGIC:
+                packet = self.video_assembler.offer(datagram)
+                self.request_key_frame()
+            else:
+                packet = self.assembler.offer(datagram)
+            if packet is None:
+                continue
+
+            if len(packet) >= TELEMETRY_HEADER.size and packet[0] == TELEMETRY_MAGIC \
+                    and packet[1] == TELEMETRY_VERSION:
+                self.track_encoding(packet)
+                return has_connection, packet, TELEMETRY_HEADER.size, Stream.decode_binary_header(packet)
+
             while packet_i < len(packet):
                 c = bytes([packet[packet_i]])
                 if c == b'$':
@@ -221,6 +524,31 @@ class Stream:
                     packet_i += 1
             return has_connection, packet, packet_i, buff
 
+    def track_encoding(self, packet):
+        """Prints the JPEG quality and scale whenever caroid changes them."""
+        encoding = TELEMETRY_HEADER.unpack_from(packet)[19:21]
+        if encoding != self.encoding:
+            self.encoding = encoding
+            print("Encoding at quality {}, scale 1/{}".format(*encoding))
+
+    @staticmethod
+    def print_stats(datagram):
+        """Prints a latency report, values are in microseconds."""
+        print("{:>8} {:>8} {:>8} {:>8} {:>8} {:>8}".format("stage", "count", "p50", "p99", "p999", "max"))
+        for stage in datagram[len(STATS_PREFIX):-1].decode().split(';'):
+            print("{:>8} {:>8} {:>8} {:>8} {:>8} {:>8}".format(*stage.split(' ')))
+
+    @staticmethod
+    def decode_binary_header(packet):
+        """Converts a binary header into the same text fields as the bracketed header."""
+        values = TELEMETRY_HEADER.unpack_from(packet)
+        flags, speed, steering, distance, size = values[2:7]
+        sensors = values[7:18]
+        fields = ["1" if flags & TELEMETRY_FLAG_ARDUINO_ONLINE else "0",
+                  str(speed), str(steering), "{:.1f}".format(distance), str(size)]
+        fields += ["{:.5f}".format(v) for v in sensors]
+        return ";".join(fields).encode()
+
     def connection(self, conn):
         time_step = 0
         timestamps = []
@@ -243,7 +571,15 @@ class Stream:
             # print(decoded_buff)
 
             img = bytearray(packet[packet_i:])
-            if VIDEO_STREAM:
+            luma = len(img) >= LUMA_HEADER.size and img[0] == LUMA_MAGIC
+            unchanged = len(img) == 0 and self.last_frame is not None
+            if unchanged:
+                # caroid skipped a frame that looked like the last one
+                frame = self.last_frame.copy()
+            elif luma:
+                gray = decode_luma(img)
+                frame = cv2.cvtColor(gray, cv2.COLOR_GRAY2BGR)
+            elif VIDEO_STREAM:
                 self.video_file.write(img)
                 self.video_file.flush()
                 if time_step > 0:
@@ -261,6 +597,8 @@ class Stream:
             if not self.control:
                 self.ping()
 
+            if frame is not None and not unchanged:
+                self.last_frame = frame.copy()
             Stream.draw(header, frame, fps)
 
             timestamp = datetime.datetime.now().timestamp()
@@ -272,17 +610,24 @@ class Stream:
                 timestamps.pop(0)
 
             if SAVE_DATASET:
-                self.write_to_dataset(header, img, timestamp)
+                if unchanged:
+                    self.write_to_dataset(header, None, timestamp)
+                elif luma:
+                    self.write_to_dataset(header, cv2.imencode(".png", gray)[1].tobytes(), timestamp, "png")
+                else:
+                    self.write_to_dataset(header, img, timestamp)
 
-    def write_to_dataset(self, header, image, timestamp):
+    def write_to_dataset(self, header, image, timestamp, extension="jpg"):
         if self.data is None:
             os.makedirs(self.data_name)
             self.data = open(self.data_name + "/header.csv", 'a')
             self.data.write("timestamp,image_id,online,speed,steering,distance,size,acc_x,acc_y,acc_z,gyro_x,gyro_y,gyro_z,mag_x,mag_y,max_z,lat,lon\n")
 
-        self.image_id += 1
-        with open(self.data_name + "/{}.jpg".format(self.image_id), 'wb') as f:
-            f.write(image)
+        # without an image the row refers to the previous one
+        if image is not None:
+            self.image_id += 1
+            with open(self.data_name + "/{}.{}".format(self.image_id, extension), 'wb') as f:
+                f.write(image)
 
         entry = "{},{},".format(timestamp, self.image_id) + ",".join(header) + "\n"
         self.data.write(entry)